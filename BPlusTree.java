@@ -1,43 +1,487 @@
 package source;
 
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Created by Shubham on 11/09/18.
  */
 
-public class BPlusTree<Key extends Comparable<? super Key>, Value> {
+public class BPlusTree<Key, Value> {
 
     public enum RangePolicy {
         EXCLUSIVE, INCLUSIVE
     }
 
+    /**
+     * The strategy used to locate a key among the sorted keys of a node. The
+     * defaults are measured by {@link SearchStrategyBenchmark}.
+     */
+    public enum SearchStrategy {
+        /**
+         * Classic binary search, the default: no other strategy is faster for
+         * every key type at the default branching factor.
+         */
+        BINARY,
+        /**
+         * Binary search whose loop body only selects the next base index, so
+         * the JIT can compile it to a conditional move instead of a branch.
+         */
+        BRANCHLESS,
+        /**
+         * Sequential scan for nodes of up to {@value #LINEAR_SEARCH_THRESHOLD}
+         * keys, binary search for larger nodes.
+         */
+        LINEAR,
+        /**
+         * Interpolation search for {@link Number} keys in their natural
+         * ordering, binary search otherwise. It only pays off for uniformly
+         * distributed keys, and degrades to a sequential scan on skewed ones.
+         */
+        INTERPOLATION;
+
+        /**
+         * The largest node scanned sequentially by {@link #LINEAR}. Beyond it,
+         * the binary search of a node is faster.
+         */
+        public static final int LINEAR_SEARCH_THRESHOLD = 8;
+    }
+
     /**
      * The branching factor used when none specified in constructor.
      */
     private static final int DEFAULT_BRANCHING_FACTOR = 128;
 
     /**
-     * The branching factor for the B+ tree, that measures the capacity of nodes
-     * (i.e., the number of children nodes) for internal nodes in the tree.
+     * The arrays of an empty {@link KeyList}.
+     */
+    private static final Object[] EMPTY = {};
+    private static final long[] EMPTY_PREFIXES = {};
+
+    /**
+     * The number of stale times beyond the live ones the expiry queue may
+     * hold before it is rebuilt.
+     */
+    private static final int MIN_EXPIRY_QUEUE_PURGE = 64;
+
+    /**
+     * The size of a cache line and of a memory page, for sizing nodes with
+     * {@link #branchingFactorForBytes}.
+     */
+    public static final int CACHE_LINE_BYTES = 64;
+    public static final int PAGE_BYTES = 4096;
+
+    /**
+     * The branching factor for the leaves, that measures their capacity (i.e.,
+     * one more than the number of values of a full leaf).
+     */
+    private int leafBranchingFactor;
+
+    /**
+     * The branching factor for the internal nodes, that measures their
+     * capacity (i.e., the number of children nodes).
      */
-    private int branchingFactor;
+    private int internalBranchingFactor;
 
     /**
      * The root node of the B+ tree.
      */
     private Node root;
 
+    /**
+     * The number of nodes split and merged since the tree was created, on
+     * every level of the tree.
+     */
+    private int splits;
+    private int fusions;
+
+    /**
+     * The number of associations in the tree, and whether the last
+     * {@code insertValue} or {@code deleteValue} found the key.
+     */
+    private int size;
+    private boolean found;
+
+    /**
+     * The result of the slot function applied by the last
+     * {@code computeValue}.
+     */
+    private Object computed;
+
+    /**
+     * The open change streams, or {@code null} if there are none, and the
+     * sequence number of the last change published.
+     */
+    private List<ChangeStream<Key, Value>> changeStreams;
+    private long mutationSequence;
+
+    /**
+     * The comparator used to order the keys, or {@code null} if the keys are
+     * ordered by their natural ordering.
+     */
+    private final Comparator<? super Key> comparator;
+
+    /**
+     * The optional key normalizer, used to compare order-preserving
+     * {@code long} prefixes before falling back to the full key comparison.
+     */
+    private final KeyNormalizer<? super Key> normalizer;
+
+    /**
+     * The strategy used to search the keys within a node.
+     */
+    private SearchStrategy searchStrategy = SearchStrategy.BINARY;
+
+    /**
+     * The number of deletes between two checks of the leaf fill when automatic
+     * compaction is enabled, and the leaf sampling interval of the checks.
+     */
+    private static final int COMPACTION_CHECK_INTERVAL = 1024;
+    private static final int COMPACTION_SAMPLE_EVERY = 16;
+
+    /**
+     * The average leaf fill under which the tree is compacted automatically,
+     * or 0 if automatic compaction is disabled, and the fill it compacts to.
+     */
+    private double compactionThreshold;
+    private double compactionTargetFill;
+
+    private int deletesSinceCompactionCheck;
+
+    /**
+     * Whether an automatic compaction is in progress, and the key it resumes
+     * from; a {@code null} cursor starts from the first leaf.
+     */
+    private boolean compacting;
+    private Key compactionCursor;
+
+    /**
+     * The expiry time in milliseconds of the entries inserted with a time to
+     * live, and the same expiry times ordered by time for the sweeper. Both
+     * are {@code null} until the first such insertion. The queue may hold
+     * stale times, which are skipped when they no longer match the map, and
+     * is rebuilt from the map once they outnumber the live ones.
+     */
+    private TreeMap<Key, Long> expiries;
+    private PriorityQueue<Expiry> expiryQueue;
+
+    /**
+     * The operation counts used to size the nodes when the tree is rebuilt,
+     * or {@code null} if adaptive node sizing is disabled.
+     */
+    private WorkloadStatistics workload;
+
+    /**
+     * The recorder tracing the operations on the tree, or {@code null}.
+     */
+    private WorkloadRecorder<Key, Value> recorder;
+
+    /**
+     * The filter rejecting searches for absent keys before the descent, or
+     * {@code null}, and the function hashing the keys for it, or {@code null}
+     * to use their hash codes.
+     */
+    private MembershipFilter filter;
+    private ToIntFunction<? super Key> filterHash;
+
     public BPlusTree() {
         this(DEFAULT_BRANCHING_FACTOR);
     }
 
     public BPlusTree(int branchingFactor) {
+        this(branchingFactor, null, null);
+    }
+
+    public BPlusTree(int branchingFactor, Comparator<? super Key> comparator) {
+        this(branchingFactor, comparator, null);
+    }
+
+    /**
+     * Constructs an empty tree ordered by the given comparator.
+     *
+     * @param branchingFactor
+     *            the capacity of the nodes
+     * @param comparator
+     *            the comparator that will be used to order the keys, or
+     *            {@code null} to use the natural ordering of the keys (which
+     *            must then implement {@link Comparable})
+     * @param normalizer
+     *            the normalizer producing order-preserving prefixes of the keys
+     *            consistent with the ordering, or {@code null} to always
+     *            compare full keys
+     */
+    public BPlusTree(int branchingFactor, Comparator<? super Key> comparator,
+                     KeyNormalizer<? super Key> normalizer) {
+        this(branchingFactor, branchingFactor, comparator, normalizer);
+    }
+
+    /**
+     * Constructs an empty tree with different capacities for the leaves and
+     * the internal nodes, for example large leaves for scans and internal
+     * nodes fitting a few cache lines for lookups.
+     *
+     * @param leafBranchingFactor
+     *            the capacity of the leaves
+     * @param internalBranchingFactor
+     *            the capacity of the internal nodes
+     * @param comparator
+     *            the comparator that will be used to order the keys, or
+     *            {@code null} to use the natural ordering of the keys
+     * @param normalizer
+     *            the normalizer producing order-preserving prefixes of the
+     *            keys, or {@code null} to always compare full keys
+     * @see #branchingFactorForBytes(int)
+     */
+    public BPlusTree(int leafBranchingFactor, int internalBranchingFactor,
+                     Comparator<? super Key> comparator, KeyNormalizer<? super Key> normalizer) {
+        checkBranchingFactor(leafBranchingFactor);
+        checkBranchingFactor(internalBranchingFactor);
+        this.leafBranchingFactor = leafBranchingFactor;
+        this.internalBranchingFactor = internalBranchingFactor;
+        this.comparator = comparator;
+        this.normalizer = normalizer;
+        root = new LeafNode();
+    }
+
+    private static void checkBranchingFactor(int branchingFactor) {
         if (branchingFactor <= 2)
             throw new IllegalArgumentException("Illegal branching factor: "
                     + branchingFactor);
-        this.branchingFactor = branchingFactor;
-        root = new LeafNode();
+    }
+
+    /**
+     * Returns the largest branching factor for which the backing arrays of a
+     * node, keys and values or children, fit in the specified number of bytes
+     * on a 64-bit JVM with compressed references. These arrays are what a
+     * search within the node reads; the keys themselves are referenced.
+     *
+     * @param nodeBytes
+     *            the byte budget of a node, for example a few
+     *            {@link #CACHE_LINE_BYTES} or one {@link #PAGE_BYTES}
+     */
+    public static int branchingFactorForBytes(int nodeBytes) {
+        int references = (nodeBytes - 2 * TreeFootprint.ARRAY_HEADER_BYTES) / TreeFootprint.REFERENCE_BYTES;
+        return Math.max(3, references / 2 + 1);
+    }
+
+    public int getLeafBranchingFactor() {
+        return leafBranchingFactor;
+    }
+
+    public int getInternalBranchingFactor() {
+        return internalBranchingFactor;
+    }
+
+    /**
+     * Returns the number of associations in the tree, including the expired
+     * ones not removed yet.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Opens a stream of the changes made to the tree from now on: insertions,
+     * updates and deletions with their old and new values, in order and
+     * numbered by a sequence shared by all the streams. The tree must be
+     * modified by one thread, and the stream consumed by one other thread.
+     *
+     * @param capacity
+     *            the number of events buffered for the consumer, rounded up
+     *            to a power of two
+     * @param policy
+     *            what to do when the consumer falls {@code capacity} events
+     *            behind
+     */
+    public ChangeStream<Key, Value> openChangeStream(int capacity, ChangeStream.BackpressurePolicy policy) {
+        ChangeStream<Key, Value> stream = new ChangeStream<Key, Value>(capacity, policy);
+        List<ChangeStream<Key, Value>> streams = new ArrayList<ChangeStream<Key, Value>>();
+        if (changeStreams != null)
+            streams.addAll(changeStreams);
+        streams.add(stream);
+        changeStreams = streams;
+        return stream;
+    }
+
+    private void publish(MutationEvent.Type type, Key key, Value oldValue, Value newValue) {
+        MutationEvent<Key, Value> event = new MutationEvent<Key, Value>(type, ++mutationSequence, key, oldValue,
+                newValue);
+        boolean closed = false;
+        for (ChangeStream<Key, Value> stream : changeStreams) {
+            if (stream.isClosed())
+                closed = true;
+            else
+                stream.publish(event);
+        }
+        if (closed) {
+            List<ChangeStream<Key, Value>> streams = new ArrayList<ChangeStream<Key, Value>>();
+            for (ChangeStream<Key, Value> stream : changeStreams) {
+                if (!stream.isClosed())
+                    streams.add(stream);
+            }
+            changeStreams = streams.isEmpty() ? null : streams;
+        }
+    }
+
+    /**
+     * Enables or disables adaptive node sizing. When enabled, the operations
+     * on the tree are counted, and once enough were counted, the next
+     * {@link #bulkLoad}, {@link #readSnapshot} or {@link #rebuild()} adopts
+     * the node sizes recommended by the {@link WorkloadStatistics}.
+     */
+    public void setAdaptiveNodeSizing(boolean enabled) {
+        if (!enabled)
+            workload = null;
+        else if (workload == null)
+            workload = new WorkloadStatistics();
+    }
+
+    /**
+     * Starts recording the searches, range searches, inserts, replaces and
+     * deletes run on the tree with the specified recorder, or stops recording
+     * if it is {@code null}. Conditional and range updates are recorded by
+     * their outcome; the removals of expired associations are not recorded.
+     */
+    public void setWorkloadRecorder(WorkloadRecorder<Key, Value> recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Enables a Bloom filter over the keys, consulted by {@link #search}
+     * before the descent so that most searches for absent keys return
+     * without reaching a leaf. The filter is resized as the tree grows. The
+     * keys are hashed with {@link Object#hashCode()}, which is only known to
+     * agree with the natural ordering of the keys.
+     *
+     * @param falsePositiveRate
+     *            the fraction of searches for absent keys the filter lets
+     *            through, or 0 to disable the filter
+     * @param counting
+     *            whether the filter keeps counters to forget the removed
+     *            keys, at eight times the memory; without counters, deletes
+     *            raise the false positive rate until the next resize
+     * @throws IllegalStateException
+     *             if the tree orders its keys with a comparator, which the
+     *             hash codes may disagree with
+     */
+    public void setMembershipFilter(double falsePositiveRate, boolean counting) {
+        setMembershipFilter(falsePositiveRate, counting, null);
+    }
+
+    /**
+     * Enables a Bloom filter over the keys, hashed with the specified
+     * function.
+     *
+     * @param falsePositiveRate
+     *            the fraction of searches for absent keys the filter lets
+     *            through, or 0 to disable the filter
+     * @param counting
+     *            whether the filter keeps counters to forget the removed
+     *            keys
+     * @param hashFunction
+     *            the function hashing the keys, which must return equal
+     *            hashes for keys the ordering of the tree finds equal, or
+     *            {@code null} to use their hash codes
+     * @throws IllegalStateException
+     *             if the hash function is {@code null} and the tree orders
+     *             its keys with a comparator
+     * @see #setMembershipFilter(double, boolean)
+     */
+    public void setMembershipFilter(double falsePositiveRate, boolean counting,
+                                    ToIntFunction<? super Key> hashFunction) {
+        if (falsePositiveRate == 0) {
+            filter = null;
+            filterHash = null;
+            return;
+        }
+        if (hashFunction == null && comparator != null)
+            throw new IllegalStateException("A tree with a comparator needs a hash function consistent with it");
+        MembershipFilter.checkFalsePositiveRate(falsePositiveRate);
+        filterHash = hashFunction;
+        fillFilter(new MembershipFilter(2 * size, falsePositiveRate, counting));
+    }
+
+    private int filterHash(Key key) {
+        return filterHash != null ? filterHash.applyAsInt(key) : key.hashCode();
+    }
+
+    /**
+     * Returns the membership filter of the tree and its false positive
+     * counts, or {@code null} if it is disabled.
+     */
+    public MembershipFilter getMembershipFilter() {
+        return filter;
+    }
+
+    /**
+     * Adds a new key of the tree to the filter, resizing the filter to twice
+     * the size of the tree once it is over capacity.
+     */
+    private void addToFilter(Key key) {
+        if (size > filter.getCapacity())
+            fillFilter(filter.resize(2 * size));
+        else
+            filter.add(filterHash(key));
+    }
+
+    /**
+     * Adds every key of the tree to the specified empty filter, walking the
+     * leaves, and makes it the filter of the tree.
+     */
+    private void fillFilter(MembershipFilter empty) {
+        for (LeafNode leaf = firstLeaf(); leaf != null; leaf = leaf.next) {
+            for (Key key : leaf.keys)
+                empty.add(filterHash(key));
+        }
+        filter = empty;
+    }
+
+    /**
+     * Returns the operation counts of the tree, or {@code null} if adaptive
+     * node sizing is disabled.
+     */
+    public WorkloadStatistics getWorkloadStatistics() {
+        return workload;
+    }
+
+    /**
+     * Returns the comparator used to order the keys in this tree, or
+     * {@code null} if the tree uses the natural ordering of its keys.
+     */
+    public Comparator<? super Key> comparator() {
+        return comparator;
+    }
+
+    public SearchStrategy getSearchStrategy() {
+        return searchStrategy;
+    }
+
+    /**
+     * Sets the strategy used to locate keys within a node.
+     *
+     * @param searchStrategy
+     *            the intra-node search strategy
+     */
+    public void setSearchStrategy(SearchStrategy searchStrategy) {
+        if (searchStrategy == null)
+            throw new NullPointerException("searchStrategy");
+        this.searchStrategy = searchStrategy;
     }
 
     /**
@@ -56,7 +500,26 @@ public class BPlusTree<Key extends Comparable<? super Key>, Value> {
      *         {@code null} if this tree contains no association for the key
      */
     Value search(Key key) {
-        return root.getValue(key);
+        if (recorder != null)
+            recorder.recordSearch(key);
+        if (workload != null)
+            workload.pointReads++;
+        if (filter != null && !filter.mightContain(filterHash(key))) {
+            filter.rejections++;
+            return null;
+        }
+        if (expiries != null && isExpired(key, System.currentTimeMillis())) {
+            expire(key);
+            return null;
+        }
+        LeafNode leaf = findLeaf(key);
+        int loc = indexOf(leaf.keys, key);
+        if (loc >= 0)
+            return leaf.values.get(loc);
+        /* The key is absent, not just associated with null: the filter let it through */
+        if (filter != null)
+            filter.falsePositives++;
+        return null;
     }
 
     /**
@@ -78,7 +541,54 @@ public class BPlusTree<Key extends Comparable<? super Key>, Value> {
      */
     public List<Value> searchRange(Key key1, RangePolicy policy1, Key key2,
                                RangePolicy policy2) {
-        return root.getRange(key1, policy1, key2, policy2);
+        if (recorder != null)
+            recorder.recordSearchRange(key1, policy1, key2, policy2);
+        if (expiries != null && !expiries.isEmpty()) {
+            List<Value> result = new ArrayList<Value>();
+            for (Map.Entry<Key, Value> entry : searchRangeEntries(key1, policy1, key2, policy2))
+                result.add(entry.getValue());
+            return result;
+        }
+        List<Value> result = root.getRange(key1, policy1, key2, policy2);
+        if (workload != null)
+            countRangeRead(result.size());
+        return result;
+    }
+
+    /**
+     * Returns the key-value pairs specified by the range: {@code key1} and
+     * {@code key2}, in key order.
+     *
+     * @param key1
+     *            the start key of the range
+     * @param policy1
+     *            the range policy, {@link RangePolicy#EXCLUSIVE} or
+     *            {@link RangePolicy#INCLUSIVE}
+     * @param key2
+     *            the end end of the range
+     * @param policy2
+     *            the range policy, {@link RangePolicy#EXCLUSIVE} or
+     *            {@link RangePolicy#INCLUSIVE}
+     * @return the entries whose keys are in the range
+     */
+    public List<Map.Entry<Key, Value>> searchRangeEntries(Key key1, RangePolicy policy1,
+                                                       Key key2, RangePolicy policy2) {
+        List<Map.Entry<Key, Value>> result = root.getEntries(key1, policy1, key2, policy2);
+        if (expiries != null && !expiries.isEmpty()) {
+            long now = System.currentTimeMillis();
+            for (Iterator<Map.Entry<Key, Value>> it = result.iterator(); it.hasNext(); ) {
+                if (isExpired(it.next().getKey(), now))
+                    it.remove();
+            }
+        }
+        if (workload != null)
+            countRangeRead(result.size());
+        return result;
+    }
+
+    private void countRangeRead(int entries) {
+        workload.rangeReads++;
+        workload.scannedEntries += entries;
     }
 
     /**
@@ -94,116 +604,1983 @@ public class BPlusTree<Key extends Comparable<? super Key>, Value> {
      *         {@code key1} and {@code key2}
      */
     public List<Key> searchRange(Key key1, RangePolicy policy1) {
-        return root.getNext10Key(key1, policy1);
+        if (recorder != null)
+            recorder.recordNextKeys(key1, policy1);
+        if (expiries != null && !expiries.isEmpty()) {
+            final List<Key> result = new LinkedList<Key>();
+            final long now = System.currentTimeMillis();
+            Consumer<Map.Entry<Key, Value>> liveKeys = new Consumer<Map.Entry<Key, Value>>() {
+                @Override
+                public void accept(Map.Entry<Key, Value> entry) {
+                    if (!isExpired(entry.getKey(), now))
+                        result.add(entry.getKey());
+                }
+            };
+            Spliterator<Map.Entry<Key, Value>> it = new RangeSpliterator(root, key1, policy1, null, RangePolicy.INCLUSIVE);
+            while (result.size() < 10 && it.tryAdvance(liveKeys)) {
+                /* Skip the expired keys until 10 live keys are found */
+            }
+            if (workload != null)
+                countRangeRead(result.size());
+            return result;
+        }
+        List<Key> result = root.getNext10Key(key1, policy1);
+        if (workload != null)
+            countRangeRead(result.size());
+        return result;
+    }
+
+    /**
+     * Returns the values associated with the keys specified by the range:
+     * {@code key1} and {@code key2}, in descending key order. The leaves are
+     * walked backwards from {@code key2}, without building the ascending
+     * result first.
+     *
+     * @param key1
+     *            the start key of the range
+     * @param policy1
+     *            the range policy, {@link RangePolicy#EXCLUSIVE} or
+     *            {@link RangePolicy#INCLUSIVE}
+     * @param key2
+     *            the end end of the range
+     * @param policy2
+     *            the range policy, {@link RangePolicy#EXCLUSIVE} or
+     *            {@link RangePolicy#INCLUSIVE}
+     * @return the values associated with the keys specified by the range, from
+     *         {@code key2} down to {@code key1}
+     */
+    public List<Value> searchRangeDescending(Key key1, RangePolicy policy1, Key key2,
+                                             RangePolicy policy2) {
+        List<Value> result = new ArrayList<Value>();
+        for (Map.Entry<Key, Value> entry : descend(key1, policy1, key2, policy2, Integer.MAX_VALUE))
+            result.add(entry.getValue());
+        return result;
     }
 
-    /**
-     * Associates the specified value with the specified key in this tree. If
-     * the tree previously contained a association for the key, the old value is
-     * replaced.
-     *
-     * @param key
-     *            the key with which the specified value is to be associated
-     * @param value
-     *            the value to be associated with the specified key
-     */
-    void insert(Key key, Value value) {
-        root.insertValue(key, value);
-    }
+    /**
+     * Returns up to {@code limit} key-value pairs preceding {@code key2}, in
+     * descending key order, for example the latest parts before a key.
+     *
+     * @param key2
+     *            the upper bound of the keys
+     * @param policy2
+     *            the range policy, {@link RangePolicy#EXCLUSIVE} or
+     *            {@link RangePolicy#INCLUSIVE}
+     * @param limit
+     *            the maximum number of pairs to return
+     * @return the pairs with the greatest keys up to {@code key2}
+     */
+    public List<Map.Entry<Key, Value>> searchDescending(Key key2, RangePolicy policy2, int limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("Illegal limit: " + limit);
+        return descend(null, RangePolicy.INCLUSIVE, key2, policy2, limit);
+    }
+
+    /**
+     * Walks the leaves backwards from {@code key2}, following the
+     * {@code prev} links, down to {@code key1} or the first key if it is
+     * {@code null}.
+     */
+    private List<Map.Entry<Key, Value>> descend(Key key1, RangePolicy policy1, Key key2,
+                                                RangePolicy policy2, int limit) {
+        List<Map.Entry<Key, Value>> result = new ArrayList<Map.Entry<Key, Value>>();
+        long now = System.currentTimeMillis();
+        LeafNode node = findLeaf(key2);
+        int index = node.upperBound(key2, policy2) - 1;
+        while (node != null && result.size() < limit) {
+            if (index < 0) {
+                node = node.prev;
+                if (node != null)
+                    index = node.keyNumber() - 1;
+                continue;
+            }
+            Key key = node.keys.get(index);
+            if (key1 != null) {
+                int cmp1 = compare(key, key1);
+                if ((policy1 == RangePolicy.EXCLUSIVE && cmp1 <= 0) || (policy1 == RangePolicy.INCLUSIVE && cmp1 < 0))
+                    break;
+            }
+            if (expiries == null || !isExpired(key, now))
+                result.add(new AbstractMap.SimpleImmutableEntry<Key, Value>(key, node.values.get(index)));
+            index--;
+        }
+        if (workload != null)
+            countRangeRead(result.size());
+        return result;
+    }
+
+    /**
+     * Returns a spliterator over the key-value pairs specified by the range:
+     * {@code key1} and {@code key2}, in key order.
+     *
+     * <p>
+     * The spliterator splits along the children of the internal nodes
+     * overlapping the range, so a parallel stream scans disjoint subtrees on
+     * different threads. The tree must not be modified while the spliterator
+     * is in use.
+     *
+     * @param key1
+     *            the start key of the range
+     * @param policy1
+     *            the range policy, {@link RangePolicy#EXCLUSIVE} or
+     *            {@link RangePolicy#INCLUSIVE}
+     * @param key2
+     *            the end end of the range
+     * @param policy2
+     *            the range policy, {@link RangePolicy#EXCLUSIVE} or
+     *            {@link RangePolicy#INCLUSIVE}
+     */
+    public Spliterator<Map.Entry<Key, Value>> spliterator(Key key1, RangePolicy policy1,
+                                                        Key key2, RangePolicy policy2) {
+        if (key1 == null || key2 == null)
+            throw new NullPointerException("range bounds");
+        return new RangeSpliterator(root, key1, policy1, key2, policy2);
+    }
+
+    /**
+     * Returns a spliterator over all the key-value pairs of the tree, in key
+     * order.
+     *
+     * @see #spliterator(Object, RangePolicy, Object, RangePolicy)
+     */
+    public Spliterator<Map.Entry<Key, Value>> spliterator() {
+        return new RangeSpliterator(root, null, RangePolicy.INCLUSIVE, null, RangePolicy.INCLUSIVE);
+    }
+
+    /**
+     * Returns a sequential stream over the key-value pairs specified by the
+     * range: {@code key1} and {@code key2}.
+     *
+     * @see #spliterator(Object, RangePolicy, Object, RangePolicy)
+     */
+    public Stream<Map.Entry<Key, Value>> stream(Key key1, RangePolicy policy1,
+                                              Key key2, RangePolicy policy2) {
+        return StreamSupport.stream(spliterator(key1, policy1, key2, policy2), false);
+    }
+
+    /**
+     * Returns a parallel stream over the key-value pairs specified by the
+     * range: {@code key1} and {@code key2}.
+     *
+     * @see #spliterator(Object, RangePolicy, Object, RangePolicy)
+     */
+    public Stream<Map.Entry<Key, Value>> parallelStream(Key key1, RangePolicy policy1,
+                                                      Key key2, RangePolicy policy2) {
+        return StreamSupport.stream(spliterator(key1, policy1, key2, policy2), true);
+    }
+
+    /**
+     * Returns a sequential stream over all the key-value pairs of the tree.
+     */
+    public Stream<Map.Entry<Key, Value>> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Returns a parallel stream over all the key-value pairs of the tree.
+     */
+    public Stream<Map.Entry<Key, Value>> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    /**
+     * Associates the specified value with the specified key in this tree. If
+     * the tree previously contained a association for the key, the old value is
+     * replaced.
+     *
+     * @param key
+     *            the key with which the specified value is to be associated
+     * @param value
+     *            the value to be associated with the specified key
+     * @return the previous value associated with the key, or {@code null} if
+     *         there was no association for the key
+     */
+    Value insert(Key key, Value value) {
+        if (recorder != null)
+            recorder.recordInsert(key, value);
+        if (workload != null)
+            workload.inserts++;
+        Value oldValue = root.insertValue(key, value);
+        if (filter != null && !found)
+            addToFilter(key);
+        if (expiries != null)
+            forgetExpiry(key);
+        if (changeStreams != null)
+            publish(found ? MutationEvent.Type.UPDATE : MutationEvent.Type.INSERT, key, oldValue, value);
+        return oldValue;
+    }
+
+    /**
+     * Associates the specified value with the specified key in this tree for
+     * the specified time. Once it expires, the association is no longer
+     * returned by {@link #search} and {@link #searchRange}, and it is removed
+     * from the tree by the next search of the key or by
+     * {@link #sweepExpired}.
+     *
+     * @param key
+     *            the key with which the specified value is to be associated
+     * @param value
+     *            the value to be associated with the specified key
+     * @param ttlMillis
+     *            the time to live of the association, in milliseconds
+     */
+    void insert(Key key, Value value, long ttlMillis) {
+        if (ttlMillis <= 0)
+            throw new IllegalArgumentException("Illegal time to live: " + ttlMillis);
+        if (recorder != null)
+            recorder.recordInsert(key, value, ttlMillis);
+        if (workload != null)
+            workload.inserts++;
+        Value oldValue = root.insertValue(key, value);
+        if (filter != null && !found)
+            addToFilter(key);
+        if (expiries == null) {
+            expiries = new TreeMap<Key, Long>(comparator);
+            expiryQueue = new PriorityQueue<Expiry>();
+        }
+        long deadline = System.currentTimeMillis() + ttlMillis;
+        expiries.put(key, deadline);
+        expiryQueue.add(new Expiry(deadline, key));
+        purgeExpiryQueueIfStale();
+        if (changeStreams != null)
+            publish(found ? MutationEvent.Type.UPDATE : MutationEvent.Type.INSERT, key, oldValue, value);
+    }
+
+    /**
+     * Removes the deadline of a key that was removed or replaced without a
+     * time to live. Its time stays in the expiry queue until the queue is
+     * purged.
+     */
+    private void forgetExpiry(Key key) {
+        if (expiries.remove(key) != null)
+            purgeExpiryQueueIfStale();
+    }
+
+    /**
+     * Purges the expiry queue once the stale times outnumber the deadlines.
+     */
+    private void purgeExpiryQueueIfStale() {
+        if (expiryQueue.size() > 2 * expiries.size() + MIN_EXPIRY_QUEUE_PURGE)
+            purgeExpiryQueue();
+    }
+
+    /**
+     * Rebuilds the expiry queue from the expiry map, dropping the stale
+     * times left by re-inserted and removed keys.
+     */
+    private void purgeExpiryQueue() {
+        PriorityQueue<Expiry> queue = new PriorityQueue<Expiry>(Math.max(1, expiries.size()));
+        for (Map.Entry<Key, Long> entry : expiries.entrySet())
+            queue.add(new Expiry(entry.getValue(), entry.getKey()));
+        expiryQueue = queue;
+    }
+
+    private boolean isExpired(Key key, long now) {
+        Long deadline = expiries.get(key);
+        return deadline != null && deadline <= now;
+    }
+
+    /**
+     * Removes up to {@code maxEntries} expired associations, oldest first.
+     * The expired keys are sorted, and the runs of expired keys that are
+     * adjacent in the tree are removed with one {@link #deleteRange} each, so
+     * that fully expired leaves are reclaimed without per-key rebalancing.
+     *
+     * @param maxEntries
+     *            the maximum number of associations to remove
+     * @return the number of associations removed
+     */
+    public int sweepExpired(int maxEntries) {
+        if (expiries == null)
+            return 0;
+        long now = System.currentTimeMillis();
+        List<Key> expired = new ArrayList<Key>();
+        while (expired.size() < maxEntries && !expiryQueue.isEmpty()
+                && expiryQueue.peek().deadline <= now) {
+            Expiry expiry = expiryQueue.poll();
+            Long deadline = expiries.get(expiry.key);
+            if (deadline != null && deadline == expiry.deadline) {
+                expiries.remove(expiry.key);
+                expired.add(expiry.key);
+            }
+        }
+        Collections.sort(expired, comparator);
+
+        /* Find the runs of expired keys with no live key in between, before modifying the tree */
+        List<Key> runs = new ArrayList<Key>();
+        int i = 0;
+        while (i < expired.size()) {
+            Key first = expired.get(i), last = first;
+            LeafNode node = findLeaf(first);
+            int index = node.lowerBound(first, RangePolicy.INCLUSIVE);
+            i++;
+            while (node != null) {
+                if (index >= node.keyNumber()) {
+                    node = node.next;
+                    index = 0;
+                } else if (compare(node.keys.get(index), last) <= 0) {
+                    index++;
+                } else if (i < expired.size() && compare(node.keys.get(index), expired.get(i)) == 0) {
+                    last = expired.get(i++);
+                    index++;
+                } else {
+                    break;
+                }
+            }
+            runs.add(first);
+            runs.add(last);
+        }
+        for (int r = 0; r < runs.size(); r += 2) {
+            if (runs.get(r) == runs.get(r + 1))
+                expire(runs.get(r));
+            else
+                expireRange(runs.get(r), RangePolicy.INCLUSIVE, runs.get(r + 1), RangePolicy.INCLUSIVE);
+        }
+        return expired.size();
+    }
+
+    /**
+     * Schedules {@link #sweepExpired} to run periodically on the specified
+     * executor. The tree is not thread-safe, so the executor must be the only
+     * thread accessing the tree, or the callers must synchronize on it.
+     *
+     * @param executor
+     *            the executor running the sweeper
+     * @param periodMillis
+     *            the period between two sweeps, in milliseconds
+     * @param maxEntriesPerRun
+     *            the maximum number of associations removed per sweep
+     * @return the future of the scheduled sweeper, to cancel it
+     */
+    public ScheduledFuture<?> scheduleExpirySweeper(ScheduledExecutorService executor, long periodMillis,
+                                                    final int maxEntriesPerRun) {
+        return executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BPlusTree.this) {
+                    sweepExpired(maxEntriesPerRun);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes the association for the specified key from this tree if present.
+     *
+     * @param key
+     *            the key whose association is to be removed from the tree
+     */
+    public void delete(Key key) {
+        remove(key);
+    }
+
+    /**
+     * Removes the association for the specified key from this tree if present,
+     * in a single descent.
+     *
+     * @param key
+     *            the key whose association is to be removed from the tree
+     * @return the previous value associated with the key, or {@code null} if
+     *         there was no association for the key
+     */
+    public Value remove(Key key) {
+        if (recorder != null)
+            recorder.recordDelete(key);
+        return expire(key);
+    }
+
+    /**
+     * Removes the association for the specified key like {@link #remove},
+     * without recording it: expired associations are removed by the tree,
+     * not by the workload.
+     */
+    private Value expire(Key key) {
+        if (workload != null)
+            workload.deletes++;
+        Value oldValue = root.deleteValue(key);
+        if (filter != null && found)
+            filter.remove(filterHash(key));
+        if (expiries != null)
+            forgetExpiry(key);
+        boolean removed = found;
+        if (compactionThreshold > 0)
+            compactIncrementally();
+        if (removed && changeStreams != null)
+            publish(MutationEvent.Type.DELETE, key, oldValue, null);
+        return oldValue;
+    }
+
+    /**
+     * Returned by a {@link SlotFunction} to leave the slot of the key as it
+     * is, or to remove the key.
+     */
+    private static final Object KEEP = new Object();
+    private static final Object REMOVE = new Object();
+
+    /**
+     * Computes the new content of the leaf slot of a key, for the operations
+     * reading and writing the slot in one descent.
+     */
+    private interface SlotFunction<Key, Value> {
+        /**
+         * Returns the new value of the key, {@link #KEEP} or {@link #REMOVE}.
+         */
+        Object apply(Key key, boolean present, Value oldValue);
+    }
+
+    /**
+     * Replaces the value associated with the specified key only if it is
+     * present. The value is replaced in its leaf slot, in a single descent and
+     * without changing the structure of the tree, and the time to live of
+     * the association, if any, is kept.
+     *
+     * @param key
+     *            the key whose associated value is to be replaced
+     * @param value
+     *            the value to be associated with the specified key
+     * @return the previous value associated with the key, or {@code null} if
+     *         there was no association for the key
+     */
+    public Value replace(Key key, final Value value) {
+        return computeSlot(key, new SlotFunction<Key, Value>() {
+            @Override
+            public Object apply(Key key, boolean present, Value oldValue) {
+                return present ? value : KEEP;
+            }
+        });
+    }
+
+    /**
+     * Associates the specified value with the specified key only if it is not
+     * present, in a single descent.
+     *
+     * @param key
+     *            the key with which the specified value is to be associated
+     * @param value
+     *            the value to be associated with the specified key
+     * @return the current value associated with the key, or {@code null} if
+     *         there was no association for the key and the value was inserted
+     */
+    public Value putIfAbsent(Key key, final Value value) {
+        return computeSlot(key, new SlotFunction<Key, Value>() {
+            @Override
+            public Object apply(Key key, boolean present, Value oldValue) {
+                return present ? KEEP : value;
+            }
+        });
+    }
+
+    /**
+     * Computes a new value for the specified key from its current value, or
+     * {@code null} if it is not present, in a single descent. As with
+     * {@link Map#compute}, a {@code null} result removes the association.
+     *
+     * @param key
+     *            the key with which the computed value is to be associated
+     * @param function
+     *            the function computing the new value from the key and the
+     *            current value
+     * @return the new value associated with the key, or {@code null} if none
+     */
+    public Value compute(Key key, final BiFunction<? super Key, ? super Value, ? extends Value> function) {
+        final List<Value> computed = new ArrayList<Value>(1);
+        computeSlot(key, new SlotFunction<Key, Value>() {
+            @Override
+            public Object apply(Key key, boolean present, Value oldValue) {
+                Value newValue = function.apply(key, oldValue);
+                computed.add(newValue);
+                return newValue != null ? newValue : present ? REMOVE : KEEP;
+            }
+        });
+        return computed.get(0);
+    }
+
+    /**
+     * Associates the specified value with the specified key if it is not
+     * present, or else the value computed from the current one and the
+     * specified one, in a single descent. As with {@link Map#merge}, a
+     * {@code null} result removes the association.
+     *
+     * @param key
+     *            the key with which the value is to be associated
+     * @param value
+     *            the value to be associated, or merged with the current one
+     * @param function
+     *            the function merging the current value with the specified
+     *            one
+     * @return the new value associated with the key, or {@code null} if none
+     */
+    public Value merge(Key key, final Value value,
+                       final BiFunction<? super Value, ? super Value, ? extends Value> function) {
+        final List<Value> computed = new ArrayList<Value>(1);
+        computeSlot(key, new SlotFunction<Key, Value>() {
+            @Override
+            public Object apply(Key key, boolean present, Value oldValue) {
+                Value newValue = present ? function.apply(oldValue, value) : value;
+                computed.add(newValue);
+                return newValue != null ? newValue : present ? REMOVE : KEEP;
+            }
+        });
+        return computed.get(0);
+    }
+
+    /**
+     * Applies the function to the leaf slot of the key, after removing the key
+     * if it expired.
+     *
+     * @return the previous value associated with the key
+     */
+    private Value computeSlot(Key key, SlotFunction<Key, Value> function) {
+        if (expiries != null && isExpired(key, System.currentTimeMillis()))
+            expire(key);
+        if (workload != null)
+            workload.inserts++;
+        int before = size;
+        Value oldValue = root.computeValue(key, function);
+        boolean present = found;
+        Object result = computed;
+        computed = null;
+        if (size < before) {
+            if (filter != null)
+                filter.remove(filterHash(key));
+            if (expiries != null)
+                forgetExpiry(key);
+            if (compactionThreshold > 0)
+                compactIncrementally();
+        } else if (size > before && filter != null) {
+            addToFilter(key);
+        }
+        if (recorder != null)
+            recordComputed(key, present, result);
+        if (changeStreams != null)
+            publishComputed(key, present, oldValue, result);
+        return oldValue;
+    }
+
+    /**
+     * Records the outcome of a slot function: a replacement or insertion of
+     * its new value, a deletion, or a search if it left the slot as it was.
+     */
+    @SuppressWarnings("unchecked")
+    private void recordComputed(Key key, boolean present, Object result) {
+        if (result == KEEP || (result == REMOVE && !present))
+            recorder.recordSearch(key);
+        else if (result == REMOVE)
+            recorder.recordDelete(key);
+        else if (present)
+            recorder.recordReplace(key, (Value) result);
+        else
+            recorder.recordInsert(key, (Value) result);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void publishComputed(Key key, boolean present, Value oldValue, Object result) {
+        if (result == KEEP || (result == REMOVE && !present))
+            return;
+        if (result == REMOVE)
+            publish(MutationEvent.Type.DELETE, key, oldValue, null);
+        else
+            publish(present ? MutationEvent.Type.UPDATE : MutationEvent.Type.INSERT, key, oldValue, (Value) result);
+    }
+
+    /**
+     * Removes all the associations for the keys specified by the range:
+     * {@code key1} and {@code key2}.
+     *
+     * <p>
+     * The subtrees lying entirely inside the range are dropped in one pass,
+     * and only the nodes on the two boundary paths are rebalanced, so the cost
+     * depends on the number of affected nodes rather than on the number of
+     * removed keys.
+     *
+     * @param key1
+     *            the start key of the range
+     * @param policy1
+     *            the range policy, {@link RangePolicy#EXCLUSIVE} or
+     *            {@link RangePolicy#INCLUSIVE}
+     * @param key2
+     *            the end end of the range
+     * @param policy2
+     *            the range policy, {@link RangePolicy#EXCLUSIVE} or
+     *            {@link RangePolicy#INCLUSIVE}
+     */
+    public void deleteRange(Key key1, RangePolicy policy1, Key key2, RangePolicy policy2) {
+        if (recorder != null)
+            recorder.recordDeleteRange(key1, policy1, key2, policy2);
+        expireRange(key1, policy1, key2, policy2);
+    }
+
+    /**
+     * Removes the associations of a range like {@link #deleteRange}, without
+     * recording it.
+     */
+    private void expireRange(Key key1, RangePolicy policy1, Key key2, RangePolicy policy2) {
+        if (compare(key1, key2) > 0)
+            return;
+        if (workload != null)
+            workload.deletes++;
+        List<Map.Entry<Key, Value>> removed = null;
+        if (changeStreams != null || (filter != null && filter.isCounting())) {
+            removed = root.getEntries(key1, policy1, key2, policy2);
+            size -= removed.size();
+        } else {
+            size -= countRange(key1, policy1, key2, policy2);
+        }
+        root.deleteRange(key1, policy1, key2, policy2);
+        collapseRoot();
+        if (removed != null && filter != null) {
+            for (Map.Entry<Key, Value> entry : removed)
+                filter.remove(filterHash(entry.getKey()));
+        }
+        if (expiries != null) {
+            expiries.subMap(key1, policy1 == RangePolicy.INCLUSIVE, key2, policy2 == RangePolicy.INCLUSIVE).clear();
+            purgeExpiryQueueIfStale();
+        }
+        if (compactionThreshold > 0)
+            compactIncrementally();
+        /* Publish last, so that a full stream failing cannot leave the tree half cleaned up */
+        if (removed != null && changeStreams != null) {
+            for (Map.Entry<Key, Value> entry : removed)
+                publish(MutationEvent.Type.DELETE, entry.getKey(), entry.getValue(), null);
+        }
+    }
+
+    /**
+     * Returns the number of keys in the specified range, by walking the
+     * leaves between its bounds.
+     */
+    private int countRange(Key key1, RangePolicy policy1, Key key2, RangePolicy policy2) {
+        int count = 0;
+        LeafNode node = findLeaf(key1);
+        int index = node.lowerBound(key1, policy1);
+        while (node != null) {
+            int to = node.upperBound(key2, policy2);
+            if (to < node.keyNumber())
+                return count + Math.max(0, to - index);
+            count += node.keyNumber() - index;
+            node = node.next;
+            index = 0;
+        }
+        return count;
+    }
+
+    /**
+     * Splits an overflowed root in two and hangs the new nodes under a new
+     * root - This makes the tree deeper.
+     */
+    private void splitRoot() {
+        splits++;
+        Node sibling = root.split();
+        InternalNode newRoot = new InternalNode();
+        newRoot.keys.add(sibling.getFirstLeafKey());
+        newRoot.children.add(root);
+        newRoot.children.add(sibling);
+        root = newRoot;
+    }
+
+    /**
+     * Replaces an internal root with a single child by that child, as many
+     * times as needed.
+     */
+    private void collapseRoot() {
+        while (root instanceof BPlusTree.InternalNode && root.keyNumber() == 0)
+            root = ((InternalNode) root).children.get(0);
+    }
+
+    /**
+     * Repacks the whole tree bottom-up so that the nodes are filled to the
+     * target fill, fixes the {@code next} links and separators, and trims the
+     * backing lists of the nodes.
+     *
+     * @param targetFill
+     *            the fraction of the node capacity to fill, between 0 and 1;
+     *            nodes are never filled under the underflow threshold
+     */
+    public void compact(double targetFill) {
+        checkTargetFill(targetFill);
+        List<List<InternalNode>> levels = new ArrayList<List<InternalNode>>();
+        List<Node> level = Collections.singletonList(root);
+        while (level.get(0) instanceof BPlusTree.InternalNode) {
+            List<InternalNode> internals = new ArrayList<InternalNode>(level.size());
+            List<Node> nextLevel = new ArrayList<Node>();
+            for (Node node : level) {
+                internals.add((InternalNode) node);
+                nextLevel.addAll(((InternalNode) node).children);
+            }
+            levels.add(internals);
+            level = nextLevel;
+        }
+        for (int i = levels.size() - 1; i >= 0; i--) {
+            for (InternalNode node : levels.get(i))
+                node.repackChildren(targetFill);
+        }
+        root.trim();
+        collapseRoot();
+    }
+
+    /**
+     * Compacts one bottom part of the tree: repacks the leaves under the
+     * parent of the leaf containing {@code from} to the target fill, then
+     * merges the underflowed nodes on the path to the root. Readers may use
+     * the tree between two steps.
+     *
+     * @param from
+     *            the key to resume from, or {@code null} to start from the
+     *            first leaf
+     * @param targetFill
+     *            the fraction of the leaf capacity to fill, between 0 and 1
+     * @return the key to resume from in the next step, or {@code null} if
+     *         the last leaves were compacted
+     */
+    public Key compactStep(Key from, double targetFill) {
+        checkTargetFill(targetFill);
+        if (!(root instanceof BPlusTree.InternalNode)) {
+            root.trim();
+            return null;
+        }
+        List<InternalNode> path = new ArrayList<InternalNode>();
+        List<Integer> indexes = new ArrayList<Integer>();
+        Key next = null;
+        InternalNode node = (InternalNode) root;
+        while (node.children.get(0) instanceof BPlusTree.InternalNode) {
+            int index = from == null ? 0 : node.childIndex(from);
+            if (index < node.keyNumber())
+                next = node.keys.get(index);
+            path.add(node);
+            indexes.add(index);
+            node = (InternalNode) node.children.get(index);
+        }
+        node.repackChildren(targetFill);
+        for (int i = path.size() - 1; i >= 0; i--)
+            path.get(i).repairChild(indexes.get(i));
+        collapseRoot();
+        return next;
+    }
+
+    /**
+     * Enables automatic compaction: every {@value #COMPACTION_CHECK_INTERVAL}
+     * deletes, the average leaf fill is sampled, and if it dropped below the
+     * threshold the following deletes each run one {@link #compactStep} until
+     * the whole tree is compacted.
+     *
+     * @param threshold
+     *            the average leaf fill that triggers a compaction, or 0 to
+     *            disable automatic compaction
+     * @param targetFill
+     *            the fraction of the leaf capacity to fill
+     */
+    public void setAutoCompaction(double threshold, double targetFill) {
+        if (threshold < 0 || threshold >= 1)
+            throw new IllegalArgumentException("Illegal compaction threshold: "
+                    + threshold);
+        checkTargetFill(targetFill);
+        this.compactionThreshold = threshold;
+        this.compactionTargetFill = targetFill;
+        this.compacting = false;
+        this.compactionCursor = null;
+    }
+
+    private void compactIncrementally() {
+        if (compacting) {
+            compactionCursor = compactStep(compactionCursor, compactionTargetFill);
+            compacting = compactionCursor != null;
+        } else if (++deletesSinceCompactionCheck >= COMPACTION_CHECK_INTERVAL) {
+            deletesSinceCompactionCheck = 0;
+            compacting = footprint(COMPACTION_SAMPLE_EVERY).getAverageLeafFill() < compactionThreshold;
+            compactionCursor = null;
+        }
+    }
+
+    private static void checkTargetFill(double targetFill) {
+        if (!(targetFill > 0 && targetFill <= 1))
+            throw new IllegalArgumentException("Illegal target fill: " + targetFill);
+    }
+
+    /**
+     * Replaces the values associated with the keys specified by the range:
+     * {@code key1} and {@code key2} with the result of the function applied
+     * to them. The values are replaced in place, so the structure of the tree
+     * does not change. Expired associations are skipped, as by
+     * {@link #searchRange}.
+     *
+     * @param key1
+     *            the start key of the range
+     * @param policy1
+     *            the range policy, {@link RangePolicy#EXCLUSIVE} or
+     *            {@link RangePolicy#INCLUSIVE}
+     * @param key2
+     *            the end end of the range
+     * @param policy2
+     *            the range policy, {@link RangePolicy#EXCLUSIVE} or
+     *            {@link RangePolicy#INCLUSIVE}
+     * @param function
+     *            the function computing the new value from the old one
+     * @return the number of values replaced
+     */
+    public int updateRange(Key key1, RangePolicy policy1, Key key2, RangePolicy policy2,
+                           Function<? super Value, ? extends Value> function) {
+        int updated = 0;
+        long now = expiries != null ? System.currentTimeMillis() : 0;
+        LeafNode node = findLeaf(key1);
+        int index = node.lowerBound(key1, policy1);
+        while (node != null) {
+            for (; index < node.keyNumber(); index++) {
+                int cmp2 = compare(node.keys.get(index), key2);
+                if ((policy2 == RangePolicy.EXCLUSIVE && cmp2 >= 0)
+                        || (policy2 == RangePolicy.INCLUSIVE && cmp2 > 0))
+                    return updated;
+                if (expiries != null && isExpired(node.keys.get(index), now))
+                    continue;
+                Value oldValue = node.values.get(index);
+                Value newValue = function.apply(oldValue);
+                node.values.set(index, newValue);
+                if (recorder != null)
+                    recorder.recordReplace(node.keys.get(index), newValue);
+                if (changeStreams != null)
+                    publish(MutationEvent.Type.UPDATE, node.keys.get(index), oldValue, newValue);
+                updated++;
+            }
+            node = node.next;
+            index = 0;
+        }
+        return updated;
+    }
+
+    /**
+     * Get all the data from the BPlusTree
+     */
+    public Map<Key, Value> getData() {
+        return root.getData(root.getFirstLeafKey(), RangePolicy.INCLUSIVE);
+    }
+
+    /**
+     * Returns all the key-value pairs of the tree in key order, by walking the
+     * leaves from the first one.
+     */
+    public List<Map.Entry<Key, Value>> getEntries() {
+        List<Map.Entry<Key, Value>> result = new ArrayList<Map.Entry<Key, Value>>();
+        for (LeafNode node = firstLeaf(); node != null; node = node.next) {
+            for (int i = 0; i < node.keys.size(); i++)
+                result.add(new AbstractMap.SimpleImmutableEntry<Key, Value>(node.keys.get(i),
+                        node.values.get(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Returns an iterator over the key-value pairs of the tree in key order.
+     * The iterator walks the leaves lazily, and must not be used after the
+     * tree is modified.
+     */
+    public Iterator<Map.Entry<Key, Value>> entryIterator() {
+        final LeafNode first = firstLeaf();
+        return new Iterator<Map.Entry<Key, Value>>() {
+            private LeafNode node = first;
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                while (node != null && index >= node.keys.size()) {
+                    node = node.next;
+                    index = 0;
+                }
+                return node != null;
+            }
+
+            @Override
+            public Map.Entry<Key, Value> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Map.Entry<Key, Value> entry = new AbstractMap.SimpleImmutableEntry<Key, Value>(
+                        node.keys.get(index), node.values.get(index));
+                index++;
+                return entry;
+            }
+        };
+    }
+
+    /**
+     * Replaces the contents of this tree with the specified key-value pairs,
+     * building the tree bottom-up instead of inserting the pairs one at a
+     * time. Leaves and internal nodes are filled to capacity, except the last
+     * ones of each level which are balanced with their left neighbour.
+     *
+     * <p>
+     * The pairs are consumed before the tree is replaced, so the iterator may
+     * read from this tree, for example to merge new pairs into its contents.
+     *
+     * @param entries
+     *            the key-value pairs, in strictly ascending key order
+     * @throws IllegalArgumentException
+     *             if the keys are not in strictly ascending order
+     */
+    public void bulkLoad(Iterator<? extends Map.Entry<? extends Key, ? extends Value>> entries) {
+        int leafBranchingFactor = nextLeafBranchingFactor();
+        List<Node> leaves = buildLeaves(entries, leafBranchingFactor);
+        int internalBranchingFactor = nextInternalBranchingFactor(leaves.size());
+        replaceContents(leaves, leafBranchingFactor, internalBranchingFactor, null);
+    }
+
+    /**
+     * Replaces the contents of this tree with the specified leaves, and the
+     * deadlines of their expiring keys, or {@code null} if none expires.
+     */
+    private void replaceContents(List<Node> leaves, int leafBranchingFactor, int internalBranchingFactor,
+                                 TreeMap<Key, Long> deadlines) {
+        root = buildLevels(leaves, internalBranchingFactor);
+        size = 0;
+        for (Node leaf : leaves)
+            size += leaf.keyNumber();
+        this.leafBranchingFactor = leafBranchingFactor;
+        this.internalBranchingFactor = internalBranchingFactor;
+        expiries = null;
+        expiryQueue = null;
+        if (deadlines != null && !deadlines.isEmpty()) {
+            expiries = deadlines;
+            purgeExpiryQueue();
+        }
+        if (filter != null)
+            fillFilter(filter.resize(2 * size));
+        if (changeStreams != null)
+            publish(MutationEvent.Type.RELOAD, null, null, null);
+    }
+
+    /**
+     * Rebuilds the tree bottom-up from its own leaves, with the node sizes
+     * recommended by the workload statistics if adaptive node sizing is
+     * enabled, or else with the current ones, packing the nodes as
+     * {@link #bulkLoad} does.
+     */
+    public void rebuild() {
+        int leafBranchingFactor = nextLeafBranchingFactor();
+        List<Node> leaves = buildLeaves(entryIterator(), leafBranchingFactor);
+        rebuild(leaves, leafBranchingFactor, nextInternalBranchingFactor(leaves.size()));
+    }
+
+    /**
+     * Rebuilds the tree bottom-up from its own leaves with the specified node
+     * sizes.
+     *
+     * @param leafBranchingFactor
+     *            the new capacity of the leaves
+     * @param internalBranchingFactor
+     *            the new capacity of the internal nodes
+     */
+    public void rebuild(int leafBranchingFactor, int internalBranchingFactor) {
+        checkBranchingFactor(leafBranchingFactor);
+        checkBranchingFactor(internalBranchingFactor);
+        rebuild(buildLeaves(entryIterator(), leafBranchingFactor), leafBranchingFactor, internalBranchingFactor);
+    }
+
+    private void rebuild(List<Node> leaves, int leafBranchingFactor, int internalBranchingFactor) {
+        root = buildLevels(leaves, internalBranchingFactor);
+        this.leafBranchingFactor = leafBranchingFactor;
+        this.internalBranchingFactor = internalBranchingFactor;
+    }
+
+    /**
+     * Returns the leaf branching factor of the next rebuild of the tree.
+     */
+    private int nextLeafBranchingFactor() {
+        if (workload == null || workload.getOperations() < WorkloadStatistics.MIN_OPERATIONS)
+            return leafBranchingFactor;
+        return workload.recommendLeafBranchingFactor();
+    }
+
+    /**
+     * Returns the internal branching factor of the next rebuild of the tree,
+     * once its leaves are built.
+     */
+    private int nextInternalBranchingFactor(int leaves) {
+        if (workload == null || workload.getOperations() < WorkloadStatistics.MIN_OPERATIONS)
+            return internalBranchingFactor;
+        return workload.recommendInternalBranchingFactor(leaves);
+    }
+
+    /**
+     * The magic number and version of the snapshot format.
+     */
+    private static final int SNAPSHOT_MAGIC = 0x42505453;
+    private static final int SNAPSHOT_VERSION = 3;
+
+    /**
+     * The flags preceding each pair of a snapshot, telling whether the
+     * deadline of the key follows. Snapshots of version 2 have no flags.
+     */
+    private static final int SNAPSHOT_PERMANENT = 0;
+    private static final int SNAPSHOT_EXPIRING = 1;
+
+    /**
+     * The snapshot flag set when blocks may be compressed.
+     */
+    private static final int SNAPSHOT_COMPRESSED = 1;
+
+    /**
+     * The number of raw bytes after which a snapshot block is closed.
+     */
+    private static final int SNAPSHOT_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * The largest raw snapshot block, so that a corrupted length cannot make
+     * the reader allocate more. A block only outgrows
+     * {@link #SNAPSHOT_BLOCK_SIZE} by its last pair.
+     */
+    static final int MAX_SNAPSHOT_BLOCK_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Writes the contents of this tree to a binary snapshot.
+     *
+     * <p>
+     * The snapshot is a header followed by blocks of length-prefixed
+     * key-value pairs in key order, each block optionally compressed, and a
+     * trailer with the number of pairs and a CRC32 checksum of the raw blocks.
+     * Each pair is preceded by a flag and, for a key inserted with a time to
+     * live, by its deadline in milliseconds since the epoch, so that it still
+     * expires at that time once read back. Expired pairs not yet removed are
+     * left out.
+     * Each block starts with its number of pairs, raw and stored lengths, the
+     * CRC32 of its stored bytes and the CRC32 of these fields, so that a
+     * corrupted block is detected before it is allocated or inflated. Only
+     * the leaves are written; {@link #readSnapshot} rebuilds the inner nodes
+     * bottom-up.
+     *
+     * @param out
+     *            the stream to write to, which is not closed
+     * @param keyCodec
+     *            the codec encoding the keys
+     * @param valueCodec
+     *            the codec encoding the values
+     * @param compress
+     *            whether to compress the blocks
+     * @throws IOException
+     *             if the stream cannot be written, or a pair is larger than
+     *             {@link #MAX_SNAPSHOT_BLOCK_SIZE} once encoded
+     */
+    public void writeSnapshot(OutputStream out, SnapshotCodec<? super Key> keyCodec,
+                              SnapshotCodec<? super Value> valueCodec, boolean compress) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out, SNAPSHOT_BLOCK_SIZE));
+        dataOut.writeInt(SNAPSHOT_MAGIC);
+        dataOut.writeByte(SNAPSHOT_VERSION);
+        dataOut.writeByte(compress ? SNAPSHOT_COMPRESSED : 0);
+
+        CRC32 checksum = new CRC32();
+        Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        ByteArrayOutputStream block = new ByteArrayOutputStream(SNAPSHOT_BLOCK_SIZE * 2);
+        DataOutputStream blockOut = new DataOutputStream(block);
+        long entries = 0;
+        int blockEntries = 0;
+        long now = System.currentTimeMillis();
+        /* The deadlines are in key order too: walk them along the leaves */
+        Iterator<Map.Entry<Key, Long>> deadlines = expiries == null
+                ? Collections.<Map.Entry<Key, Long>>emptyIterator() : expiries.entrySet().iterator();
+        Map.Entry<Key, Long> deadline = deadlines.hasNext() ? deadlines.next() : null;
+        try {
+            for (LeafNode node = firstLeaf(); node != null; node = node.next) {
+                for (int i = 0; i < node.keyNumber(); i++) {
+                    Key key = node.keys.get(i);
+                    while (deadline != null && compare(deadline.getKey(), key) < 0)
+                        deadline = deadlines.hasNext() ? deadlines.next() : null;
+                    if (deadline != null && compare(deadline.getKey(), key) == 0) {
+                        if (deadline.getValue() <= now)
+                            continue;
+                        blockOut.writeByte(SNAPSHOT_EXPIRING);
+                        blockOut.writeLong(deadline.getValue());
+                    } else {
+                        blockOut.writeByte(SNAPSHOT_PERMANENT);
+                    }
+                    keyCodec.write(blockOut, key);
+                    valueCodec.write(blockOut, node.values.get(i));
+                    blockEntries++;
+                    if (block.size() >= SNAPSHOT_BLOCK_SIZE) {
+                        writeSnapshotBlock(dataOut, block, blockEntries, checksum, deflater);
+                        entries += blockEntries;
+                        blockEntries = 0;
+                    }
+                }
+            }
+            if (blockEntries > 0) {
+                writeSnapshotBlock(dataOut, block, blockEntries, checksum, deflater);
+                entries += blockEntries;
+            }
+        } finally {
+            if (deflater != null)
+                deflater.end();
+        }
+        dataOut.writeInt(0);
+        dataOut.writeLong(entries);
+        dataOut.writeLong(checksum.getValue());
+        dataOut.flush();
+    }
+
+    /**
+     * Writes the contents of this tree to a binary snapshot at the current
+     * position of the channel.
+     *
+     * @see #writeSnapshot(OutputStream, SnapshotCodec, SnapshotCodec, boolean)
+     */
+    public void writeSnapshot(FileChannel channel, SnapshotCodec<? super Key> keyCodec,
+                              SnapshotCodec<? super Value> valueCodec, boolean compress) throws IOException {
+        writeSnapshot(Channels.newOutputStream(channel), keyCodec, valueCodec, compress);
+    }
+
+    private static void writeSnapshotBlock(DataOutputStream out, ByteArrayOutputStream block, int entries,
+                                           CRC32 checksum, Deflater deflater) throws IOException {
+        byte[] raw = block.toByteArray();
+        block.reset();
+        if (raw.length > MAX_SNAPSHOT_BLOCK_SIZE)
+            throw new IOException("Snapshot pair too large: " + raw.length + " bytes");
+        checksum.update(raw, 0, raw.length);
+        byte[] stored = raw;
+        int storedLength = raw.length;
+        if (deflater != null) {
+            byte[] compressed = new byte[raw.length];
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            int length = deflater.deflate(compressed);
+            if (deflater.finished() && length < raw.length) {
+                stored = compressed;
+                storedLength = length;
+            }
+        }
+        CRC32 storedChecksum = new CRC32();
+        storedChecksum.update(stored, 0, storedLength);
+        byte[] header = blockHeader(entries, raw.length, storedLength, (int) storedChecksum.getValue());
+        out.write(header);
+        out.writeInt(blockHeaderChecksum(header));
+        out.write(stored, 0, storedLength);
+    }
+
+    /**
+     * Returns the header of a snapshot block: its number of pairs, raw and
+     * stored lengths and the CRC32 of its stored bytes.
+     */
+    private static byte[] blockHeader(int entries, int rawLength, int storedLength, int storedChecksum) {
+        return ByteBuffer.allocate(16).putInt(entries).putInt(rawLength).putInt(storedLength)
+                .putInt(storedChecksum).array();
+    }
+
+    private static int blockHeaderChecksum(byte[] header) {
+        CRC32 checksum = new CRC32();
+        checksum.update(header, 0, header.length);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Replaces the contents of this tree with a snapshot written by
+     * {@link #writeSnapshot}. The pairs are streamed from the blocks straight
+     * into a bottom-up build, and the tree is only replaced once the
+     * checksum has been verified. The keys written with a deadline expire at
+     * that time, and are removed like any expired key if it has passed.
+     *
+     * @param in
+     *            the stream to read from, which is not closed
+     * @param keyCodec
+     *            the codec decoding the keys
+     * @param valueCodec
+     *            the codec decoding the values
+     * @throws IOException
+     *             if the snapshot cannot be read, or is corrupted
+     */
+    public void readSnapshot(InputStream in, final SnapshotCodec<? extends Key> keyCodec,
+                             final SnapshotCodec<? extends Value> valueCodec) throws IOException {
+        final DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in, SNAPSHOT_BLOCK_SIZE));
+        if (dataIn.readInt() != SNAPSHOT_MAGIC)
+            throw new IOException("Not a B+ tree snapshot");
+        final int version = dataIn.readUnsignedByte();
+        if (version < 2 || version > SNAPSHOT_VERSION)
+            throw new IOException("Unsupported snapshot version: " + version);
+        dataIn.readUnsignedByte();
+
+        final TreeMap<Key, Long> deadlines = new TreeMap<Key, Long>(comparator);
+        final CRC32 checksum = new CRC32();
+        final Inflater inflater = new Inflater();
+        final long[] entries = new long[1];
+        Iterator<Map.Entry<Key, Value>> it = new Iterator<Map.Entry<Key, Value>>() {
+            private DataInputStream block;
+            private int blockEntries;
+            private boolean finished;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while (blockEntries == 0 && !finished) {
+                        blockEntries = dataIn.readInt();
+                        if (blockEntries == 0)
+                            finished = true;
+                        else
+                            block = readBlock(blockEntries);
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                return !finished;
+            }
+
+            @Override
+            public Map.Entry<Key, Value> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                try {
+                    int flag = version < 3 ? SNAPSHOT_PERMANENT : block.readUnsignedByte();
+                    long deadline = 0;
+                    if (flag == SNAPSHOT_EXPIRING)
+                        deadline = block.readLong();
+                    else if (flag != SNAPSHOT_PERMANENT)
+                        throw new IOException("Corrupted snapshot pair");
+                    Key key = keyCodec.read(block);
+                    Value value = valueCodec.read(block);
+                    if (flag == SNAPSHOT_EXPIRING)
+                        deadlines.put(key, deadline);
+                    blockEntries--;
+                    entries[0]++;
+                    return new AbstractMap.SimpleImmutableEntry<Key, Value>(key, value);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+
+            /**
+             * Reads a block, checking its header before allocating it and
+             * its stored bytes before inflating them.
+             */
+            private DataInputStream readBlock(int entries) throws IOException {
+                int rawLength = dataIn.readInt();
+                int storedLength = dataIn.readInt();
+                int storedChecksum = dataIn.readInt();
+                byte[] header = blockHeader(entries, rawLength, storedLength, storedChecksum);
+                if (dataIn.readInt() != blockHeaderChecksum(header))
+                    throw new IOException("Corrupted snapshot block header");
+                if (entries < 0 || rawLength < 0 || rawLength > MAX_SNAPSHOT_BLOCK_SIZE || storedLength < 0
+                        || storedLength > rawLength)
+                    throw new IOException("Corrupted snapshot block");
+                byte[] stored = new byte[storedLength];
+                dataIn.readFully(stored);
+                CRC32 crc = new CRC32();
+                crc.update(stored, 0, storedLength);
+                if ((int) crc.getValue() != storedChecksum)
+                    throw new IOException("Corrupted snapshot block");
+                byte[] raw = stored;
+                if (storedLength < rawLength) {
+                    raw = new byte[rawLength];
+                    inflater.reset();
+                    inflater.setInput(stored);
+                    try {
+                        if (inflater.inflate(raw) != rawLength)
+                            throw new IOException("Corrupted snapshot block");
+                    } catch (DataFormatException ex) {
+                        throw new IOException("Corrupted snapshot block", ex);
+                    }
+                }
+                checksum.update(raw, 0, raw.length);
+                return new DataInputStream(new ByteArrayInputStream(raw));
+            }
+        };
+
+        int leafBranchingFactor = nextLeafBranchingFactor();
+        List<Node> leaves;
+        try {
+            leaves = buildLeaves(it, leafBranchingFactor);
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Corrupted snapshot", ex);
+        } finally {
+            inflater.end();
+        }
+        if (dataIn.readLong() != entries[0] || dataIn.readLong() != checksum.getValue())
+            throw new IOException("Snapshot checksum mismatch");
+        int internalBranchingFactor = nextInternalBranchingFactor(leaves.size());
+        replaceContents(leaves, leafBranchingFactor, internalBranchingFactor, deadlines);
+    }
+
+    /**
+     * Replaces the contents of this tree with a snapshot read from the
+     * current position of the channel.
+     *
+     * @see #readSnapshot(InputStream, SnapshotCodec, SnapshotCodec)
+     */
+    public void readSnapshot(FileChannel channel, SnapshotCodec<? extends Key> keyCodec,
+                             SnapshotCodec<? extends Value> valueCodec) throws IOException {
+        readSnapshot(Channels.newInputStream(channel), keyCodec, valueCodec);
+    }
+
+    /**
+     * Builds the linked leaves holding the specified pairs, full except the
+     * last one which is balanced with its left neighbour.
+     */
+    private List<Node> buildLeaves(Iterator<? extends Map.Entry<? extends Key, ? extends Value>> entries,
+                                   int leafBranchingFactor) {
+        int leafCapacity = leafBranchingFactor - 1;
+        List<Node> level = new ArrayList<Node>();
+        LeafNode leaf = null;
+        while (entries.hasNext()) {
+            Map.Entry<? extends Key, ? extends Value> entry = entries.next();
+            Key key = entry.getKey();
+            if (leaf != null && compare(leaf.keys.get(leaf.keyNumber() - 1), key) >= 0)
+                throw new IllegalArgumentException("Keys are not in strictly ascending order: "
+                        + key);
+            if (leaf == null || leaf.keyNumber() == leafCapacity) {
+                LeafNode sibling = new LeafNode();
+                if (leaf != null)
+                    leaf.link(sibling);
+                leaf = sibling;
+                level.add(leaf);
+            }
+            leaf.keys.add(key);
+            leaf.values.add(entry.getValue());
+        }
+        if (leaf != null && leaf.keyNumber() < leafBranchingFactor / 2 && level.size() > 1) {
+            LeafNode previous = (LeafNode) level.get(level.size() - 2);
+            int from = (previous.keyNumber() + leaf.keyNumber() + 1) / 2;
+            int to = previous.keyNumber();
+            leaf.keys.addAll(0, previous.keys.subList(from, to));
+            leaf.values.addAll(0, previous.values.subList(from, to));
+            previous.keys.subList(from, to).clear();
+            previous.values.subList(from, to).clear();
+        }
+        return level;
+    }
+
+    /**
+     * Builds the internal levels over the specified leaves, spreading the
+     * children evenly over as few nodes as possible.
+     *
+     * @return the root of the built tree
+     */
+    private Node buildLevels(List<Node> level, int internalBranchingFactor) {
+        if (level.isEmpty())
+            return new LeafNode();
+        while (level.size() > 1) {
+            int parentCount = (level.size() + internalBranchingFactor - 1) / internalBranchingFactor;
+            List<Node> parents = new ArrayList<Node>(parentCount);
+            int from = 0;
+            for (int i = 0; i < parentCount; i++) {
+                int to = from + (level.size() - from) / (parentCount - i);
+                InternalNode parent = new InternalNode();
+                parent.children.addAll(level.subList(from, to));
+                for (int j = from + 1; j < to; j++)
+                    parent.keys.add(level.get(j).getFirstLeafKey());
+                parents.add(parent);
+                from = to;
+            }
+            level = parents;
+        }
+        return level.get(0);
+    }
+
+    /**
+     * Returns the leftmost leaf of the tree.
+     */
+    private LeafNode firstLeaf() {
+        return root.getFirstLeaf();
+    }
+
+    /**
+     * Returns the leaf whose key range contains the specified key.
+     */
+    private LeafNode findLeaf(Key key) {
+        Node node = root;
+        while (node instanceof BPlusTree.InternalNode)
+            node = ((InternalNode) node).getChild(key);
+        return (LeafNode) node;
+    }
+
+    /**
+     * Get the First Leaf Key from the LeafNode
+     */
+    public Key getFirstLeafKey() {
+        return root.getFirstLeafKey();
+    }
+
+    /**
+     * Returns the number of levels of the tree, 1 if the root is a leaf.
+     */
+    public int getDepth() {
+        int depth = 1;
+        for (Node node = root; node instanceof BPlusTree.InternalNode; node = ((InternalNode) node).children.get(0))
+            depth++;
+        return depth;
+    }
+
+    /**
+     * Returns the number of nodes merged into a sibling on every level of the
+     * tree.
+     */
+    public int getFusions() {
+        return fusions;
+    }
+
+    /**
+     * Returns the number of nodes split on every level of the tree.
+     */
+    public int getSplits() {
+        return splits;
+    }
+
+    /**
+     * Checks the structure of the whole tree: the keys are strictly ordered
+     * within each node and lie between the separators of their parent, no
+     * node overflows, no node other than the root underflows, an internal root
+     * has at least two children, every leaf is at the same depth, and the
+     * {@code next} and {@code prev} links chain every leaf in key order.
+     *
+     * @throws IllegalStateException
+     *             describing the first violation found
+     */
+    public void checkInvariants() {
+        List<LeafNode> leaves = new ArrayList<LeafNode>();
+        checkInvariants(root, null, null, leaves);
+        for (int i = 0; i < leaves.size(); i++) {
+            LeafNode leaf = leaves.get(i);
+            if (leaf.next != (i + 1 < leaves.size() ? leaves.get(i + 1) : null))
+                throw new IllegalStateException("Broken next link after leaf " + leaf);
+            if (leaf.prev != (i > 0 ? leaves.get(i - 1) : null))
+                throw new IllegalStateException("Broken prev link before leaf " + leaf);
+        }
+    }
+
+    /**
+     * Checks the subtree rooted at the specified node, whose keys must lie in
+     * {@code [lower, upper)}, and adds its leaves in key order.
+     *
+     * @return the depth of the leaves below the node
+     */
+    private int checkInvariants(Node node, Key lower, Key upper, List<LeafNode> leaves) {
+        for (int i = 0; i < node.keyNumber(); i++) {
+            Key key = node.keys.get(i);
+            if (i > 0 && compare(node.keys.get(i - 1), key) >= 0)
+                throw new IllegalStateException("Keys out of order in node " + node);
+            if ((lower != null && compare(key, lower) < 0) || (upper != null && compare(key, upper) >= 0))
+                throw new IllegalStateException("Key " + key + " of node " + node
+                        + " outside of separators " + lower + " and " + upper);
+        }
+        if (node.isOverflow())
+            throw new IllegalStateException("Overflowed node " + node);
+        if (node != root && node.isUnderflow())
+            throw new IllegalStateException("Underflowed node " + node);
+
+        if (node instanceof BPlusTree.LeafNode) {
+            LeafNode leaf = (LeafNode) node;
+            if (leaf.values.size() != leaf.keyNumber())
+                throw new IllegalStateException("Leaf " + leaf + " holds " + leaf.values.size() + " values");
+            leaves.add(leaf);
+            return 1;
+        }
+        InternalNode internal = (InternalNode) node;
+        if (internal.children.size() != internal.keyNumber() + 1)
+            throw new IllegalStateException("Node " + node + " has " + internal.children.size() + " children");
+        if (node == root && internal.children.size() < 2)
+            throw new IllegalStateException("Internal root with a single child");
+        int depth = -1;
+        for (int i = 0; i < internal.children.size(); i++) {
+            int childDepth = checkInvariants(internal.children.get(i),
+                    i == 0 ? lower : internal.keys.get(i - 1),
+                    i == internal.keyNumber() ? upper : internal.keys.get(i), leaves);
+            if (depth >= 0 && childDepth != depth)
+                throw new IllegalStateException("Leaves at different depths under node " + node);
+            depth = childDepth;
+        }
+        return depth + 1;
+    }
+
+    /**
+     * Walks the tree and reports its shape and estimated memory footprint.
+     */
+    public TreeFootprint footprint() {
+        return footprint(1);
+    }
+
+    /**
+     * Walks the internal nodes of the tree but inspects only one leaf in
+     * {@code sampleEvery}, and reports the shape and estimated memory
+     * footprint of the tree with the leaf statistics extrapolated.
+     *
+     * @param sampleEvery
+     *            the sampling interval of the leaves, 1 to inspect them all
+     */
+    public TreeFootprint footprint(int sampleEvery) {
+        if (sampleEvery < 1)
+            throw new IllegalArgumentException("Illegal sampling interval: "
+                    + sampleEvery);
+        TreeFootprint footprint = new TreeFootprint(sampleEvery, normalizer != null);
+        List<Node> level = Collections.singletonList(root);
+        int leafIndex = 0;
+        while (!level.isEmpty()) {
+            footprint.nodesPerLevel.add(level.size());
+            List<Node> nextLevel = new ArrayList<Node>();
+            for (Node node : level) {
+                if (node instanceof BPlusTree.InternalNode) {
+                    InternalNode internal = (InternalNode) node;
+                    footprint.addInternalNode(internal.keyNumber(), capacity(internal.keys),
+                            internal.children.size(), capacity(internal.children));
+                    nextLevel.addAll(internal.children);
+                } else if (leafIndex++ % sampleEvery == 0) {
+                    LeafNode leaf = (LeafNode) node;
+                    long keyBytes = 0, valueBytes = 0;
+                    for (int i = 0; i < leaf.keyNumber(); i++) {
+                        keyBytes += TreeFootprint.estimateBytes(leaf.keys.get(i));
+                        valueBytes += TreeFootprint.estimateBytes(leaf.values.get(i));
+                    }
+                    int weight = Math.min(sampleEvery, level.size() - leafIndex + 1);
+                    footprint.addLeaf(leaf.keyNumber(), capacity(leaf.keys), capacity(leaf.values),
+                            leafBranchingFactor - 1, keyBytes, valueBytes, weight);
+                }
+            }
+            level = nextLevel;
+        }
+        return footprint;
+    }
+
+    public String toString() {
+        Queue<List<Node>> queue = new LinkedList<List<Node>>();
+        queue.add(Collections.singletonList(root));
+        StringBuilder sb = new StringBuilder();
+        while (!queue.isEmpty()) {
+            Queue<List<Node>> nextQueue = new LinkedList<List<Node>>();
+            while (!queue.isEmpty()) {
+                List<Node> nodes = queue.remove();
+                sb.append('{');
+                Iterator<Node> it = nodes.iterator();
+                while (it.hasNext()) {
+                    Node node = it.next();
+                    sb.append(node.toString());
+                    if (it.hasNext())
+                        sb.append(", ");
+                    if (node instanceof BPlusTree.InternalNode)
+                        nextQueue.add(((InternalNode) node).children);
+                }
+                sb.append('}');
+                if (!queue.isEmpty())
+                    sb.append(", ");
+                else
+                    sb.append('\n');
+            }
+            queue = nextQueue;
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Compares two keys using the comparator of this tree, or their natural
+     * ordering if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    int compare(Key key1, Key key2) {
+        return comparator == null ? ((Comparable<? super Key>) key1).compareTo(key2)
+                : comparator.compare(key1, key2);
+    }
+
+    /**
+     * Searches the sorted keys of a node for the specified key using the
+     * current {@link SearchStrategy}, with the same contract as
+     * {@link Collections#binarySearch(List, Object)}.
+     *
+     * <p>
+     * When a {@link KeyNormalizer} is set, the prefix of the searched key is
+     * computed once and each probe compares prefixes first; the full keys are
+     * only compared when the prefixes are equal.
+     */
+    int indexOf(List<Key> keys, Key key) {
+        switch (searchStrategy) {
+            case BRANCHLESS:
+                return branchlessSearch(keys, key);
+            case LINEAR:
+                if (keys.size() <= SearchStrategy.LINEAR_SEARCH_THRESHOLD)
+                    return linearSearch(keys, key);
+                return binarySearch(keys, key);
+            case INTERPOLATION:
+                if (comparator == null && key instanceof Number)
+                    return interpolationSearch(keys, key);
+                return binarySearch(keys, key);
+            default:
+                return binarySearch(keys, key);
+        }
+    }
+
+    private long prefix(Key key) {
+        return normalizer != null ? normalizer.prefix(key) : 0L;
+    }
+
+    /**
+     * Compares the key at the specified index of a node to the searched key,
+     * whose normalized prefix has already been computed. The prefix of the
+     * key of the node is read from the {@link KeyList} holding it.
+     */
+    @SuppressWarnings("unchecked")
+    private int compare(List<Key> keys, int index, Key key, long prefix) {
+        if (normalizer != null) {
+            long candidatePrefix = keys instanceof BPlusTree.KeyList ? ((KeyList) keys).prefixes[index]
+                    : normalizer.prefix(keys.get(index));
+            int cmp = Long.compareUnsigned(candidatePrefix, prefix);
+            if (cmp != 0)
+                return cmp;
+        }
+        return compare(keys.get(index), key);
+    }
+
+    /**
+     * Returns a new list for the keys of a node: a {@link KeyList} storing
+     * the prefixes if a normalizer is set, a {@link NodeList} otherwise.
+     */
+    private List<Key> newKeyList() {
+        return normalizer != null ? new KeyList() : new NodeList<Key>();
+    }
+
+    /**
+     * Returns the number of slots allocated by a list of a node.
+     */
+    @SuppressWarnings("unchecked")
+    private int capacity(List<?> list) {
+        return list instanceof BPlusTree.KeyList ? ((KeyList) list).capacity() : ((NodeList<?>) list).capacity();
+    }
+
+    /**
+     * The keys of a node in a tree with a {@link KeyNormalizer}, with the
+     * normalized prefix of each key stored next to it. The prefixes are
+     * computed once, when the keys are added, so that searches compare
+     * stored prefixes instead of normalizing every probed key. The arrays
+     * grow as those of an {@code ArrayList}.
+     */
+    private final class KeyList extends AbstractList<Key> implements RandomAccess {
+        private Object[] elements = EMPTY;
+        long[] prefixes = EMPTY_PREFIXES;
+        private int size;
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Key get(int index) {
+            if (index >= size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            return (Key) elements[index];
+        }
+
+        @Override
+        public Key set(int index, Key key) {
+            Key oldKey = get(index);
+            elements[index] = key;
+            prefixes[index] = normalizer.prefix(key);
+            return oldKey;
+        }
+
+        @Override
+        public void add(int index, Key key) {
+            if (index < 0 || index > size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            ensureCapacity(size + 1);
+            System.arraycopy(elements, index, elements, index + 1, size - index);
+            System.arraycopy(prefixes, index, prefixes, index + 1, size - index);
+            elements[index] = key;
+            prefixes[index] = normalizer.prefix(key);
+            size++;
+            modCount++;
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends Key> keys) {
+            return addAll(size, keys);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean addAll(int index, Collection<? extends Key> keys) {
+            if (index < 0 || index > size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            int count = keys.size();
+            if (count == 0)
+                return false;
+            ensureCapacity(size + count);
+            System.arraycopy(elements, index, elements, index + count, size - index);
+            System.arraycopy(prefixes, index, prefixes, index + count, size - index);
+            if (keys instanceof BPlusTree.KeyList) {
+                KeyList source = (KeyList) keys;
+                System.arraycopy(source.elements, 0, elements, index, count);
+                System.arraycopy(source.prefixes, 0, prefixes, index, count);
+            } else {
+                int i = index;
+                for (Key key : keys) {
+                    elements[i] = key;
+                    prefixes[i++] = normalizer.prefix(key);
+                }
+            }
+            size += count;
+            modCount++;
+            return true;
+        }
+
+        @Override
+        public Key remove(int index) {
+            Key oldKey = get(index);
+            removeRange(index, index + 1);
+            return oldKey;
+        }
+
+        @Override
+        protected void removeRange(int from, int to) {
+            System.arraycopy(elements, to, elements, from, size - to);
+            System.arraycopy(prefixes, to, prefixes, from, size - to);
+            int newSize = size - (to - from);
+            Arrays.fill(elements, newSize, size, null);
+            size = newSize;
+            modCount++;
+        }
+
+        @Override
+        public void clear() {
+            removeRange(0, size);
+        }
+
+        void trimToSize() {
+            if (size < elements.length) {
+                elements = Arrays.copyOf(elements, size);
+                prefixes = Arrays.copyOf(prefixes, size);
+            }
+        }
 
-    /**
-     * Removes the association for the specified key from this tree if present.
-     *
-     * @param key
-     *            the key whose association is to be removed from the tree
-     */
-    public void delete(Key key) {
-        root.deleteValue(key);
-    }
+        int capacity() {
+            return elements.length;
+        }
 
-    /**
-     * Get all the data from the BPlusTree
-     */
-    public Map<Key, Value> getData() {
-        return root.getData(root.getFirstLeafKey(), RangePolicy.INCLUSIVE);
+        private void ensureCapacity(int capacity) {
+            if (capacity <= elements.length)
+                return;
+            int newCapacity = Math.max(elements.length + (elements.length >> 1), Math.max(capacity, 10));
+            elements = Arrays.copyOf(elements, newCapacity);
+            prefixes = Arrays.copyOf(prefixes, newCapacity);
+        }
     }
 
     /**
-     * Get the First Leaf Key from the LeafNode
+     * The keys, values or children of a node. It grows as an
+     * {@code ArrayList}, but exposes its capacity so that
+     * {@link #footprint()} counts the slots actually allocated.
      */
-    public Key getFirstLeafKey() {
-        return root.getFirstLeafKey();
-    }
+    private static final class NodeList<E> extends AbstractList<E> implements RandomAccess {
+        private Object[] elements = EMPTY;
+        private int size;
 
-    public int getDepth() {
-        return root.depth;
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E get(int index) {
+            if (index >= size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            return (E) elements[index];
+        }
+
+        @Override
+        public E set(int index, E element) {
+            E oldElement = get(index);
+            elements[index] = element;
+            return oldElement;
+        }
+
+        @Override
+        public void add(int index, E element) {
+            if (index < 0 || index > size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            ensureCapacity(size + 1);
+            System.arraycopy(elements, index, elements, index + 1, size - index);
+            elements[index] = element;
+            size++;
+            modCount++;
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends E> elements) {
+            return addAll(size, elements);
+        }
+
+        @Override
+        public boolean addAll(int index, Collection<? extends E> added) {
+            if (index < 0 || index > size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            Object[] array = added.toArray();
+            int count = array.length;
+            if (count == 0)
+                return false;
+            ensureCapacity(size + count);
+            System.arraycopy(elements, index, elements, index + count, size - index);
+            System.arraycopy(array, 0, elements, index, count);
+            size += count;
+            modCount++;
+            return true;
+        }
+
+        @Override
+        public E remove(int index) {
+            E oldElement = get(index);
+            removeRange(index, index + 1);
+            return oldElement;
+        }
+
+        @Override
+        protected void removeRange(int from, int to) {
+            System.arraycopy(elements, to, elements, from, size - to);
+            int newSize = size - (to - from);
+            Arrays.fill(elements, newSize, size, null);
+            size = newSize;
+            modCount++;
+        }
+
+        @Override
+        public void clear() {
+            removeRange(0, size);
+        }
+
+        void trimToSize() {
+            if (size < elements.length)
+                elements = Arrays.copyOf(elements, size);
+        }
+
+        int capacity() {
+            return elements.length;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity <= elements.length)
+                return;
+            int newCapacity = Math.max(elements.length + (elements.length >> 1), Math.max(capacity, 10));
+            elements = Arrays.copyOf(elements, newCapacity);
+        }
     }
 
-    public int getFusions() {
-        return root.fusions;
+    int binarySearch(List<Key> keys, Key key) {
+        if (normalizer == null)
+            return Collections.binarySearch(keys, key, comparator);
+
+        long prefix = prefix(key);
+        int low = 0, high = keys.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(keys, mid, key, prefix);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
     }
 
-    public int getSplits() {
-        return root.splits;
+    private int branchlessSearch(List<Key> keys, Key key) {
+        int n = keys.size();
+        if (n == 0)
+            return -1;
+
+        long prefix = prefix(key);
+        int base = 0;
+        while (n > 1) {
+            int half = n >>> 1;
+            int cmp = compare(keys, base + half, key, prefix);
+            base = cmp <= 0 ? base + half : base;
+            n -= half;
+        }
+        int cmp = compare(keys, base, key, prefix);
+        if (cmp == 0)
+            return base;
+        return cmp < 0 ? -(base + 2) : -(base + 1);
     }
 
-    public String toString() {
-        Queue<List<Node>> queue = new LinkedList<List<Node>>();
-        queue.add(Collections.singletonList(root));
-        StringBuilder sb = new StringBuilder();
-        while (!queue.isEmpty()) {
-            Queue<List<Node>> nextQueue = new LinkedList<List<Node>>();
-            while (!queue.isEmpty()) {
-                List<Node> nodes = queue.remove();
-                sb.append('{');
-                Iterator<Node> it = nodes.iterator();
-                while (it.hasNext()) {
-                    Node node = it.next();
-                    sb.append(node.toString());
-                    if (it.hasNext())
-                        sb.append(", ");
-                    if (node instanceof BPlusTree.InternalNode)
-                        nextQueue.add(((InternalNode) node).children);
-                }
-                sb.append('}');
-                if (!queue.isEmpty())
-                    sb.append(", ");
-                else
-                    sb.append('\n');
-            }
-            queue = nextQueue;
+    int linearSearch(List<Key> keys, Key key) {
+        long prefix = prefix(key);
+        int size = keys.size();
+        for (int i = 0; i < size; i++) {
+            int cmp = compare(keys, i, key, prefix);
+            if (cmp == 0)
+                return i;
+            if (cmp > 0)
+                return -(i + 1);
         }
+        return -(size + 1);
+    }
 
-        return sb.toString();
+    private int interpolationSearch(List<Key> keys, Key key) {
+        double target = ((Number) key).doubleValue();
+        int low = 0, high = keys.size() - 1;
+        while (low <= high) {
+            double lowKey = ((Number) keys.get(low)).doubleValue();
+            double highKey = ((Number) keys.get(high)).doubleValue();
+            int mid;
+            if (target <= lowKey || target >= highKey)
+                mid = target <= lowKey ? low : high;
+            else
+                mid = low + (int) ((target - lowKey) / (highKey - lowKey) * (high - low));
+            int cmp = compare(keys.get(mid), key);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
     }
 
     private abstract class Node {
         List<Key> keys;
 
-        int splits;
-        int fusions;
-        int depth;
-
         int keyNumber() {
             return keys.size();
         }
 
-        abstract Value getValue(Key key);
+        @SuppressWarnings("unchecked")
+        void trimKeys() {
+            if (keys instanceof BPlusTree.KeyList)
+                ((KeyList) keys).trimToSize();
+            else
+                ((NodeList<Key>) keys).trimToSize();
+        }
+
+        /**
+         * Removes the key, and returns its old value and sets {@code found}.
+         */
+        abstract Value deleteValue(Key key);
 
-        abstract void deleteValue(Key key);
+        /**
+         * Associates the key with the value, and returns its old value and
+         * sets {@code found}.
+         */
+        abstract Value insertValue(Key key, Value value);
 
-        abstract void insertValue(Key key, Value value);
+        /**
+         * Applies the function to the slot of the key, inserting, replacing or
+         * removing its value, and returns its old value and sets
+         * {@code found}. Only insertions and removals change the structure.
+         */
+        abstract Value computeValue(Key key, SlotFunction<Key, Value> function);
 
         abstract Key getFirstLeafKey();
 
+        abstract LeafNode getFirstLeaf();
+
+        abstract LeafNode getLastLeaf();
+
+        abstract void deleteRange(Key key1, RangePolicy policy1, Key key2,
+                                  RangePolicy policy2);
+
         abstract List<Value> getRange(Key key1, RangePolicy policy1, Key key2,
                                   RangePolicy policy2);
 
+        abstract List<Map.Entry<Key, Value>> getEntries(Key key1, RangePolicy policy1,
+                                                    Key key2, RangePolicy policy2);
+
         abstract List<Key> getNext10Key(Key key1, RangePolicy policy);
 
         abstract Map<Key, Value> getData(Key key1, RangePolicy policy);
 
-        abstract void merge(Node sibling);
+        abstract void merge(Key separator, Node sibling);
 
         abstract Node split();
 
@@ -211,6 +2588,11 @@ public class BPlusTree<Key extends Comparable<? super Key>, Value> {
 
         abstract boolean isUnderflow();
 
+        /**
+         * Trims the backing lists of this node to their size.
+         */
+        abstract void trim();
+
         public String toString() {
             return keys.toString();
         }
@@ -220,57 +2602,50 @@ public class BPlusTree<Key extends Comparable<? super Key>, Value> {
         List<Node> children;
 
         InternalNode() {
-            this.keys = new ArrayList<Key>();
-            this.children = new ArrayList<Node>();
+            this.keys = newKeyList();
+            this.children = new NodeList<Node>();
         }
 
         @Override
-        Value getValue(Key key) {
-            return getChild(key).getValue(key);
+        Value deleteValue(Key key) {
+            int childIndex = childIndex(key);
+            Node child = children.get(childIndex);
+            Value oldValue = child.deleteValue(key);
+            if (child.isUnderflow())
+                mergeChild(childIndex);
+            return oldValue;
         }
 
         @Override
-        void deleteValue(Key key) {
-            Node child = getChild(key);
-            child.deleteValue(key);
+        Value computeValue(Key key, SlotFunction<Key, Value> function) {
+            int childIndex = childIndex(key);
+            Node child = children.get(childIndex);
+            Value oldValue = child.computeValue(key, function);
             if (child.isUnderflow()) {
-                Node childLeftSibling = getChildLeftSibling(key);
-                Node childRightSibling = getChildRightSibling(key);
-                Node left = childLeftSibling != null ? childLeftSibling : child;
-                Node right = childLeftSibling != null ? child : childRightSibling;
-                left.merge(right);
-                deleteChild(right.getFirstLeafKey());
-                fusions++;
-                if (left.isOverflow()) {
-                    Node sibling = left.split();
-                    insertChild(sibling.getFirstLeafKey(), sibling);
-                }
-                if (root.keyNumber() == 0)
-                    root = left;
+                mergeChild(childIndex);
+            } else if (child.isOverflow()) {
+                splits++;
+                Node sibling = child.split();
+                insertChild(sibling.getFirstLeafKey(), sibling);
+                if (this == root && isOverflow())
+                    splitRoot();
             }
+            return oldValue;
         }
 
         @Override
-        void insertValue(Key key, Value value) {
+        Value insertValue(Key key, Value value) {
             Node child = getChild(key);
-            child.insertValue(key, value);
+            Value oldValue = child.insertValue(key, value);
             if (child.isOverflow()) {
+                splits++;
                 Node sibling = child.split();
                 insertChild(sibling.getFirstLeafKey(), sibling);
             }
 
-            if (!root.isOverflow()) {
-                return;
-            }
-            splits++;
-            depth++;
-            Node sibling = split();
-            InternalNode newRoot = new InternalNode();
-            newRoot.keys.add(sibling.getFirstLeafKey());
-            newRoot.children.add(this);
-            newRoot.children.add(sibling);
-            root = newRoot;
-            /* Split an overflowed root in two and hang the new nodes under a new root - This makes the tree deeper */
+            if (root.isOverflow())
+                splitRoot();
+            return oldValue;
         }
 
         @Override
@@ -278,12 +2653,47 @@ public class BPlusTree<Key extends Comparable<? super Key>, Value> {
             return children.get(0).getFirstLeafKey();
         }
 
+        @Override
+        LeafNode getFirstLeaf() {
+            return children.get(0).getFirstLeaf();
+        }
+
+        @Override
+        LeafNode getLastLeaf() {
+            return children.get(children.size() - 1).getLastLeaf();
+        }
+
+        @Override
+        void deleteRange(Key key1, RangePolicy policy1, Key key2,
+                         RangePolicy policy2) {
+            int from = childIndex(key1), to = childIndex(key2);
+            if (from == to) {
+                children.get(from).deleteRange(key1, policy1, key2, policy2);
+                repairChild(from);
+                return;
+            }
+            /* Only the two boundary children are partially in the range - drop the ones in between */
+            children.get(from).deleteRange(key1, policy1, key2, policy2);
+            children.get(to).deleteRange(key1, policy1, key2, policy2);
+            children.subList(from + 1, to).clear();
+            keys.subList(from, to - 1).clear();
+            children.get(from).getLastLeaf().link(children.get(from + 1).getFirstLeaf());
+            repairChild(from + 1);
+            repairChild(Math.min(from, children.size() - 1));
+        }
+
         @Override
         List<Value> getRange(Key key1, RangePolicy policy1, Key key2,
                          RangePolicy policy2) {
             return getChild(key1).getRange(key1, policy1, key2, policy2);
         }
 
+        @Override
+        List<Map.Entry<Key, Value>> getEntries(Key key1, RangePolicy policy1,
+                                           Key key2, RangePolicy policy2) {
+            return getChild(key1).getEntries(key1, policy1, key2, policy2);
+        }
+
         @Override
         List<Key> getNext10Key(Key key1, RangePolicy policy) {
             return getChild(key1).getNext10Key(key1, policy);
@@ -295,10 +2705,10 @@ public class BPlusTree<Key extends Comparable<? super Key>, Value> {
         }
 
         @Override
-        void merge(Node sibling) {
+        void merge(Key separator, Node sibling) {
             @SuppressWarnings("unchecked")
             InternalNode node = (InternalNode) sibling;
-            keys.add(node.getFirstLeafKey());
+            keys.add(separator);
             keys.addAll(node.keys);
             children.addAll(node.children);
         }
@@ -318,30 +2728,135 @@ public class BPlusTree<Key extends Comparable<? super Key>, Value> {
 
         @Override
         boolean isOverflow() {
-            return children.size() > branchingFactor;
+            return children.size() > internalBranchingFactor;
         }
 
         @Override
         boolean isUnderflow() {
-            return children.size() < (branchingFactor + 1) / 2;
+            return children.size() < (internalBranchingFactor + 1) / 2;
         }
 
-        Node getChild(Key key) {
-            int loc = Collections.binarySearch(keys, key);
-            int childIndex = loc >= 0 ? loc + 1 : -loc - 1;
-            return children.get(childIndex);
+        @Override
+        void trim() {
+            trimKeys();
+            ((NodeList<Node>) children).trimToSize();
         }
 
-        void deleteChild(Key key) {
-            int loc = Collections.binarySearch(keys, key);
-            if (loc >= 0) {
-                keys.remove(loc);
-                children.remove(loc + 1);
+        /**
+         * Redistributes the entries of the leaf children, or the children of
+         * the internal children, over as few children as the target fill
+         * allows, reusing the leftmost children and dropping the others. The
+         * children are then trimmed.
+         */
+        void repackChildren(double targetFill) {
+            if (children.get(0) instanceof BPlusTree.InternalNode)
+                repackInternalChildren(targetFill);
+            else
+                repackLeafChildren(targetFill);
+            for (Node child : children)
+                child.trim();
+            trim();
+        }
+
+        private void repackLeafChildren(double targetFill) {
+            List<Key> allKeys = new ArrayList<Key>();
+            List<Value> allValues = new ArrayList<Value>();
+            for (Node child : children) {
+                allKeys.addAll(child.keys);
+                allValues.addAll(((LeafNode) child).values);
+            }
+            int count = repackCount(allKeys.size(), leafBranchingFactor - 1, leafBranchingFactor / 2, targetFill);
+            if (count >= children.size()) {
+                if (!hasUnderflowedChild())
+                    return;
+                count = children.size();
+            }
+
+            LeafNode after = ((LeafNode) children.get(children.size() - 1)).next;
+            fusions += children.size() - count;
+            children.subList(count, children.size()).clear();
+            keys.clear();
+            int from = 0;
+            for (int i = 0; i < count; i++) {
+                int to = from + (allKeys.size() - from) / (count - i);
+                LeafNode leaf = (LeafNode) children.get(i);
+                leaf.keys.clear();
+                leaf.keys.addAll(allKeys.subList(from, to));
+                leaf.values.clear();
+                leaf.values.addAll(allValues.subList(from, to));
+                leaf.link(i + 1 < count ? (LeafNode) children.get(i + 1) : after);
+                if (i > 0)
+                    keys.add(allKeys.get(from));
+                from = to;
             }
         }
 
+        private void repackInternalChildren(double targetFill) {
+            List<Node> grandchildren = new ArrayList<Node>();
+            List<Key> separators = new ArrayList<Key>();
+            for (int i = 0; i < children.size(); i++) {
+                InternalNode child = (InternalNode) children.get(i);
+                if (i > 0)
+                    separators.add(keys.get(i - 1));
+                separators.addAll(child.keys);
+                grandchildren.addAll(child.children);
+            }
+            int count = repackCount(grandchildren.size(), internalBranchingFactor, (internalBranchingFactor + 1) / 2, targetFill);
+            if (count >= children.size()) {
+                if (!hasUnderflowedChild())
+                    return;
+                count = children.size();
+            }
+
+            fusions += children.size() - count;
+            children.subList(count, children.size()).clear();
+            keys.clear();
+            int from = 0;
+            for (int i = 0; i < count; i++) {
+                int to = from + (grandchildren.size() - from) / (count - i);
+                InternalNode child = (InternalNode) children.get(i);
+                child.children.clear();
+                child.children.addAll(grandchildren.subList(from, to));
+                child.keys.clear();
+                child.keys.addAll(separators.subList(from, to - 1));
+                if (i > 0)
+                    keys.add(separators.get(from - 1));
+                from = to;
+            }
+        }
+
+        private boolean hasUnderflowedChild() {
+            for (Node child : children) {
+                if (child.isUnderflow())
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Returns the number of nodes to spread the specified number of
+         * entries over, so that they are filled to the target fill without
+         * underflowing.
+         */
+        private int repackCount(int total, int capacity, int minimum, double targetFill) {
+            int target = Math.max(minimum, Math.min(capacity, (int) (targetFill * capacity)));
+            int count = Math.max(1, (total + target - 1) / target);
+            if (count > 1 && total / count < minimum)
+                count = Math.max(1, total / minimum);
+            return count;
+        }
+
+        int childIndex(Key key) {
+            int loc = indexOf(keys, key);
+            return loc >= 0 ? loc + 1 : -loc - 1;
+        }
+
+        Node getChild(Key key) {
+            return children.get(childIndex(key));
+        }
+
         void insertChild(Key key, Node child) {
-            int loc = Collections.binarySearch(keys, key);
+            int loc = indexOf(keys, key);
             int childIndex = loc >= 0 ? loc + 1 : -loc - 1;
             if (loc >= 0) {
                 children.set(childIndex, child);
@@ -351,68 +2866,119 @@ public class BPlusTree<Key extends Comparable<? super Key>, Value> {
             }
         }
 
-        Node getChildLeftSibling(Key key) {
-            int loc = Collections.binarySearch(keys, key);
-            int childIndex = loc >= 0 ? loc + 1 : -loc - 1;
-            if (childIndex > 0)
-                return children.get(childIndex - 1);
-
-            return null;
+        /**
+         * Merges the child at the specified index with its siblings until it no
+         * longer underflows, or it is the only child left.
+         */
+        void repairChild(int childIndex) {
+            while (children.size() > 1 && children.get(childIndex).isUnderflow()) {
+                int rightIndex = childIndex > 0 ? childIndex : childIndex + 1;
+                mergeChild(childIndex);
+                childIndex = Math.min(rightIndex - 1, children.size() - 1);
+            }
         }
 
-        Node getChildRightSibling(Key key) {
-            int loc = Collections.binarySearch(keys, key);
-            int childIndex = loc >= 0 ? loc + 1 : -loc - 1;
-            if (childIndex < keyNumber())
-                return children.get(childIndex + 1);
-
-            return null;
+        /**
+         * Merges the underflowed child at the specified index with its left
+         * sibling, or its right sibling if it is the first child, and splits
+         * the result again if it overflows. The index of the child is the one
+         * found while descending, so the keys are not searched again.
+         */
+        void mergeChild(int childIndex) {
+            int rightIndex = childIndex > 0 ? childIndex : childIndex + 1;
+            if (rightIndex >= children.size())
+                return;
+            Node left = children.get(rightIndex - 1);
+            Node right = children.get(rightIndex);
+            Key separator = keys.remove(rightIndex - 1);
+            children.remove(rightIndex);
+            int junction = left instanceof BPlusTree.InternalNode
+                    ? ((InternalNode) left).children.size() : -1;
+            left.merge(separator, right);
+            fusions++;
+            if (junction > 0) {
+                /* A range delete may leave underflowed children on both sides of the junction */
+                InternalNode merged = (InternalNode) left;
+                merged.repairChild(junction);
+                merged.repairChild(Math.min(junction - 1, merged.children.size() - 1));
+            }
+            if (left.isOverflow()) {
+                splits++;
+                Node sibling = left.split();
+                keys.add(rightIndex - 1, sibling.getFirstLeafKey());
+                children.add(rightIndex, sibling);
+            }
+            if (this == root && keyNumber() == 0)
+                root = left;
         }
     }
 
     private class LeafNode extends Node {
         List<Value> values;
         LeafNode next;
+        LeafNode prev;
 
         LeafNode() {
-            keys = new ArrayList<Key>();
-            values = new ArrayList<Value>();
-        }
-
-        @Override
-        Value getValue(Key key) {
-            int loc = Collections.binarySearch(keys, key);
-            return loc >= 0 ? values.get(loc) : null;
+            keys = newKeyList();
+            values = new NodeList<Value>();
         }
 
         @Override
-        void deleteValue(Key key) {
-            int loc = Collections.binarySearch(keys, key);
-            if (loc >= 0) {
-                keys.remove(loc);
-                values.remove(loc);
-            }
+        Value deleteValue(Key key) {
+            int loc = indexOf(keys, key);
+            found = loc >= 0;
+            if (!found)
+                return null;
+            keys.remove(loc);
+            size--;
+            return values.remove(loc);
         }
 
         @Override
-        void insertValue(Key key, Value value) {
-            int loc = Collections.binarySearch(keys, key);
+        Value insertValue(Key key, Value value) {
+            int loc = indexOf(keys, key);
             int valueIndex = loc >= 0 ? loc : -loc - 1;
-            if (loc >= 0) {
-                values.set(valueIndex, value);
+            found = loc >= 0;
+            Value oldValue = null;
+            if (found) {
+                oldValue = values.set(valueIndex, value);
             } else {
                 keys.add(valueIndex, key);
                 values.add(valueIndex, value);
+                size++;
             }
-            if (root.isOverflow()) {
-                splits++;
-                Node sibling = split();
-                InternalNode newRoot = new InternalNode();
-                newRoot.keys.add(sibling.getFirstLeafKey());
-                newRoot.children.add(this);
-                newRoot.children.add(sibling);
-                root = newRoot;
+            if (root.isOverflow())
+                splitRoot();
+            return oldValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        Value computeValue(Key key, SlotFunction<Key, Value> function) {
+            int loc = indexOf(keys, key);
+            found = loc >= 0;
+            Value oldValue = found ? values.get(loc) : null;
+            Object result = function.apply(key, found, oldValue);
+            computed = result;
+            if (result == KEEP || (result == REMOVE && !found))
+                return oldValue;
+            if (result == REMOVE) {
+                keys.remove(loc);
+                values.remove(loc);
+                size--;
+                return oldValue;
+            }
+            Value newValue = (Value) result;
+            if (found) {
+                values.set(loc, newValue);
+                return oldValue;
             }
+            keys.add(-loc - 1, key);
+            values.add(-loc - 1, newValue);
+            size++;
+            if (this == root && isOverflow())
+                splitRoot();
+            return oldValue;
         }
 
         @Override
@@ -420,6 +2986,48 @@ public class BPlusTree<Key extends Comparable<? super Key>, Value> {
             return keys.get(0);
         }
 
+        @Override
+        LeafNode getFirstLeaf() {
+            return this;
+        }
+
+        @Override
+        LeafNode getLastLeaf() {
+            return this;
+        }
+
+        @Override
+        void deleteRange(Key key1, RangePolicy policy1, Key key2,
+                         RangePolicy policy2) {
+            int from = lowerBound(key1, policy1), to = upperBound(key2, policy2);
+            if (from < to) {
+                keys.subList(from, to).clear();
+                values.subList(from, to).clear();
+            }
+        }
+
+        /**
+         * Returns the index of the first key of this leaf in a range starting
+         * at {@code key1}.
+         */
+        int lowerBound(Key key1, RangePolicy policy1) {
+            int loc = indexOf(keys, key1);
+            if (loc < 0)
+                return -loc - 1;
+            return policy1 == RangePolicy.INCLUSIVE ? loc : loc + 1;
+        }
+
+        /**
+         * Returns the index following the last key of this leaf in a range
+         * ending at {@code key2}.
+         */
+        int upperBound(Key key2, RangePolicy policy2) {
+            int loc = indexOf(keys, key2);
+            if (loc < 0)
+                return -loc - 1;
+            return policy2 == RangePolicy.INCLUSIVE ? loc + 1 : loc;
+        }
+
         @Override
         List<Value> getRange(Key key1, RangePolicy policy1, Key key2,
                          RangePolicy policy2) {
@@ -431,8 +3039,8 @@ public class BPlusTree<Key extends Comparable<? super Key>, Value> {
                 while (kIt.hasNext()) {
                     Key key = kIt.next();
                     Value value = vIt.next();
-                    int cmp1 = key.compareTo(key1);
-                    int cmp2 = key.compareTo(key2);
+                    int cmp1 = compare(key, key1);
+                    int cmp2 = compare(key, key2);
                     if (((policy1 == RangePolicy.EXCLUSIVE && cmp1 > 0) || (policy1 == RangePolicy.INCLUSIVE && cmp1 >= 0))
                             && ((policy2 == RangePolicy.EXCLUSIVE && cmp2 < 0) || (policy2 == RangePolicy.INCLUSIVE && cmp2 <= 0)))
                         result.add(value);
@@ -445,6 +3053,28 @@ public class BPlusTree<Key extends Comparable<? super Key>, Value> {
             return result;
         }
 
+        @Override
+        List<Map.Entry<Key, Value>> getEntries(Key key1, RangePolicy policy1,
+                                           Key key2, RangePolicy policy2) {
+            List<Map.Entry<Key, Value>> result = new ArrayList<Map.Entry<Key, Value>>();
+            LeafNode node = this;
+            while (node != null) {
+                for (int i = 0; i < node.keys.size(); i++) {
+                    Key key = node.keys.get(i);
+                    int cmp1 = compare(key, key1);
+                    int cmp2 = compare(key, key2);
+                    if (((policy1 == RangePolicy.EXCLUSIVE && cmp1 > 0) || (policy1 == RangePolicy.INCLUSIVE && cmp1 >= 0))
+                            && ((policy2 == RangePolicy.EXCLUSIVE && cmp2 < 0) || (policy2 == RangePolicy.INCLUSIVE && cmp2 <= 0)))
+                        result.add(new AbstractMap.SimpleImmutableEntry<Key, Value>(key, node.values.get(i)));
+                    else if ((policy2 == RangePolicy.EXCLUSIVE && cmp2 >= 0)
+                            || (policy2 == RangePolicy.INCLUSIVE && cmp2 > 0))
+                        return result;
+                }
+                node = node.next;
+            }
+            return result;
+        }
+
         @Override
         List<Key> getNext10Key(Key key1, RangePolicy policy1) {
             List<Key> result = new LinkedList<Key>();
@@ -455,7 +3085,7 @@ public class BPlusTree<Key extends Comparable<? super Key>, Value> {
                 Iterator<Value> vIt = node.values.iterator();
                 while (kIt.hasNext()) {
                     Key key = kIt.next();
-                    int cmp1 = key.compareTo(key1);
+                    int cmp1 = compare(key, key1);
                     if (number == 10) {
                         return result;
                     } else if (((policy1 == RangePolicy.EXCLUSIVE && cmp1 > 0) || (policy1 == RangePolicy.INCLUSIVE && cmp1 >= 0))) {
@@ -480,7 +3110,7 @@ public class BPlusTree<Key extends Comparable<? super Key>, Value> {
                     Key key = kIt.next();
                     Value value = vIt.next();
 
-                    int cmp1 = key.compareTo(key1);
+                    int cmp1 = compare(key, key1);
 
                     if (((policy1 == RangePolicy.EXCLUSIVE && cmp1 > 0) || (policy1 == RangePolicy.INCLUSIVE && cmp1 >= 0))) {
                         result.put(key, value);
@@ -494,12 +3124,12 @@ public class BPlusTree<Key extends Comparable<? super Key>, Value> {
         }
 
         @Override
-        void merge(Node sibling) {
+        void merge(Key separator, Node sibling) {
             @SuppressWarnings("unchecked")
             LeafNode node = (LeafNode) sibling;
             keys.addAll(node.keys);
             values.addAll(node.values);
-            next = node.next;
+            link(node.next);
         }
 
         @Override
@@ -512,19 +3142,167 @@ public class BPlusTree<Key extends Comparable<? super Key>, Value> {
             keys.subList(from, to).clear();
             values.subList(from, to).clear();
 
-            sibling.next = next;
-            next = sibling;
+            sibling.link(next);
+            link(sibling);
             return sibling;
         }
 
+        /**
+         * Makes the specified leaf, which may be {@code null}, follow this one
+         * in the leaf chain.
+         */
+        void link(LeafNode next) {
+            this.next = next;
+            if (next != null)
+                next.prev = this;
+        }
+
         @Override
         boolean isOverflow() {
-            return values.size() > branchingFactor - 1;
+            return values.size() > leafBranchingFactor - 1;
         }
 
         @Override
         boolean isUnderflow() {
-            return values.size() < branchingFactor / 2;
+            return values.size() < leafBranchingFactor / 2;
+        }
+
+        @Override
+        void trim() {
+            trimKeys();
+            ((NodeList<Value>) values).trimToSize();
+        }
+    }
+
+    /**
+     * Spliterator over a key range, holding the subtrees still to be visited
+     * in key order. A {@code null} bound leaves that side of the range open.
+     */
+    private class RangeSpliterator implements Spliterator<Map.Entry<Key, Value>> {
+        private final Key key1;
+        private final RangePolicy policy1;
+        private final Key key2;
+        private final RangePolicy policy2;
+
+        /**
+         * The subtrees still to be visited, in key order.
+         */
+        private final Deque<Node> pending = new ArrayDeque<Node>();
+
+        /**
+         * The leaf being visited, and the index of its next entry.
+         */
+        private LeafNode leaf;
+        private int index;
+
+        RangeSpliterator(Node node, Key key1, RangePolicy policy1, Key key2, RangePolicy policy2) {
+            this.key1 = key1;
+            this.policy1 = policy1;
+            this.key2 = key2;
+            this.policy2 = policy2;
+            if (node != null)
+                pending.add(node);
+        }
+
+        /**
+         * Replaces an internal node at the front of the pending subtrees by its
+         * children overlapping the range.
+         */
+        private void expand(InternalNode node) {
+            int from = key1 == null ? 0 : node.childIndex(key1);
+            int to = key2 == null ? node.keyNumber() : node.childIndex(key2);
+            for (int i = to; i >= from; i--)
+                pending.addFirst(node.children.get(i));
+        }
+
+        private boolean beforeEnd(Key key) {
+            if (key2 == null)
+                return true;
+            int cmp2 = compare(key, key2);
+            return (policy2 == RangePolicy.EXCLUSIVE && cmp2 < 0) || (policy2 == RangePolicy.INCLUSIVE && cmp2 <= 0);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<Key, Value>> action) {
+            while (true) {
+                if (leaf != null) {
+                    if (index < leaf.keyNumber()) {
+                        Key key = leaf.keys.get(index);
+                        if (!beforeEnd(key)) {
+                            leaf = null;
+                            pending.clear();
+                            return false;
+                        }
+                        action.accept(new AbstractMap.SimpleImmutableEntry<Key, Value>(key,
+                                leaf.values.get(index++)));
+                        return true;
+                    }
+                    leaf = null;
+                }
+                Node node = pending.pollFirst();
+                if (node == null)
+                    return false;
+                while (node instanceof BPlusTree.InternalNode) {
+                    expand((InternalNode) node);
+                    node = pending.pollFirst();
+                }
+                leaf = (LeafNode) node;
+                index = key1 == null ? 0 : leaf.lowerBound(key1, policy1);
+            }
+        }
+
+        @Override
+        public Spliterator<Map.Entry<Key, Value>> trySplit() {
+            while (pending.size() == 1 && pending.peekFirst() instanceof BPlusTree.InternalNode)
+                expand((InternalNode) pending.pollFirst());
+            int half = pending.size() / 2;
+            if (half == 0 && (leaf == null || pending.isEmpty()))
+                return null;
+
+            RangeSpliterator prefix = new RangeSpliterator(null, key1, policy1, key2, policy2);
+            prefix.leaf = leaf;
+            prefix.index = index;
+            leaf = null;
+            for (int i = 0; i < half; i++)
+                prefix.pending.addLast(pending.pollFirst());
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            long size = leaf != null ? leaf.keyNumber() - index : 0;
+            for (Node node : pending) {
+                long nodeSize = 1;
+                while (node instanceof BPlusTree.InternalNode) {
+                    nodeSize *= ((InternalNode) node).children.size();
+                    node = ((InternalNode) node).children.get(0);
+                }
+                size += nodeSize * node.keyNumber();
+            }
+            return size;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | DISTINCT | NONNULL;
+        }
+    }
+
+    /**
+     * The expiry time of a key, ordered by time in the sweeper queue.
+     */
+    private class Expiry implements Comparable<Expiry> {
+        final long deadline;
+        final Key key;
+
+        Expiry(long deadline, Key key) {
+            this.deadline = deadline;
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(Expiry other) {
+            return Long.compare(deadline, other.deadline);
         }
     }
-}
\ No newline at end of file
+}
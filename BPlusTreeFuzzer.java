@@ -0,0 +1,648 @@
+package source;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Randomized differential harness for {@link BPlusTree}: runs long sequences of
+ * inserts, inserts with a time to live, deletes, single-descent updates, range
+ * deletes, range updates, full, incremental and automatic compactions,
+ * snapshot reloads, reads of corrupted snapshots and rebuilds with other node
+ * sizes against a tree and a {@link TreeMap}, compares every read, including
+ * scans of split spliterators, and checks the structure of the tree with
+ * {@link BPlusTree#checkInvariants()} as it goes. Each seed also picks the
+ * ordering of the keys, natural or reversed, a key normalizer for the natural
+ * ordering and the search strategy. The changes streamed by the
+ * tree are replayed on a mirror map, which must stay equal to the expected
+ * one. The operations are also recorded by a {@link WorkloadRecorder}, and
+ * the trace is replayed at the end on a fresh tree, which must end with the
+ * same entries, and on several threads, which must leave a consistent tree.
+ *
+ * <p>
+ * Usage: {@code BPlusTreeFuzzer [seed [operations [branchingFactor...]]]}.
+ * A failure reports the seed, branching factor and step that reproduce it,
+ * and exits with a non-zero status.
+ */
+public class BPlusTreeFuzzer {
+
+    static final int DEFAULT_OPERATIONS = 200000;
+
+    static final int[] DEFAULT_BRANCHING_FACTORS = {3, 4, 5, 8, 16, 128};
+
+    /**
+     * The number of operations between two structure checks.
+     */
+    static final int CHECK_INTERVAL = 64;
+
+    /**
+     * The number of threads of the concurrent trace replay.
+     */
+    static final int REPLAY_THREADS = 4;
+
+    /**
+     * The longest time to live, in milliseconds, of the keys inserted to
+     * expire during the run.
+     */
+    static final int EXPIRING_TTL = 3;
+
+    /**
+     * Normalizer identifying {@code Integer} keys in their natural ordering.
+     */
+    static final KeyNormalizer<Integer> EXACT_NORMALIZER = new KeyNormalizer<Integer>() {
+        @Override
+        public long prefix(Integer key) {
+            return (key ^ Integer.MIN_VALUE) & 0xFFFFFFFFL;
+        }
+    };
+
+    /**
+     * Normalizer dropping the low bits of {@code Integer} keys, so that
+     * neighbouring keys tie on their prefix and are compared in full.
+     */
+    static final KeyNormalizer<Integer> COARSE_NORMALIZER = new KeyNormalizer<Integer>() {
+        @Override
+        public long prefix(Integer key) {
+            return ((key ^ Integer.MIN_VALUE) & 0xFFFFFFFFL) >>> 4;
+        }
+    };
+
+    /**
+     * Hashes the keys for the membership filter, consistently with both
+     * orderings.
+     */
+    static final ToIntFunction<Integer> HASH = new ToIntFunction<Integer>() {
+        @Override
+        public int applyAsInt(Integer key) {
+            return key.hashCode();
+        }
+    };
+
+    private final Random random;
+    private final Comparator<Integer> comparator;
+    private final KeyNormalizer<Integer> normalizer;
+    private final BPlusTree.SearchStrategy searchStrategy;
+    private final BPlusTree<Integer, String> tree;
+    private final TreeMap<Integer, String> expected;
+    private final int branchingFactor;
+
+    private final ChangeStream<Integer, String> changes;
+    private final TreeMap<Integer, String> mirror;
+    private long sequence;
+
+    private final ByteArrayOutputStream trace = new ByteArrayOutputStream();
+    private final WorkloadRecorder<Integer, String> recorder;
+
+    /**
+     * The size of the key space, which grows and shrinks in phases so that
+     * the tree goes through long runs of splits and long runs of merges.
+     */
+    private int keySpace;
+
+    /**
+     * The key the next incremental compaction step resumes from.
+     */
+    private Integer compactionCursor;
+
+    private int step;
+    private String operation;
+
+    BPlusTreeFuzzer(long seed, int branchingFactor) {
+        this.random = new Random(seed);
+        this.branchingFactor = branchingFactor;
+        this.comparator = random.nextInt(3) == 0 ? Collections.<Integer>reverseOrder() : null;
+        this.normalizer = comparator != null || random.nextBoolean() ? null
+                : random.nextBoolean() ? EXACT_NORMALIZER : COARSE_NORMALIZER;
+        BPlusTree.SearchStrategy[] strategies = BPlusTree.SearchStrategy.values();
+        this.searchStrategy = strategies[random.nextInt(strategies.length)];
+        this.tree = newTree();
+        this.expected = new TreeMap<Integer, String>(comparator);
+        this.mirror = new TreeMap<Integer, String>(comparator);
+        this.changes = tree.openChangeStream(1 << 16, ChangeStream.BackpressurePolicy.FAIL);
+        try {
+            this.recorder = new WorkloadRecorder<Integer, String>(trace, SnapshotCodec.INTEGER,
+                    SnapshotCodec.STRING);
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+        tree.setWorkloadRecorder(recorder);
+    }
+
+    private BPlusTree<Integer, String> newTree() {
+        BPlusTree<Integer, String> tree = new BPlusTree<Integer, String>(branchingFactor, comparator, normalizer);
+        tree.setSearchStrategy(searchStrategy);
+        return tree;
+    }
+
+    String describeConfiguration() {
+        return (comparator == null ? "natural" : "reverse") + " order, "
+                + (normalizer == EXACT_NORMALIZER ? "exact" : normalizer == COARSE_NORMALIZER ? "coarse" : "no")
+                + " normalizer, " + searchStrategy + " search";
+    }
+
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_OPERATIONS;
+        int[] branchingFactors = DEFAULT_BRANCHING_FACTORS;
+        if (args.length > 2) {
+            branchingFactors = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++)
+                branchingFactors[i - 2] = Integer.parseInt(args[i]);
+        }
+
+        for (int branchingFactor : branchingFactors) {
+            BPlusTreeFuzzer fuzzer = new BPlusTreeFuzzer(seed, branchingFactor);
+            try {
+                fuzzer.run(operations);
+            } catch (RuntimeException | AssertionError ex) {
+                System.err.println("Failed with seed " + seed + ", branching factor " + branchingFactor
+                        + " at step " + fuzzer.step + " (" + fuzzer.operation + ")");
+                ex.printStackTrace();
+                System.exit(1);
+            }
+            System.out.println("Branching factor " + branchingFactor + " (" + fuzzer.describeConfiguration()
+                    + "): " + operations + " operations, " + fuzzer.expected.size() + " entries, depth " + fuzzer.tree.getDepth()
+                    + ", splits " + fuzzer.tree.getSplits() + ", fusions " + fuzzer.tree.getFusions());
+        }
+        System.out.println("Seed " + seed + " passed");
+    }
+
+    void run(int operations) {
+        for (step = 0; step < operations; step++) {
+            if (step % 20000 == 0)
+                keySpace = 16 + random.nextInt(random.nextBoolean() ? 256 : 65536);
+            int dice = random.nextInt(1000);
+            if (dice < 345)
+                insert();
+            else if (dice < 347)
+                insertExpiring();
+            else if (dice < 350)
+                insertWithTtl();
+            else if (dice < 600)
+                delete();
+            else if (dice < 700)
+                computeSlot();
+            else if (dice < 710)
+                deleteRange();
+            else if (dice < 720)
+                updateRange();
+            else if (dice < 722)
+                compact();
+            else if (dice < 723)
+                reload();
+            else if (dice < 724)
+                rebuild();
+            else if (dice < 725)
+                switchFilter();
+            else if (dice < 730)
+                compactStep();
+            else if (dice < 731)
+                switchAutoCompaction();
+            else if (dice < 760)
+                scan();
+            else
+                read();
+            replayChanges();
+            if (step % CHECK_INTERVAL == 0) {
+                tree.checkInvariants();
+                check(expected.size(), tree.size());
+                check(expected, mirror);
+                checkFilter();
+            }
+        }
+        tree.checkInvariants();
+        check(new ArrayList<Map.Entry<Integer, String>>(expected.entrySet()), tree.getEntries());
+        check(expected.size(), tree.size());
+        check(expected, mirror);
+        replayTrace();
+    }
+
+    /**
+     * Replays the recorded operations on a fresh tree, and checks that it
+     * ends with the expected entries.
+     */
+    private void replayTrace() {
+        operation = "trace replay";
+        try {
+            recorder.close();
+            tree.setWorkloadRecorder(null);
+            List<WorkloadReplay.Operation<Integer, String>> operations = WorkloadReplay.readTrace(
+                    new ByteArrayInputStream(trace.toByteArray()), SnapshotCodec.INTEGER, SnapshotCodec.STRING);
+            BPlusTree<Integer, String> replayed = newTree();
+            WorkloadReplay.replay(replayed, operations, 1, false);
+            /* The keys inserted with a few ms to live were removed by the tree, not by the trace */
+            Thread.sleep(EXPIRING_TTL + 1);
+            replayed.sweepExpired(Integer.MAX_VALUE);
+            replayed.checkInvariants();
+            check(new ArrayList<Map.Entry<Integer, String>>(expected.entrySet()), replayed.getEntries());
+
+            /* Interleaved by several threads, the result differs, but the tree must stay consistent */
+            operation = "trace replay on threads";
+            BPlusTree<Integer, String> shared = newTree();
+            WorkloadReplay.replay(shared, operations, REPLAY_THREADS, false);
+            shared.checkInvariants();
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        } catch (InterruptedException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private void switchFilter() {
+        int kind = random.nextInt(3);
+        operation = "switch filter " + kind;
+        tree.setMembershipFilter(kind == 0 ? 0 : 0.01, kind == 2, comparator != null ? HASH : null);
+    }
+
+    /**
+     * Checks that the membership filter, if any, lets every key through.
+     */
+    private void checkFilter() {
+        MembershipFilter filter = tree.getMembershipFilter();
+        if (filter == null)
+            return;
+        for (Integer key : expected.keySet()) {
+            if (!filter.mightContain(key.hashCode()))
+                throw new AssertionError("Filter rejects key " + key);
+        }
+    }
+
+    private void replayChanges() {
+        for (MutationEvent<Integer, String> event; (event = changes.poll()) != null; ) {
+            check(++sequence, event.getSequence());
+            switch (event.getType()) {
+                case INSERT:
+                    check(null, mirror.put(event.getKey(), event.getNewValue()));
+                    break;
+                case UPDATE:
+                    check(event.getOldValue(), mirror.put(event.getKey(), event.getNewValue()));
+                    break;
+                case DELETE:
+                    check(event.getOldValue(), mirror.remove(event.getKey()));
+                    break;
+                default:
+                    mirror.clear();
+                    for (Map.Entry<Integer, String> entry : tree.getEntries())
+                        mirror.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void insert() {
+        int key = randomKey();
+        String value = "v" + step;
+        operation = "insert " + key;
+        tree.insert(key, value);
+        expected.put(key, value);
+    }
+
+    /**
+     * Inserts a key with a long time to live, which only makes the tree
+     * track its expiry.
+     */
+    private void insertWithTtl() {
+        int key = randomKey();
+        String value = "t" + step;
+        operation = "insert with ttl " + key;
+        tree.insert(key, value, 3600000);
+        expected.put(key, value);
+    }
+
+    /**
+     * Inserts a key with a time to live of 1 ms and waits for it to expire:
+     * range reads and updates must skip it, then a search or a sweep removes
+     * it.
+     */
+    private void insertExpiring() {
+        int key = randomKey();
+        operation = "insert expiring " + key;
+        tree.insert(key, "e" + step, 1);
+        expected.remove(key);
+        /* The deadline is at most one millisecond after the insertion returns */
+        long inserted = System.currentTimeMillis();
+        while (System.currentTimeMillis() <= inserted + 1)
+            Thread.yield();
+        int[] range = range(key - 4, key + 4);
+        check(new ArrayList<Map.Entry<Integer, String>>(subMap(range[0], BPlusTree.RangePolicy.INCLUSIVE,
+                        range[1], BPlusTree.RangePolicy.INCLUSIVE).entrySet()),
+                tree.searchRangeEntries(range[0], BPlusTree.RangePolicy.INCLUSIVE, range[1],
+                        BPlusTree.RangePolicy.INCLUSIVE));
+        int dice = random.nextInt(3);
+        if (dice == 0) {
+            check(null, tree.search(key));
+        } else if (dice == 1) {
+            tree.sweepExpired(Integer.MAX_VALUE);
+        } else {
+            SortedMap<Integer, String> updatedEntries = subMap(range[0], BPlusTree.RangePolicy.INCLUSIVE, range[1],
+                    BPlusTree.RangePolicy.INCLUSIVE);
+            check(updatedEntries.size(), tree.updateRange(range[0], BPlusTree.RangePolicy.INCLUSIVE, range[1],
+                    BPlusTree.RangePolicy.INCLUSIVE, new Function<String, String>() {
+                        @Override
+                        public String apply(String value) {
+                            return value + "u";
+                        }
+                    }));
+            for (Map.Entry<Integer, String> entry : updatedEntries.entrySet())
+                entry.setValue(entry.getValue() + "u");
+            tree.sweepExpired(Integer.MAX_VALUE);
+        }
+    }
+
+    private void delete() {
+        int key = randomKey();
+        operation = "delete " + key;
+        tree.delete(key);
+        expected.remove(key);
+    }
+
+    private void computeSlot() {
+        final int key = randomKey();
+        final String value = "v" + step;
+        BiFunction<Integer, String, String> function = new BiFunction<Integer, String, String>() {
+            @Override
+            public String apply(Integer key, String oldValue) {
+                return oldValue == null || oldValue.length() < 8 ? oldValue + "c" : null;
+            }
+        };
+        BiFunction<String, String, String> merger = new BiFunction<String, String, String>() {
+            @Override
+            public String apply(String oldValue, String value) {
+                return oldValue.length() < 12 ? oldValue + value : null;
+            }
+        };
+        switch (random.nextInt(5)) {
+            case 0:
+                operation = "replace " + key;
+                check(expected.replace(key, value), tree.replace(key, value));
+                break;
+            case 1:
+                operation = "putIfAbsent " + key;
+                check(expected.putIfAbsent(key, value), tree.putIfAbsent(key, value));
+                break;
+            case 2:
+                operation = "compute " + key;
+                check(expected.compute(key, function), tree.compute(key, function));
+                break;
+            case 3:
+                operation = "merge " + key;
+                check(expected.merge(key, value, merger), tree.merge(key, value, merger));
+                break;
+            default:
+                operation = "remove " + key;
+                check(expected.remove(key), tree.remove(key));
+        }
+    }
+
+    private void deleteRange() {
+        int[] range = randomRange(keySpace / 4 + 1);
+        int key1 = range[0], key2 = range[1];
+        BPlusTree.RangePolicy policy1 = randomPolicy(), policy2 = randomPolicy();
+        operation = "deleteRange " + key1 + " " + policy1 + " " + key2 + " " + policy2;
+        tree.deleteRange(key1, policy1, key2, policy2);
+        subMap(key1, policy1, key2, policy2).clear();
+    }
+
+    private void updateRange() {
+        int[] range = randomRange(64);
+        int key1 = range[0], key2 = range[1];
+        BPlusTree.RangePolicy policy1 = randomPolicy(), policy2 = randomPolicy();
+        operation = "updateRange " + key1 + " " + policy1 + " " + key2 + " " + policy2;
+        Function<String, String> function = new Function<String, String>() {
+            @Override
+            public String apply(String value) {
+                return value + "u";
+            }
+        };
+        int updated = tree.updateRange(key1, policy1, key2, policy2, function);
+        SortedMap<Integer, String> updatedEntries = subMap(key1, policy1, key2, policy2);
+        check(updatedEntries.size(), updated);
+        for (Map.Entry<Integer, String> entry : updatedEntries.entrySet())
+            entry.setValue(function.apply(entry.getValue()));
+    }
+
+    private void compact() {
+        double targetFill = 0.5 + random.nextDouble() / 2;
+        operation = "compact " + targetFill;
+        tree.compact(targetFill);
+    }
+
+    /**
+     * Runs a few incremental compaction steps, resuming from where the last
+     * one stopped.
+     */
+    private void compactStep() {
+        double targetFill = 0.5 + random.nextDouble() / 2;
+        operation = "compactStep " + compactionCursor + " " + targetFill;
+        for (int i = random.nextInt(4); i >= 0; i--)
+            compactionCursor = tree.compactStep(compactionCursor, targetFill);
+    }
+
+    private void switchAutoCompaction() {
+        double threshold = random.nextBoolean() ? 0 : 0.3 + random.nextDouble() * 0.6;
+        double targetFill = 0.5 + random.nextDouble() / 2;
+        operation = "auto compaction " + threshold + " " + targetFill;
+        tree.setAutoCompaction(threshold, targetFill);
+    }
+
+    /**
+     * Scans a range or the whole tree with a spliterator, splitting it a few
+     * times: the prefixes split off and the rest must read the expected
+     * entries in order.
+     */
+    private void scan() {
+        int[] range = randomRange(keySpace / 2 + 1);
+        BPlusTree.RangePolicy policy1 = randomPolicy(), policy2 = randomPolicy();
+        boolean whole = random.nextInt(8) == 0;
+        operation = whole ? "spliterator" : "spliterator " + range[0] + " " + policy1 + " " + range[1] + " " + policy2;
+        Spliterator<Map.Entry<Integer, String>> spliterator = whole ? tree.spliterator()
+                : tree.spliterator(range[0], policy1, range[1], policy2);
+        List<Map.Entry<Integer, String>> scanned = new ArrayList<Map.Entry<Integer, String>>();
+        scan(spliterator, random.nextInt(4), scanned);
+        check(new ArrayList<Map.Entry<Integer, String>>(whole ? expected.entrySet()
+                : subMap(range[0], policy1, range[1], policy2).entrySet()), scanned);
+    }
+
+    private void scan(Spliterator<Map.Entry<Integer, String>> spliterator, int splits,
+                      final List<Map.Entry<Integer, String>> scanned) {
+        if (splits > 0) {
+            Spliterator<Map.Entry<Integer, String>> prefix = spliterator.trySplit();
+            if (prefix != null)
+                scan(prefix, splits - 1, scanned);
+            scan(spliterator, splits - 1, scanned);
+            return;
+        }
+        Consumer<Map.Entry<Integer, String>> action = new Consumer<Map.Entry<Integer, String>>() {
+            @Override
+            public void accept(Map.Entry<Integer, String> entry) {
+                scanned.add(new AbstractMap.SimpleImmutableEntry<Integer, String>(entry));
+            }
+        };
+        if (random.nextBoolean()) {
+            spliterator.forEachRemaining(action);
+        } else {
+            while (spliterator.tryAdvance(action)) {
+                /* One entry at a time */
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot and reads it back. A key about to expire is inserted
+     * first: whether it expires before the snapshot, which must leave it out,
+     * or after, which must keep its deadline, it must be gone once its
+     * deadline has passed.
+     */
+    private void reload() {
+        int key = randomKey();
+        long ttlMillis = 1 + random.nextInt(EXPIRING_TTL);
+        operation = "snapshot reload, " + key + " expiring in " + ttlMillis + " ms";
+        tree.insert(key, "s" + step, ttlMillis);
+        expected.remove(key);
+        long inserted = System.currentTimeMillis();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            tree.writeSnapshot(out, SnapshotCodec.INTEGER, SnapshotCodec.STRING, random.nextBoolean());
+            tree.readSnapshot(new ByteArrayInputStream(out.toByteArray()), SnapshotCodec.INTEGER,
+                    SnapshotCodec.STRING);
+            /* The mirror reloads the contents of the tree: do it before the sweep changes them */
+            replayChanges();
+            while (System.currentTimeMillis() <= inserted + ttlMillis)
+                Thread.yield();
+            tree.sweepExpired(Integer.MAX_VALUE);
+            check(new ArrayList<Map.Entry<Integer, String>>(expected.entrySet()), tree.getEntries());
+            readCorrupted(out.toByteArray());
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * Reads a copy of the snapshot with flipped bytes or truncated, which
+     * must fail with an {@link IOException} and leave the tree as it was, or
+     * load the same entries.
+     */
+    private void readCorrupted(byte[] snapshot) {
+        byte[] corrupted;
+        if (random.nextInt(4) == 0) {
+            corrupted = Arrays.copyOf(snapshot, random.nextInt(snapshot.length));
+        } else {
+            corrupted = snapshot.clone();
+            for (int flips = 1 + random.nextInt(3); flips > 0; flips--)
+                corrupted[random.nextInt(corrupted.length)] ^= 1 << random.nextInt(8);
+        }
+        try {
+            tree.readSnapshot(new ByteArrayInputStream(corrupted), SnapshotCodec.INTEGER, SnapshotCodec.STRING);
+        } catch (IOException ex) {
+            /* Detected */
+        }
+        replayChanges();
+        /* A successful read brings back the pair expired since the snapshot, with its deadline */
+        tree.sweepExpired(Integer.MAX_VALUE);
+        check(new ArrayList<Map.Entry<Integer, String>>(expected.entrySet()), tree.getEntries());
+    }
+
+    private void rebuild() {
+        int leafBranchingFactor = 3 + random.nextInt(2 * branchingFactor);
+        int internalBranchingFactor = 3 + random.nextInt(2 * branchingFactor);
+        operation = "rebuild " + leafBranchingFactor + " " + internalBranchingFactor;
+        tree.rebuild(leafBranchingFactor, internalBranchingFactor);
+    }
+
+    private void read() {
+        int[] range = randomRange(128);
+        int key1 = range[0], key2 = range[1];
+        BPlusTree.RangePolicy policy1 = randomPolicy(), policy2 = randomPolicy();
+        switch (random.nextInt(5)) {
+            case 0: {
+                operation = "search " + key1;
+                /* Every search for an absent key is either rejected or let through by the filter */
+                MembershipFilter filter = tree.getMembershipFilter();
+                long misses = filter == null ? 0 : filter.getRejections() + filter.getFalsePositives();
+                check(expected.get(key1), tree.search(key1));
+                if (filter != null)
+                    check(misses + (expected.containsKey(key1) ? 0 : 1),
+                            filter.getRejections() + filter.getFalsePositives());
+                break;
+            }
+            case 1:
+                operation = "searchRange " + key1 + " " + policy1 + " " + key2 + " " + policy2;
+                check(new ArrayList<String>(subMap(key1, policy1, key2, policy2).values()),
+                        new ArrayList<String>(tree.searchRange(key1, policy1, key2, policy2)));
+                break;
+            case 2:
+                operation = "searchRangeEntries " + key1 + " " + policy1 + " " + key2 + " " + policy2;
+                check(new ArrayList<Map.Entry<Integer, String>>(subMap(key1, policy1, key2, policy2).entrySet()),
+                        tree.searchRangeEntries(key1, policy1, key2, policy2));
+                break;
+            case 3:
+                operation = "searchRange " + key1 + " " + policy1;
+                List<Integer> next = new ArrayList<Integer>();
+                for (Integer key : expected.tailMap(key1, policy1 == BPlusTree.RangePolicy.INCLUSIVE).keySet()) {
+                    if (next.size() == 10)
+                        break;
+                    next.add(key);
+                }
+                check(next, new ArrayList<Integer>(tree.searchRange(key1, policy1)));
+                break;
+            default:
+                int limit = random.nextInt(32);
+                operation = "searchDescending " + key2 + " " + policy2 + " " + limit;
+                List<Map.Entry<Integer, String>> descending = new ArrayList<Map.Entry<Integer, String>>();
+                for (Map.Entry<Integer, String> entry
+                        : expected.headMap(key2, policy2 == BPlusTree.RangePolicy.INCLUSIVE).descendingMap().entrySet()) {
+                    if (descending.size() == limit)
+                        break;
+                    descending.add(entry);
+                }
+                check(descending, tree.searchDescending(key2, policy2, limit));
+        }
+    }
+
+    private SortedMap<Integer, String> subMap(int key1, BPlusTree.RangePolicy policy1, int key2,
+                                              BPlusTree.RangePolicy policy2) {
+        int cmp = compare(key1, key2);
+        if (cmp > 0 || (cmp == 0 && (policy1 == BPlusTree.RangePolicy.EXCLUSIVE
+                || policy2 == BPlusTree.RangePolicy.EXCLUSIVE)))
+            return new TreeMap<Integer, String>();
+        return expected.subMap(key1, policy1 == BPlusTree.RangePolicy.INCLUSIVE,
+                key2, policy2 == BPlusTree.RangePolicy.INCLUSIVE);
+    }
+
+    private int randomKey() {
+        return random.nextInt(keySpace);
+    }
+
+    /**
+     * Returns the bounds of a range of up to {@code span} keys from a random
+     * key, in the ordering of the tree.
+     */
+    private int[] randomRange(int span) {
+        int key = randomKey();
+        return range(key, key + random.nextInt(span));
+    }
+
+    /**
+     * Returns the specified bounds in the ordering of the tree.
+     */
+    private int[] range(int key1, int key2) {
+        return compare(key1, key2) <= 0 ? new int[] {key1, key2} : new int[] {key2, key1};
+    }
+
+    private int compare(int key1, int key2) {
+        return comparator == null ? Integer.compare(key1, key2) : comparator.compare(key1, key2);
+    }
+
+    private BPlusTree.RangePolicy randomPolicy() {
+        return random.nextBoolean() ? BPlusTree.RangePolicy.INCLUSIVE : BPlusTree.RangePolicy.EXCLUSIVE;
+    }
+
+    private static void check(Object expected, Object actual) {
+        if (expected == null ? actual != null : !expected.equals(actual))
+            throw new AssertionError("Expected " + expected + " but was " + actual);
+    }
+}
@@ -0,0 +1,170 @@
+package source;
+
+import java.util.*;
+import java.util.function.BiFunction;
+
+/**
+ * A B+ tree in which each key maps to a {@link PostingList} of values, so
+ * that several values can be stored under the same key without encoding them
+ * into composite keys.
+ */
+public class BPlusTreeMultimap<Key, Value> {
+
+    /**
+     * The tree mapping each key to its posting list.
+     */
+    private final BPlusTree<Key, PostingList<Value>> tree;
+
+    /**
+     * The number of key-value pairs in this multimap.
+     */
+    private int size;
+
+    public BPlusTreeMultimap() {
+        this(new BPlusTree<Key, PostingList<Value>>());
+    }
+
+    public BPlusTreeMultimap(int branchingFactor) {
+        this(new BPlusTree<Key, PostingList<Value>>(branchingFactor));
+    }
+
+    public BPlusTreeMultimap(int branchingFactor, Comparator<? super Key> comparator) {
+        this(new BPlusTree<Key, PostingList<Value>>(branchingFactor, comparator));
+    }
+
+    private BPlusTreeMultimap(BPlusTree<Key, PostingList<Value>> tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * Returns the number of key-value pairs in this multimap.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds the specified key-value pair to this multimap. A key may be
+     * associated with the same value several times.
+     *
+     * @param key
+     *            the key with which the value is to be associated
+     * @param value
+     *            the value to be added to the key
+     */
+    public void put(Key key, final Value value) {
+        /* Finds or creates the posting list in a single descent */
+        tree.compute(key, new BiFunction<Key, PostingList<Value>, PostingList<Value>>() {
+            @Override
+            public PostingList<Value> apply(Key key, PostingList<Value> postings) {
+                if (postings == null)
+                    postings = new PostingList<Value>();
+                postings.add(value);
+                return postings;
+            }
+        });
+        size++;
+    }
+
+    /**
+     * Returns the values associated with the specified key, in insertion
+     * order, or an empty list if there are none.
+     *
+     * @param key
+     *            the key whose values are to be returned
+     */
+    public List<Value> get(Key key) {
+        PostingList<Value> postings = tree.search(key);
+        if (postings == null)
+            return Collections.emptyList();
+        return postings.toList();
+    }
+
+    /**
+     * Returns an iterator over the values associated with the specified key,
+     * without copying them.
+     *
+     * @param key
+     *            the key whose values are to be iterated
+     */
+    public Iterator<Value> iterator(Key key) {
+        PostingList<Value> postings = tree.search(key);
+        if (postings == null)
+            return Collections.<Value>emptyList().iterator();
+        return postings.iterator();
+    }
+
+    /**
+     * Returns {@code true} if at least one value is associated with the
+     * specified key.
+     */
+    public boolean containsKey(Key key) {
+        return tree.search(key) != null;
+    }
+
+    /**
+     * Removes one occurrence of the specified key-value pair.
+     *
+     * @param key
+     *            the key of the pair to be removed
+     * @param value
+     *            the value of the pair to be removed
+     * @return {@code true} if the multimap contained the pair
+     */
+    public boolean remove(Key key, Value value) {
+        PostingList<Value> postings = tree.search(key);
+        if (postings == null || !postings.remove(value))
+            return false;
+        if (postings.isEmpty())
+            tree.delete(key);
+        size--;
+        return true;
+    }
+
+    /**
+     * Removes all the values associated with the specified key.
+     *
+     * @param key
+     *            the key whose values are to be removed
+     * @return the removed values, or an empty list if there were none
+     */
+    public List<Value> removeAll(Key key) {
+        PostingList<Value> postings = tree.search(key);
+        if (postings == null)
+            return Collections.emptyList();
+        tree.delete(key);
+        size -= postings.size();
+        return postings.toList();
+    }
+
+    /**
+     * Returns every key-value pair in the range specified by {@code key1} and
+     * {@code key2}, in key order and, for each key, in insertion order.
+     *
+     * @param key1
+     *            the start key of the range
+     * @param policy1
+     *            the range policy, {@link BPlusTree.RangePolicy#EXCLUSIVE} or
+     *            {@link BPlusTree.RangePolicy#INCLUSIVE}
+     * @param key2
+     *            the end end of the range
+     * @param policy2
+     *            the range policy, {@link BPlusTree.RangePolicy#EXCLUSIVE} or
+     *            {@link BPlusTree.RangePolicy#INCLUSIVE}
+     * @return the pairs whose keys are in the range
+     */
+    public List<Map.Entry<Key, Value>> searchRange(Key key1, BPlusTree.RangePolicy policy1,
+                                                Key key2, BPlusTree.RangePolicy policy2) {
+        List<Map.Entry<Key, Value>> result = new ArrayList<Map.Entry<Key, Value>>();
+        for (Map.Entry<Key, PostingList<Value>> entry
+                : tree.searchRangeEntries(key1, policy1, key2, policy2)) {
+            for (Value value : entry.getValue())
+                result.add(new AbstractMap.SimpleImmutableEntry<Key, Value>(entry.getKey(), value));
+        }
+        return result;
+    }
+
+    public String toString() {
+        return tree.toString();
+    }
+}
@@ -0,0 +1,151 @@
+package source;
+
+import java.util.*;
+
+/**
+ * Randomized differential harness for {@link BPlusTreeMultimap}: every
+ * operation is applied both to the multimap and to a {@link TreeMap} of
+ * {@link ArrayList}s, and their results must match. The keys are few and the
+ * values are drawn from a small set, so that posting lists hold duplicates and
+ * grow past {@link PostingList#INLINE_CAPACITY}, spill and shrink back.
+ *
+ * <p>
+ * Usage: {@code BPlusTreeMultimapFuzzer [seed [operations [branchingFactor...]]]}.
+ * A failure reports the seed and the operation that failed, and exits with a
+ * non-zero status.
+ */
+public class BPlusTreeMultimapFuzzer {
+
+    static final int DEFAULT_OPERATIONS = 200000;
+
+    static final int[] DEFAULT_BRANCHING_FACTORS = {3, 4, 8, 64};
+
+    static final int KEY_SPACE = 512;
+
+    static final int VALUE_SPACE = 8;
+
+    private final Random random;
+    private final BPlusTreeMultimap<Integer, String> multimap;
+    private final TreeMap<Integer, List<String>> expected;
+    private String operation;
+
+    BPlusTreeMultimapFuzzer(long seed, int branchingFactor) {
+        this.random = new Random(seed);
+        Comparator<Integer> comparator = random.nextInt(3) == 0 ? Collections.<Integer>reverseOrder() : null;
+        this.multimap = new BPlusTreeMultimap<Integer, String>(branchingFactor, comparator);
+        this.expected = new TreeMap<Integer, List<String>>(comparator);
+    }
+
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_OPERATIONS;
+        int[] branchingFactors = DEFAULT_BRANCHING_FACTORS;
+        if (args.length > 2) {
+            branchingFactors = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++)
+                branchingFactors[i - 2] = Integer.parseInt(args[i]);
+        }
+
+        for (int branchingFactor : branchingFactors) {
+            BPlusTreeMultimapFuzzer fuzzer = new BPlusTreeMultimapFuzzer(seed, branchingFactor);
+            int step = 0;
+            try {
+                for (; step < operations; step++)
+                    fuzzer.step();
+                fuzzer.checkAll();
+            } catch (RuntimeException | AssertionError ex) {
+                System.err.println("Failed with seed " + seed + ", branching factor " + branchingFactor
+                        + " at step " + step + " (" + fuzzer.operation + ")");
+                ex.printStackTrace();
+                System.exit(1);
+            }
+            System.out.println("Branching factor " + branchingFactor + " ("
+                    + (fuzzer.expected.comparator() == null ? "natural" : "reverse") + " order): " + operations
+                    + " operations, " + fuzzer.multimap.size() + " pairs");
+        }
+        System.out.println("Seed " + seed + " passed");
+    }
+
+    private void step() {
+        int key = random.nextInt(KEY_SPACE);
+        String value = "v" + random.nextInt(VALUE_SPACE);
+        int dice = random.nextInt(100);
+        if (dice < 45) {
+            operation = "put " + key + " " + value;
+            multimap.put(key, value);
+            List<String> values = expected.get(key);
+            if (values == null)
+                expected.put(key, values = new ArrayList<String>());
+            values.add(value);
+        } else if (dice < 70) {
+            operation = "remove " + key + " " + value;
+            List<String> values = expected.get(key);
+            boolean removed = values != null && values.remove(value);
+            if (values != null && values.isEmpty())
+                expected.remove(key);
+            check(removed, multimap.remove(key, value));
+        } else if (dice < 73) {
+            operation = "removeAll " + key;
+            List<String> values = expected.remove(key);
+            check(values == null ? Collections.<String>emptyList() : values, multimap.removeAll(key));
+        } else if (dice < 85) {
+            operation = "get " + key;
+            List<String> values = expected.get(key);
+            check(values == null ? Collections.<String>emptyList() : values, multimap.get(key));
+            check(values != null, multimap.containsKey(key));
+            List<String> iterated = new ArrayList<String>();
+            for (Iterator<String> it = multimap.iterator(key); it.hasNext(); )
+                iterated.add(it.next());
+            check(values == null ? Collections.<String>emptyList() : values, iterated);
+        } else {
+            int key2 = random.nextInt(KEY_SPACE);
+            if (expected.comparator() == null ? key > key2 : key < key2) {
+                int swap = key;
+                key = key2;
+                key2 = swap;
+            }
+            BPlusTree.RangePolicy policy1 = randomPolicy(), policy2 = randomPolicy();
+            operation = "searchRange " + key + " " + policy1 + " " + key2 + " " + policy2;
+            SortedMap<Integer, List<String>> range = key == key2 && (policy1 == BPlusTree.RangePolicy.EXCLUSIVE
+                    || policy2 == BPlusTree.RangePolicy.EXCLUSIVE) ? new TreeMap<Integer, List<String>>()
+                    : expected.subMap(key, policy1 == BPlusTree.RangePolicy.INCLUSIVE, key2,
+                            policy2 == BPlusTree.RangePolicy.INCLUSIVE);
+            check(pairs(range), multimap.searchRange(key, policy1, key2, policy2));
+        }
+        check(size(), multimap.size());
+    }
+
+    private void checkAll() {
+        operation = "final check";
+        check(size(), multimap.size());
+        int first = expected.comparator() == null ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+        int last = expected.comparator() == null ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+        check(pairs(expected), multimap.searchRange(first, BPlusTree.RangePolicy.INCLUSIVE, last,
+                BPlusTree.RangePolicy.INCLUSIVE));
+    }
+
+    private int size() {
+        int size = 0;
+        for (List<String> values : expected.values())
+            size += values.size();
+        return size;
+    }
+
+    private static List<Map.Entry<Integer, String>> pairs(SortedMap<Integer, List<String>> map) {
+        List<Map.Entry<Integer, String>> pairs = new ArrayList<Map.Entry<Integer, String>>();
+        for (Map.Entry<Integer, List<String>> entry : map.entrySet()) {
+            for (String value : entry.getValue())
+                pairs.add(new AbstractMap.SimpleImmutableEntry<Integer, String>(entry.getKey(), value));
+        }
+        return pairs;
+    }
+
+    private BPlusTree.RangePolicy randomPolicy() {
+        return random.nextBoolean() ? BPlusTree.RangePolicy.INCLUSIVE : BPlusTree.RangePolicy.EXCLUSIVE;
+    }
+
+    private static void check(Object expected, Object actual) {
+        if (expected == null ? actual != null : !expected.equals(actual))
+            throw new AssertionError("Expected " + expected + " but was " + actual);
+    }
+}
@@ -23,9 +23,7 @@ import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
 
 import java.io.*;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Created by Shubham on 11/09/18.
@@ -39,7 +37,7 @@ public class BPlusTreeUI extends Application {
 
     /* File - */
     File getFile;
-    File finalFile;
+    CatalogStore catalogStore;
 
     /* BPlusTreeUI Body Box */
     VBox mainBodyBox;
@@ -85,6 +83,8 @@ public class BPlusTreeUI extends Application {
 
         /* The B-tree will allow between 2 and 4 keys per index node. Each leaf node can store 16 records. */
         final BPlusTree<String, String> bPlusTree = new BPlusTree<String, String>(4);
+        /* Searches for unknown part IDs are answered by the filter; parts are deleted, so it keeps counters */
+        bPlusTree.setMembershipFilter(0.01, true);
 
         /* BPlusTreeUI Layout */
         final BorderPane borderPane = new BorderPane();
@@ -110,18 +110,9 @@ public class BPlusTreeUI extends Application {
                 getFile = fileChooser.showOpenDialog(primaryStage);
                 if (getFile != null) {
                     try {
-                        // Read the File
-                        BufferedReader bufferedReader = new BufferedReader(new FileReader(getFile));
-                        String data;
-                        while ((data = bufferedReader.readLine()) != null) {
-                            // Columns
-                            // 1-7 Part ID - Note: It was from 0 to 7
-                            // 16-80 Part Description
-                            // Parse the file and loading data from the flat-file into a B+-tree.
-                            String partId = data.substring(0, 7).trim();
-                            String partDescription = data.substring(15).trim();
-                            bPlusTree.insert(partId, partDescription);
-                        }
+                        // Read the File - the catalog and the edits saved since it was last compacted
+                        catalogStore = new CatalogStore(getFile);
+                        catalogStore.load(bPlusTree);
 
                         /* Get First Leaf Key */
                         statusHeader.setText("First Leaf Key");
@@ -291,10 +282,18 @@ public class BPlusTreeUI extends Application {
                         String partId = insertKeyField.getText();
                         String partDescription = insertValueField.getText();
 
+                        if (!CatalogStore.isValidPartId(partId)) {
+                            statusHeader.setText("Insertion Failed");
+                            statusBody.setText("Part ID: " + partId + " - LONGER THAN 7 CHARACTERS");
+                            return;
+                        }
+
                         statusHeader.setText("Insertion Completed");
                         statusBody.setText("Part Description: " + partDescription);
 
                         bPlusTree.insert(partId, partDescription);
+                        if (catalogStore != null)
+                            catalogStore.recordInsert(partId, partDescription);
 
                         /* Search */
                         searchField.setText(partId);
@@ -341,11 +340,10 @@ public class BPlusTreeUI extends Application {
                         String searchKey = searchField.getText();
                         String updateValue = updateValueField.getText();
 
-                        if (bPlusTree.search(searchKey) != null) {
+                        if (bPlusTree.replace(searchKey, updateValue) != null) { // Update Value in place
                             /* Update Status */
-                            bPlusTree.delete(searchKey); // Delete
-
-                            bPlusTree.insert(searchKey, updateValue); // Update Value
+                            if (catalogStore != null)
+                                catalogStore.recordInsert(searchKey, updateValue);
 
                             statusHeader.setText("Updated");
                             statusBody.setText("Part Description: " + updateValue);
@@ -398,9 +396,10 @@ public class BPlusTreeUI extends Application {
                     public void handle(ActionEvent e) {
                         String deleteKey = deleteField.getText();
 
-                        if (bPlusTree.search(deleteKey) != null) {
+                        if (bPlusTree.remove(deleteKey) != null) {
                             /* Update Status */
-                            bPlusTree.delete(deleteKey);
+                            if (catalogStore != null)
+                                catalogStore.recordDelete(deleteKey);
 
                             statusHeader.setText("Deleted");
                             statusBody.setText("Part ID: " + deleteKey);
@@ -519,26 +518,10 @@ public class BPlusTreeUI extends Application {
         saveBtn.setOnAction(new EventHandler<ActionEvent>() {
             @Override
             public void handle(ActionEvent e) {
-                /* Save the File */
-                finalFile = new File(getFile.getAbsolutePath());
-                getFile.delete();
-
+                /* Save the File - append the edits, the catalog is compacted in the background */
                 try {
-                    BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(finalFile, true));
-
-                    Map<String, String> data = bPlusTree.getData();
-                    Iterator it = data.entrySet().iterator();
-                    while (it.hasNext()) {
-                        Map.Entry pair = (Map.Entry) it.next();
-                        bufferedWriter.write(pair.getKey().toString()
-                                + "                             ".substring(8, 16)
-                                + pair.getValue().toString());
-                        bufferedWriter.newLine();
-                        it.remove(); // avoids a ConcurrentModificationException
-                    }
-
-                    bufferedWriter.flush();
-                    bufferedWriter.close();
+                    if (catalogStore != null)
+                        catalogStore.save(bPlusTree);
 
                     /* Close the Dialog */
                     dialogWindow.close();
@@ -0,0 +1,538 @@
+package source;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Persists the parts catalog as a sorted fixed-width base file plus a delta
+ * log of the edits made since the base was written.
+ *
+ * <p>
+ * Edits are recorded in memory as they happen and {@link #save} only appends
+ * them to the delta log, so a save costs time proportional to the edits. Once
+ * the delta log grows past the compaction threshold, a background thread
+ * merges the sorted base file with the edits of the delta log into a
+ * temporary file and atomically renames it over the base, so the base file is
+ * never left half-written and the saving thread does not walk the tree. A
+ * failed compaction is reported by the next save, which retries it.
+ *
+ * <p>
+ * When a compaction starts, the delta log is rotated to a
+ * {@code .delta.old} segment that is deleted once the new base is in place.
+ * Replaying a segment over a base that already contains it is harmless, since
+ * every record sets or removes a key.
+ */
+public class CatalogStore {
+
+    /**
+     * The number of delta records that triggers a background compaction when
+     * none is specified.
+     */
+    static final int DEFAULT_COMPACTION_THRESHOLD = 1024;
+
+    /**
+     * The column at which the part description starts in the base file.
+     */
+    private static final int DESCRIPTION_COLUMN = 15;
+
+    /**
+     * The width of the part ID column read from the base file, and the
+     * maximum length of a part ID.
+     */
+    private static final int PART_ID_WIDTH = 7;
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final char INSERT = 'I';
+    private static final char DELETE = 'D';
+
+    private final File baseFile;
+    private final File deltaFile;
+    private final File compactingFile;
+
+    /**
+     * The delta records of the edits made since the last save.
+     */
+    private final List<String> pending = new ArrayList<String>();
+
+    /**
+     * The number of records in the delta log since the last compaction.
+     */
+    private int deltaRecords;
+
+    private int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    /**
+     * The running background compaction, if any.
+     */
+    private Thread compaction;
+
+    /**
+     * The error of the last background compaction, if it failed and was not
+     * reported yet.
+     */
+    private IOException compactionFailure;
+
+    /**
+     * Whether the base file is known to be sorted by part ID without
+     * duplicates, so that a compaction can merge it with the delta log: once
+     * {@link #load} found it sorted, or a compaction wrote it.
+     */
+    private boolean baseSorted;
+
+    public CatalogStore(File baseFile) {
+        this.baseFile = baseFile.getAbsoluteFile();
+        this.deltaFile = new File(this.baseFile.getPath() + ".delta");
+        this.compactingFile = new File(this.baseFile.getPath() + ".delta.old");
+    }
+
+    public void setCompactionThreshold(int compactionThreshold) {
+        if (compactionThreshold <= 0)
+            throw new IllegalArgumentException("Illegal compaction threshold: "
+                    + compactionThreshold);
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Loads the base file into the tree and replays the delta log over it.
+     *
+     * @param tree
+     *            the tree to load the catalog into
+     */
+    public void load(BPlusTree<String, String> tree) throws IOException {
+        boolean sorted = true;
+        if (baseFile.exists()) {
+            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(baseFile), CHARSET));
+            try {
+                String data;
+                String previous = null;
+                while ((data = bufferedReader.readLine()) != null) {
+                    Map.Entry<String, String> part = parseBaseLine(data);
+                    if (part == null)
+                        continue;
+                    tree.insert(part.getKey(), part.getValue());
+                    if (previous != null && previous.compareTo(part.getKey()) >= 0)
+                        sorted = false;
+                    previous = part.getKey();
+                }
+            } finally {
+                bufferedReader.close();
+            }
+        }
+        synchronized (this) {
+            baseSorted = sorted;
+        }
+        deltaRecords = replay(compactingFile, tree) + replay(deltaFile, tree);
+        pending.clear();
+    }
+
+    /**
+     * Returns the part ID and description of a line of a base file, or
+     * {@code null} if the line is too short to hold a part.
+     */
+    private static Map.Entry<String, String> parseBaseLine(String data) {
+        // Columns
+        // 1-7 Part ID - Note: It was from 0 to 7
+        // 16-80 Part Description
+        if (data.length() < DESCRIPTION_COLUMN)
+            return null;
+        String partId = data.substring(0, PART_ID_WIDTH).trim();
+        String partDescription = data.substring(DESCRIPTION_COLUMN).trim();
+        return new AbstractMap.SimpleImmutableEntry<String, String>(partId, partDescription);
+    }
+
+    /**
+     * Merges catalog base files, in any order and larger than memory, into
+     * one sorted base file with an {@link ExternalSorter}. When several files
+     * describe a part, the description of the last one is kept.
+     *
+     * @param inputs
+     *            the base files to merge
+     * @param output
+     *            the merged base file
+     * @param maxEntriesInMemory
+     *            the number of parts held in memory before they are spilled
+     *            to a sorted run next to the output
+     * @return the number of parts of the merged file
+     */
+    public static long mergeBaseFiles(List<File> inputs, File output, int maxEntriesInMemory)
+            throws IOException {
+        output = output.getAbsoluteFile();
+        ExternalSorter<String, String> sorter = new ExternalSorter<String, String>(output.getParentFile(),
+                maxEntriesInMemory, 128, null, SnapshotCodec.STRING, SnapshotCodec.STRING);
+        try {
+            for (File input : inputs) {
+                BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(input), CHARSET), ExternalSorter.READ_BUFFER_SIZE);
+                try {
+                    String data;
+                    while ((data = bufferedReader.readLine()) != null) {
+                        Map.Entry<String, String> part = parseBaseLine(data);
+                        if (part != null)
+                            sorter.add(part.getKey(), part.getValue());
+                    }
+                } finally {
+                    bufferedReader.close();
+                }
+            }
+            return writeBase(sorter.iterator(), output);
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            sorter.close();
+        }
+    }
+
+    /**
+     * Returns {@code true} if the part ID fits in the part ID column of the
+     * base file.
+     */
+    public static boolean isValidPartId(String partId) {
+        return partId.length() <= PART_ID_WIDTH;
+    }
+
+    /**
+     * Records the insertion or update of a part since the last save.
+     *
+     * @throws IllegalArgumentException
+     *             if the part ID is longer than the part ID column of the
+     *             base file
+     */
+    public void recordInsert(String partId, String partDescription) {
+        if (!isValidPartId(partId))
+            throw new IllegalArgumentException("Part ID longer than " + PART_ID_WIDTH + " characters: " + partId);
+        pending.add(INSERT + "\t" + partId + "\t" + partDescription);
+    }
+
+    /**
+     * Records the deletion of a part since the last save.
+     */
+    public void recordDelete(String partId) {
+        pending.add(DELETE + "\t" + partId);
+    }
+
+    /**
+     * Returns {@code true} if edits were recorded since the last save.
+     */
+    public boolean isDirty() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Appends the edits recorded since the last save to the delta log, and
+     * starts a background compaction if the log grew past the threshold or
+     * the last one failed.
+     *
+     * @param tree
+     *            the tree holding the current catalog
+     * @throws IOException
+     *             if the edits cannot be appended, or the last background
+     *             compaction failed; in the latter case the edits were saved
+     *             and the compaction is retried
+     */
+    public void save(BPlusTree<String, String> tree) throws IOException {
+        if (!pending.isEmpty()) {
+            FileOutputStream out = new FileOutputStream(deltaFile, true);
+            try {
+                BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(out, CHARSET));
+                for (String record : pending) {
+                    bufferedWriter.write(record);
+                    bufferedWriter.newLine();
+                }
+                bufferedWriter.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            deltaRecords += pending.size();
+            pending.clear();
+        }
+        IOException failure = takeCompactionFailure();
+        if (failure != null || deltaRecords >= compactionThreshold)
+            compact(tree);
+        if (failure != null)
+            throw new IOException("Background compaction failed", failure);
+    }
+
+    /**
+     * Starts rewriting the base file on a background thread, unless a
+     * compaction is already running. The thread merges the base file with the
+     * rotated delta log, so the tree may be modified while it runs. If the
+     * base file is not known to be sorted, because it was not loaded by
+     * {@link #load} or was not sorted, the tree is instead copied on the
+     * calling thread, which takes time proportional to its size.
+     *
+     * @param tree
+     *            the tree holding the current catalog, with no unsaved edits
+     */
+    public synchronized void compact(BPlusTree<String, String> tree) throws IOException {
+        if (compaction != null && compaction.isAlive())
+            return;
+        rotateDelta();
+        deltaRecords = 0;
+
+        final List<Map.Entry<String, String>> entries = baseSorted ? null : tree.getEntries();
+        compaction = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (entries != null)
+                        writeBase(entries.iterator(), baseFile);
+                    else
+                        mergeDelta();
+                    compactingFile.delete();
+                    synchronized (CatalogStore.this) {
+                        baseSorted = true;
+                    }
+                } catch (IOException ex) {
+                    synchronized (CatalogStore.this) {
+                        compactionFailure = ex;
+                    }
+                }
+            }
+        }, "catalog-compaction");
+        compaction.start();
+    }
+
+    /**
+     * Waits for the running background compaction, if any, to complete.
+     *
+     * @throws IOException
+     *             if the last background compaction failed; the next save
+     *             retries it
+     */
+    public void awaitCompaction() throws InterruptedException, IOException {
+        Thread running;
+        synchronized (this) {
+            running = compaction;
+        }
+        if (running != null)
+            running.join();
+        IOException failure;
+        synchronized (this) {
+            failure = compactionFailure;
+        }
+        if (failure != null)
+            throw new IOException("Background compaction failed", failure);
+    }
+
+    /**
+     * Returns and clears the error of the last background compaction, if it
+     * failed.
+     */
+    private synchronized IOException takeCompactionFailure() {
+        IOException failure = compactionFailure;
+        compactionFailure = null;
+        return failure;
+    }
+
+    /**
+     * Moves the delta log aside, so that the records written during the
+     * compaction go to a fresh log.
+     */
+    private void rotateDelta() throws IOException {
+        if (!deltaFile.exists())
+            return;
+        if (!compactingFile.exists()) {
+            Files.move(deltaFile.toPath(), compactingFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return;
+        }
+        /* A previous compaction did not complete - keep its records in front */
+        FileOutputStream out = new FileOutputStream(compactingFile, true);
+        try {
+            Files.copy(deltaFile.toPath(), out);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        deltaFile.delete();
+    }
+
+    /**
+     * Rewrites the base file merged with the edits of the rotated delta log,
+     * both read in part ID order.
+     */
+    private void mergeDelta() throws IOException {
+        final TreeMap<String, String> edits = new TreeMap<String, String>();
+        readEdits(compactingFile, edits);
+        final BufferedReader bufferedReader = baseFile.exists() ? new BufferedReader(new InputStreamReader(
+                new FileInputStream(baseFile), CHARSET), ExternalSorter.READ_BUFFER_SIZE) : null;
+        try {
+            writeBase(new Iterator<Map.Entry<String, String>>() {
+                private final Iterator<Map.Entry<String, String>> editIterator = edits.entrySet().iterator();
+                private Map.Entry<String, String> nextBase = readBase();
+                private Map.Entry<String, String> nextEdit = editIterator.hasNext() ? editIterator.next() : null;
+                private Map.Entry<String, String> next = advance();
+
+                /**
+                 * Returns the next part of the base file, or {@code null}.
+                 */
+                private Map.Entry<String, String> readBase() {
+                    if (bufferedReader == null)
+                        return null;
+                    try {
+                        String data;
+                        while ((data = bufferedReader.readLine()) != null) {
+                            Map.Entry<String, String> part = parseBaseLine(data);
+                            if (part != null)
+                                return part;
+                        }
+                        return null;
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+
+                /**
+                 * Returns the next part of the merge, skipping the deleted
+                 * ones, or {@code null}.
+                 */
+                private Map.Entry<String, String> advance() {
+                    while (nextBase != null || nextEdit != null) {
+                        int cmp = nextBase == null ? 1 : nextEdit == null ? -1
+                                : nextBase.getKey().compareTo(nextEdit.getKey());
+                        Map.Entry<String, String> part;
+                        if (cmp < 0) {
+                            part = nextBase;
+                            nextBase = readBase();
+                        } else {
+                            /* The edit replaces or deletes the part of the base */
+                            part = nextEdit;
+                            nextEdit = editIterator.hasNext() ? editIterator.next() : null;
+                            if (cmp == 0)
+                                nextBase = readBase();
+                        }
+                        if (part.getValue() != null)
+                            return part;
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public Map.Entry<String, String> next() {
+                    if (next == null)
+                        throw new NoSuchElementException();
+                    Map.Entry<String, String> part = next;
+                    next = advance();
+                    return part;
+                }
+            }, baseFile);
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            if (bufferedReader != null)
+                bufferedReader.close();
+        }
+    }
+
+    private static long writeBase(Iterator<Map.Entry<String, String>> entries, File baseFile)
+            throws IOException {
+        File tempFile = new File(baseFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        long count = 0;
+        try {
+            BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(out, CHARSET),
+                    ExternalSorter.WRITE_BUFFER_SIZE);
+            StringBuilder line = new StringBuilder();
+            while (entries.hasNext()) {
+                Map.Entry<String, String> entry = entries.next();
+                line.setLength(0);
+                line.append(entry.getKey());
+                while (line.length() < DESCRIPTION_COLUMN)
+                    line.append(' ');
+                line.append(entry.getValue());
+                bufferedWriter.write(line.toString());
+                bufferedWriter.newLine();
+                count++;
+            }
+            bufferedWriter.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tempFile.toPath(), baseFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        return count;
+    }
+
+    /**
+     * Applies the records of a delta log segment to the tree.
+     *
+     * @return the number of records applied
+     */
+    private static int replay(File file, BPlusTree<String, String> tree) throws IOException {
+        if (!file.exists())
+            return 0;
+        int records = 0;
+        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), CHARSET));
+        try {
+            String data;
+            while ((data = bufferedReader.readLine()) != null) {
+                Map.Entry<String, String> record = parseRecord(data);
+                if (record == null)
+                    continue;
+                if (record.getValue() != null)
+                    tree.insert(record.getKey(), record.getValue());
+                else
+                    tree.delete(record.getKey());
+                records++;
+            }
+        } finally {
+            bufferedReader.close();
+        }
+        return records;
+    }
+
+    /**
+     * Collects the last record of each part of a delta log segment, with a
+     * {@code null} description for a deletion.
+     */
+    private static void readEdits(File file, Map<String, String> edits) throws IOException {
+        if (!file.exists())
+            return;
+        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), CHARSET));
+        try {
+            String data;
+            while ((data = bufferedReader.readLine()) != null) {
+                Map.Entry<String, String> record = parseRecord(data);
+                if (record != null)
+                    edits.put(record.getKey(), record.getValue());
+            }
+        } finally {
+            bufferedReader.close();
+        }
+    }
+
+    /**
+     * Returns the part ID and description of a delta record, with a
+     * {@code null} description for a deletion, or {@code null} if the record
+     * is malformed.
+     */
+    private static Map.Entry<String, String> parseRecord(String data) {
+        String[] fields = data.split("\t", 3);
+        if (fields[0].length() != 1)
+            return null;
+        if (fields[0].charAt(0) == INSERT && fields.length == 3)
+            return new AbstractMap.SimpleImmutableEntry<String, String>(fields[1], fields[2]);
+        if (fields[0].charAt(0) == DELETE && fields.length >= 2)
+            return new AbstractMap.SimpleImmutableEntry<String, String>(fields[1], null);
+        return null;
+    }
+}
@@ -0,0 +1,208 @@
+package source;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded lock-free ring buffer carrying the changes of a {@link BPlusTree}
+ * from the writing thread to one consumer thread, as returned by
+ * {@link BPlusTree#openChangeStream}.
+ *
+ * <p>
+ * The writer only publishes into the buffer with ordered stores, and the
+ * consumer drains it in batches, so a slow consumer never slows the writer
+ * down until the buffer is full. What happens then is decided by the
+ * {@link BackpressurePolicy}.
+ */
+public class ChangeStream<Key, Value> {
+
+    /**
+     * What the writer does when the buffer is full.
+     */
+    public enum BackpressurePolicy {
+        /**
+         * Wait for the consumer to make room.
+         */
+        BLOCK,
+        /**
+         * Drop the new event and count it; the consumer sees a gap in the
+         * sequence numbers.
+         */
+        DROP,
+        /**
+         * Throw an {@link IllegalStateException} from the write.
+         */
+        FAIL
+    }
+
+    /**
+     * How long the writer waits for room and the dispatcher for events
+     * between two checks.
+     */
+    private static final long PARK_NANOS = 50000;
+
+    private final AtomicReferenceArray<MutationEvent<Key, Value>> buffer;
+    private final int mask;
+    private final BackpressurePolicy policy;
+
+    /**
+     * The sequence of the next slot to read, written by the consumer, and of
+     * the next slot to write, written by the writer.
+     */
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The last head seen by the writer, so that it only reads the consumer's
+     * counter when the buffer looks full.
+     */
+    private long cachedHead;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+
+    ChangeStream(int capacity, BackpressurePolicy policy) {
+        if (capacity <= 0 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Illegal capacity: " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        this.buffer = new AtomicReferenceArray<MutationEvent<Key, Value>>(size);
+        this.mask = size - 1;
+        this.policy = policy;
+    }
+
+    /**
+     * Returns the number of events the buffer holds, the requested capacity
+     * rounded up to a power of two.
+     */
+    public int capacity() {
+        return buffer.length();
+    }
+
+    /**
+     * Returns the number of events waiting to be consumed.
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Returns the number of events dropped because the buffer was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops the stream: the tree no longer publishes to it, a blocked writer
+     * gives up, and the dispatcher returns once the buffer is drained.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Appends an event, on the writing thread.
+     */
+    void publish(MutationEvent<Key, Value> event) {
+        long sequence = tail.get();
+        if (sequence - cachedHead >= buffer.length()) {
+            cachedHead = head.get();
+            while (sequence - cachedHead >= buffer.length()) {
+                if (closed)
+                    return;
+                switch (policy) {
+                    case DROP:
+                        dropped.incrementAndGet();
+                        return;
+                    case FAIL:
+                        throw new IllegalStateException("Change stream full");
+                    default:
+                        LockSupport.parkNanos(PARK_NANOS);
+                        cachedHead = head.get();
+                }
+            }
+        }
+        buffer.lazySet((int) sequence & mask, event);
+        tail.lazySet(sequence + 1);
+    }
+
+    /**
+     * Moves up to {@code maxEvents} events to the specified collection, on
+     * the consuming thread.
+     *
+     * @return the number of events moved
+     */
+    public int drain(Collection<? super MutationEvent<Key, Value>> sink, int maxEvents) {
+        long first = head.get();
+        int count = (int) Math.min(maxEvents, tail.get() - first);
+        for (int i = 0; i < count; i++) {
+            int index = (int) (first + i) & mask;
+            sink.add(buffer.get(index));
+            buffer.lazySet(index, null);
+        }
+        head.lazySet(first + count);
+        return count;
+    }
+
+    /**
+     * Removes the next event, on the consuming thread, or returns
+     * {@code null} if there is none.
+     */
+    public MutationEvent<Key, Value> poll() {
+        long first = head.get();
+        if (first == tail.get())
+            return null;
+        int index = (int) first & mask;
+        MutationEvent<Key, Value> event = buffer.get(index);
+        buffer.lazySet(index, null);
+        head.lazySet(first + 1);
+        return event;
+    }
+
+    /**
+     * Starts delivering the events to the listener on the executor, in
+     * batches of up to {@code maxBatch} events, until the stream is closed and
+     * drained or the task is cancelled.
+     *
+     * @param executor
+     *            the executor running the consumer
+     * @param listener
+     *            the listener receiving the batches
+     * @param maxBatch
+     *            the maximum number of events per batch
+     * @return the future of the delivery task
+     */
+    public Future<?> dispatch(ExecutorService executor, final MutationListener<Key, Value> listener,
+                              final int maxBatch) {
+        if (maxBatch <= 0)
+            throw new IllegalArgumentException("Illegal batch size: " + maxBatch);
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                List<MutationEvent<Key, Value>> batch = new ArrayList<MutationEvent<Key, Value>>(maxBatch);
+                while (!Thread.currentThread().isInterrupted()) {
+                    batch.clear();
+                    if (drain(batch, maxBatch) > 0)
+                        listener.onMutations(Collections.unmodifiableList(batch));
+                    else if (closed && size() == 0)
+                        return;
+                    else
+                        LockSupport.parkNanos(PARK_NANOS);
+                }
+            }
+        });
+    }
+}
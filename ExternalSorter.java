@@ -0,0 +1,365 @@
+package source;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Sorts and deduplicates more key-value pairs than fit in memory.
+ *
+ * <p>
+ * The pairs are inserted into a {@link BPlusTree} holding at most
+ * {@code maxEntriesInMemory} keys. When it is full, its leaf chain is written
+ * in order to a sorted run file and a new tree is started. The runs and the
+ * last tree are then merged with a heap of their current keys into one sorted
+ * sequence, which can be written to a file or bulk loaded into a tree. When a
+ * key was added several times, the value added last is kept, as with
+ * {@link BPlusTree#insert}.
+ *
+ * <p>
+ * A run file is a sequence of records: a byte 1, then the key and the value
+ * encoded by the codecs. A byte 0 ends the run, so that a truncated file is
+ * detected. Runs are written and read through large buffers, and at most
+ * {@link #MAX_MERGE_WIDTH} runs are merged at once; more runs are first merged
+ * into larger ones, so the memory used by a merge stays bounded.
+ */
+public class ExternalSorter<Key, Value> {
+
+    /**
+     * The size of the buffer of a run being written.
+     */
+    static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * The size of the buffer of each run being merged.
+     */
+    static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * The number of runs merged at once.
+     */
+    static final int MAX_MERGE_WIDTH = 64;
+
+    private final File directory;
+    private final int maxEntriesInMemory;
+    private final int branchingFactor;
+    private final Comparator<? super Key> comparator;
+    private final SnapshotCodec<Key> keyCodec;
+    private final SnapshotCodec<Value> valueCodec;
+
+    /**
+     * The pairs added since the last spill.
+     */
+    private BPlusTree<Key, Value> buffer;
+
+    /**
+     * The run files, oldest first.
+     */
+    private final List<File> runs = new ArrayList<File>();
+
+    /**
+     * The runs opened by the merges not yet exhausted.
+     */
+    private final List<Source> openSources = new ArrayList<Source>();
+
+    /**
+     * Constructs a sorter ordering the keys by the specified comparator.
+     *
+     * @param directory
+     *            the directory of the run files, or {@code null} for the
+     *            default temporary directory
+     * @param maxEntriesInMemory
+     *            the number of pairs held in memory before they are spilled
+     *            to a run
+     * @param branchingFactor
+     *            the capacity of the nodes of the in-memory tree
+     * @param comparator
+     *            the comparator that will be used to order the keys, or
+     *            {@code null} to use the natural ordering of the keys
+     * @param keyCodec
+     *            the codec encoding the keys in the runs
+     * @param valueCodec
+     *            the codec encoding the values in the runs
+     */
+    public ExternalSorter(File directory, int maxEntriesInMemory, int branchingFactor,
+                          Comparator<? super Key> comparator, SnapshotCodec<Key> keyCodec,
+                          SnapshotCodec<Value> valueCodec) {
+        if (maxEntriesInMemory <= 0)
+            throw new IllegalArgumentException("Illegal number of entries in memory: " + maxEntriesInMemory);
+        this.directory = directory;
+        this.maxEntriesInMemory = maxEntriesInMemory;
+        this.branchingFactor = branchingFactor;
+        this.comparator = comparator;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.buffer = new BPlusTree<Key, Value>(branchingFactor, comparator);
+    }
+
+    /**
+     * Returns the number of run files written so far.
+     */
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Adds a pair, replacing the value of a key added before, and spills the
+     * pairs in memory to a run if there are {@code maxEntriesInMemory} of
+     * them.
+     */
+    public void add(Key key, Value value) throws IOException {
+        buffer.insert(key, value);
+        if (buffer.size() >= maxEntriesInMemory)
+            spill();
+    }
+
+    /**
+     * Writes the pairs in memory to a new run, walking the leaf chain of the
+     * tree.
+     */
+    private void spill() throws IOException {
+        if (buffer.size() == 0)
+            return;
+        runs.add(writeRun(buffer.entryIterator()));
+        buffer = new BPlusTree<Key, Value>(branchingFactor, comparator);
+    }
+
+    private File writeRun(Iterator<Map.Entry<Key, Value>> entries) throws IOException {
+        File file = File.createTempFile("run", ".tmp", directory);
+        try {
+            write(entries, file);
+        } catch (IOException ex) {
+            file.delete();
+            throw ex;
+        } catch (RuntimeException ex) {
+            file.delete();
+            throw ex;
+        }
+        return file;
+    }
+
+    /**
+     * Writes the pairs added so far, sorted and deduplicated, to the
+     * specified file in the run format.
+     *
+     * @return the number of pairs written
+     */
+    public long sortTo(File output) throws IOException {
+        return write(iterator(), output);
+    }
+
+    /**
+     * Replaces the contents of the tree with the pairs added so far, sorted
+     * and deduplicated, building it bottom-up.
+     *
+     * @see BPlusTree#bulkLoad(Iterator)
+     */
+    public void sortTo(BPlusTree<Key, Value> tree) throws IOException {
+        tree.bulkLoad(iterator());
+    }
+
+    /**
+     * Returns the pairs added so far, sorted and deduplicated. The runs are
+     * read as the iterator advances, and stay open until it is exhausted or
+     * the sorter is closed; the sorter must not be modified in the meantime.
+     *
+     * @throws UncheckedIOException
+     *             from the iterator if a run cannot be read
+     */
+    public Iterator<Map.Entry<Key, Value>> iterator() throws IOException {
+        while (runs.size() >= MAX_MERGE_WIDTH) {
+            /* Merge the oldest runs first, so that the newer values still win */
+            List<File> oldest = runs.subList(0, MAX_MERGE_WIDTH);
+            File merged;
+            try {
+                merged = writeRun(merge(new ArrayList<File>(oldest), null));
+            } finally {
+                closeSources();
+            }
+            for (File run : oldest)
+                run.delete();
+            oldest.clear();
+            runs.add(0, merged);
+        }
+        return merge(runs, buffer);
+    }
+
+    /**
+     * Returns the merge of the specified runs, oldest first, and tree, newest
+     * of all.
+     */
+    private Iterator<Map.Entry<Key, Value>> merge(List<File> files, BPlusTree<Key, Value> tree)
+            throws IOException {
+        final PriorityQueue<Source> heap = new PriorityQueue<Source>(files.size() + 1, new Comparator<Source>() {
+            @Override
+            public int compare(Source source1, Source source2) {
+                int cmp = ExternalSorter.this.compare(source1.key, source2.key);
+                return cmp != 0 ? cmp : Integer.compare(source2.order, source1.order);
+            }
+        });
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                Source source = new RunSource(files.get(i), i);
+                openSources.add(source);
+                if (source.advance())
+                    heap.add(source);
+            }
+        } catch (IOException ex) {
+            closeSources();
+            throw ex;
+        }
+        if (tree != null) {
+            Source source = new TreeSource(tree, files.size());
+            if (source.advance())
+                heap.add(source);
+        }
+
+        return new Iterator<Map.Entry<Key, Value>>() {
+            @Override
+            public boolean hasNext() {
+                return !heap.isEmpty();
+            }
+
+            @Override
+            public Map.Entry<Key, Value> next() {
+                if (heap.isEmpty())
+                    throw new NoSuchElementException();
+                Source newest = heap.poll();
+                Map.Entry<Key, Value> entry = new AbstractMap.SimpleImmutableEntry<Key, Value>(newest.key,
+                        newest.value);
+                try {
+                    /* Skip the older values of the key */
+                    while (!heap.isEmpty() && compare(heap.peek().key, entry.getKey()) == 0) {
+                        Source older = heap.poll();
+                        if (older.advance())
+                            heap.add(older);
+                    }
+                    if (newest.advance())
+                        heap.add(newest);
+                } catch (IOException ex) {
+                    closeSources();
+                    throw new UncheckedIOException(ex);
+                }
+                return entry;
+            }
+        };
+    }
+
+    private long write(Iterator<Map.Entry<Key, Value>> entries, File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                WRITE_BUFFER_SIZE));
+        long count = 0;
+        try {
+            while (entries.hasNext()) {
+                Map.Entry<Key, Value> entry = entries.next();
+                out.writeByte(1);
+                keyCodec.write(out, entry.getKey());
+                valueCodec.write(out, entry.getValue());
+                count++;
+            }
+            out.writeByte(0);
+        } finally {
+            out.close();
+        }
+        return count;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(Key key1, Key key2) {
+        return comparator == null ? ((Comparable<? super Key>) key1).compareTo(key2)
+                : comparator.compare(key1, key2);
+    }
+
+    private void closeSources() {
+        for (Source source : openSources)
+            source.close();
+        openSources.clear();
+    }
+
+    /**
+     * Closes the runs being merged and deletes the run files.
+     */
+    public void close() {
+        closeSources();
+        for (File run : runs)
+            run.delete();
+        runs.clear();
+        buffer = new BPlusTree<Key, Value>(branchingFactor, comparator);
+    }
+
+    /**
+     * A sorted sequence of pairs being merged, positioned on its current
+     * pair.
+     */
+    private abstract class Source {
+        final int order;
+        Key key;
+        Value value;
+
+        Source(int order) {
+            this.order = order;
+        }
+
+        /**
+         * Moves to the next pair.
+         *
+         * @return {@code false} if there is none
+         */
+        abstract boolean advance() throws IOException;
+
+        void close() {
+        }
+    }
+
+    private final class RunSource extends Source {
+        private final File file;
+        private final DataInputStream in;
+
+        RunSource(File file, int order) throws IOException {
+            super(order);
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), READ_BUFFER_SIZE));
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            int marker = in.read();
+            if (marker == 1) {
+                key = keyCodec.read(in);
+                value = valueCodec.read(in);
+                return true;
+            }
+            if (marker != 0)
+                throw new IOException("Truncated run file: " + file);
+            close();
+            return false;
+        }
+
+        @Override
+        void close() {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                /* Nothing was written to the file */
+            }
+        }
+    }
+
+    private final class TreeSource extends Source {
+        private final Iterator<Map.Entry<Key, Value>> entries;
+
+        TreeSource(BPlusTree<Key, Value> tree, int order) {
+            super(order);
+            this.entries = tree.entryIterator();
+        }
+
+        @Override
+        boolean advance() {
+            if (!entries.hasNext())
+                return false;
+            Map.Entry<Key, Value> entry = entries.next();
+            key = entry.getKey();
+            value = entry.getValue();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package source;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Randomized differential harness for {@link ExternalSorter}: random pairs,
+ * with many repeated keys, are added both to a sorter and to a
+ * {@link TreeMap}, and the sorted and deduplicated output of the sorter must
+ * match the map. The memory budget is a few dozen pairs, so that the sorter
+ * writes more than {@link ExternalSorter#MAX_MERGE_WIDTH} runs, sometimes
+ * more than twice as many, and must merge them over several levels while the
+ * value added last still wins.
+ *
+ * <p>
+ * The output is read through {@link ExternalSorter#iterator()}, bulk loaded
+ * into a tree and written to a file read back in the run format. Closing the
+ * sorter must delete every run file.
+ *
+ * <p>
+ * Usage: {@code ExternalSorterFuzzer [seed [rounds]]}. A failure reports the
+ * seed and the round that failed, and exits with a non-zero status.
+ */
+public class ExternalSorterFuzzer {
+
+    static final int DEFAULT_ROUNDS = 20;
+
+    public static void main(String[] args) throws IOException {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+
+        Random random = new Random(seed);
+        File directory = Files.createTempDirectory("external-sorter-fuzzer").toFile();
+        int maxRuns = 0;
+        try {
+            for (int round = 0; round < rounds; round++) {
+                String configuration = null;
+                try {
+                    int maxEntriesInMemory = 1 + random.nextInt(48);
+                    int runs = random.nextInt(3 * ExternalSorter.MAX_MERGE_WIDTH);
+                    int pairs = runs * maxEntriesInMemory + random.nextInt(maxEntriesInMemory);
+                    int keySpace = 1 + random.nextInt(Math.max(1, 2 * pairs));
+                    Comparator<Integer> comparator = random.nextBoolean() ? null
+                            : Collections.<Integer>reverseOrder();
+                    configuration = pairs + " pairs of " + keySpace + " keys, " + maxEntriesInMemory
+                            + " in memory, " + (comparator == null ? "natural" : "reverse") + " order";
+                    maxRuns = Math.max(maxRuns, check(random, directory, maxEntriesInMemory, pairs, keySpace,
+                            comparator));
+                } catch (IOException | RuntimeException | AssertionError ex) {
+                    System.err.println("Failed with seed " + seed + " at round " + round + " (" + configuration
+                            + ")");
+                    ex.printStackTrace();
+                    System.exit(1);
+                }
+            }
+        } finally {
+            directory.delete();
+        }
+        System.out.println(rounds + " rounds, up to " + maxRuns + " runs");
+        System.out.println("Seed " + seed + " passed");
+    }
+
+    /**
+     * Sorts random pairs and checks every output of the sorter.
+     *
+     * @return the number of runs written
+     */
+    static int check(Random random, File directory, int maxEntriesInMemory, int pairs, int keySpace,
+                     Comparator<Integer> comparator) throws IOException {
+        ExternalSorter<Integer, String> sorter = new ExternalSorter<Integer, String>(directory,
+                maxEntriesInMemory, 3 + random.nextInt(30), comparator, SnapshotCodec.INTEGER, SnapshotCodec.STRING);
+        TreeMap<Integer, String> expected = new TreeMap<Integer, String>(comparator);
+        int runs;
+        try {
+            for (int i = 0; i < pairs; i++) {
+                int key = random.nextInt(keySpace) - keySpace / 2;
+                String value = "v" + i;
+                sorter.add(key, value);
+                expected.put(key, value);
+            }
+            runs = sorter.getRunCount();
+            List<Map.Entry<Integer, String>> entries = new ArrayList<Map.Entry<Integer, String>>(expected.entrySet());
+
+            List<Map.Entry<Integer, String>> sorted = new ArrayList<Map.Entry<Integer, String>>();
+            for (Iterator<Map.Entry<Integer, String>> it = sorter.iterator(); it.hasNext(); )
+                sorted.add(it.next());
+            checkEntries(entries, sorted);
+            check(true, sorter.getRunCount() < ExternalSorter.MAX_MERGE_WIDTH);
+
+            BPlusTree<Integer, String> tree = new BPlusTree<Integer, String>(8, comparator);
+            tree.insert(0, "replaced");
+            sorter.sortTo(tree);
+            tree.checkInvariants();
+            List<Map.Entry<Integer, String>> loaded = new ArrayList<Map.Entry<Integer, String>>();
+            for (Iterator<Map.Entry<Integer, String>> it = tree.entryIterator(); it.hasNext(); )
+                loaded.add(it.next());
+            checkEntries(entries, loaded);
+
+            File output = new File(directory, "sorted");
+            try {
+                check((long) entries.size(), sorter.sortTo(output));
+                checkEntries(entries, readRun(output));
+            } finally {
+                output.delete();
+            }
+        } finally {
+            sorter.close();
+        }
+        String[] left = directory.list();
+        check(0, left == null ? 0 : left.length);
+        return runs;
+    }
+
+    /**
+     * Reads a file in the run format.
+     */
+    static List<Map.Entry<Integer, String>> readRun(File file) throws IOException {
+        List<Map.Entry<Integer, String>> entries = new ArrayList<Map.Entry<Integer, String>>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int marker;
+            while ((marker = in.read()) == 1) {
+                Integer key = SnapshotCodec.INTEGER.read(in);
+                entries.add(new AbstractMap.SimpleImmutableEntry<Integer, String>(key, SnapshotCodec.STRING.read(in)));
+            }
+            check(0, marker);
+            check(-1, in.read());
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Checks two lists of entries, reporting the first difference rather
+     * than thousands of entries.
+     */
+    private static void checkEntries(List<Map.Entry<Integer, String>> expected,
+                                     List<Map.Entry<Integer, String>> actual) {
+        for (int i = 0; i < Math.min(expected.size(), actual.size()); i++) {
+            if (!expected.get(i).equals(actual.get(i)))
+                throw new AssertionError("Expected " + expected.get(i) + " but was " + actual.get(i) + " at " + i);
+        }
+        check(expected.size(), actual.size());
+    }
+
+    private static void check(Object expected, Object actual) {
+        if (expected == null ? actual != null : !expected.equals(actual))
+            throw new AssertionError("Expected " + expected + " but was " + actual);
+    }
+}
@@ -0,0 +1,54 @@
+package source;
+
+/**
+ * Maps keys to order-preserving {@code long} prefixes, so that the
+ * {@link BPlusTree} can compare most keys with a single unsigned {@code long}
+ * comparison and only fall back to the full key comparison on ties.
+ *
+ * <p>
+ * Implementations must be consistent with the ordering of the tree: if
+ * {@code Long.compareUnsigned(prefix(a), prefix(b)) < 0} then {@code a} must
+ * be ordered before {@code b}. Keys with equal prefixes are compared in full.
+ */
+public interface KeyNormalizer<Key> {
+
+    /**
+     * Normalizer for {@link String} keys ordered by their natural ordering. The
+     * prefix packs the first four UTF-16 chars of the string, padded with
+     * zeros.
+     */
+    KeyNormalizer<String> STRING = new KeyNormalizer<String>() {
+        @Override
+        public long prefix(String key) {
+            long prefix = 0;
+            int length = Math.min(key.length(), 4);
+            for (int i = 0; i < 4; i++) {
+                prefix <<= 16;
+                if (i < length)
+                    prefix |= key.charAt(i);
+            }
+            return prefix;
+        }
+    };
+
+    /**
+     * Normalizer for {@link Long} keys ordered by their natural ordering. The
+     * prefix is the key with its sign bit flipped, and therefore identifies the
+     * key completely.
+     */
+    KeyNormalizer<Long> LONG = new KeyNormalizer<Long>() {
+        @Override
+        public long prefix(Long key) {
+            return key ^ Long.MIN_VALUE;
+        }
+    };
+
+    /**
+     * Returns the order-preserving prefix of the specified key.
+     *
+     * @param key
+     *            the key to normalize
+     * @return the unsigned prefix of the key
+     */
+    long prefix(Key key);
+}
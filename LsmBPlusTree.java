@@ -0,0 +1,315 @@
+package source;
+
+import java.util.*;
+
+/**
+ * A write-optimized front-end for a {@link BPlusTree}.
+ *
+ * <p>
+ * Writes are buffered in a sorted memtable. A full memtable is flushed as an
+ * immutable sorted run, and once there are more than {@code maxRuns} runs they
+ * are all merged into the tree with {@link BPlusTree#bulkLoad}, turning random
+ * leaf writes into one sequential merge. Deletes are recorded as tombstones
+ * until they reach the tree.
+ *
+ * <p>
+ * Reads consult the memtable, then the runs from newest to oldest, then the
+ * tree, so a read costs at most {@code maxRuns} extra binary searches.
+ */
+public class LsmBPlusTree<Key, Value> {
+
+    /**
+     * The number of buffered writes that triggers a flush when none is
+     * specified in constructor.
+     */
+    static final int DEFAULT_MEMTABLE_CAPACITY = 64 * 1024;
+
+    /**
+     * The number of sorted runs kept before merging when none is specified in
+     * constructor.
+     */
+    static final int DEFAULT_MAX_RUNS = 4;
+
+    /**
+     * Marks a deleted key in the memtable and the runs.
+     */
+    private static final Object TOMBSTONE = new Object();
+
+    private final BPlusTree<Key, Value> tree;
+
+    private final int memtableCapacity;
+
+    private final int maxRuns;
+
+    /**
+     * The buffered writes, mapping keys to values or {@link #TOMBSTONE}.
+     */
+    private TreeMap<Key, Object> memtable;
+
+    /**
+     * The immutable sorted runs, newest first.
+     */
+    private final LinkedList<SortedRun> runs = new LinkedList<SortedRun>();
+
+    public LsmBPlusTree(BPlusTree<Key, Value> tree) {
+        this(tree, DEFAULT_MEMTABLE_CAPACITY, DEFAULT_MAX_RUNS);
+    }
+
+    public LsmBPlusTree(BPlusTree<Key, Value> tree, int memtableCapacity, int maxRuns) {
+        if (memtableCapacity <= 0)
+            throw new IllegalArgumentException("Illegal memtable capacity: "
+                    + memtableCapacity);
+        if (maxRuns < 0)
+            throw new IllegalArgumentException("Illegal number of runs: " + maxRuns);
+        this.tree = tree;
+        this.memtableCapacity = memtableCapacity;
+        this.maxRuns = maxRuns;
+        this.memtable = new TreeMap<Key, Object>(tree.comparator());
+    }
+
+    /**
+     * Returns the underlying tree, which does not reflect the buffered writes
+     * until {@link #merge()} is called.
+     */
+    public BPlusTree<Key, Value> getTree() {
+        return tree;
+    }
+
+    /**
+     * Returns the number of immutable sorted runs waiting to be merged.
+     */
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Returns the value to which the specified key is associated, or
+     * {@code null} if there is no association for the key.
+     *
+     * @param key
+     *            the key whose associated value is to be returned
+     */
+    @SuppressWarnings("unchecked")
+    public Value search(Key key) {
+        Object value = memtable.get(key);
+        if (value != null || memtable.containsKey(key))
+            return value == TOMBSTONE ? null : (Value) value;
+        for (SortedRun run : runs) {
+            int loc = Collections.binarySearch(run.keys, key, tree.comparator());
+            if (loc >= 0) {
+                value = run.values.get(loc);
+                return value == TOMBSTONE ? null : (Value) value;
+            }
+        }
+        return tree.search(key);
+    }
+
+    /**
+     * Returns the values associated with the keys specified by the range:
+     * {@code key1} and {@code key2}, merged across the memtable, the runs and
+     * the tree.
+     *
+     * @see BPlusTree#searchRange(Object, BPlusTree.RangePolicy, Object, BPlusTree.RangePolicy)
+     */
+    public List<Value> searchRange(Key key1, BPlusTree.RangePolicy policy1, Key key2,
+                                   BPlusTree.RangePolicy policy2) {
+        List<Value> result = new ArrayList<Value>();
+        for (Map.Entry<Key, Value> entry : searchRangeEntries(key1, policy1, key2, policy2))
+            result.add(entry.getValue());
+        return result;
+    }
+
+    /**
+     * Returns the key-value pairs specified by the range: {@code key1} and
+     * {@code key2}, merged across the memtable, the runs and the tree.
+     *
+     * @see BPlusTree#searchRangeEntries(Object, BPlusTree.RangePolicy, Object, BPlusTree.RangePolicy)
+     */
+    @SuppressWarnings("unchecked")
+    public List<Map.Entry<Key, Value>> searchRangeEntries(Key key1, BPlusTree.RangePolicy policy1,
+                                                       Key key2, BPlusTree.RangePolicy policy2) {
+        if (tree.compare(key1, key2) > 0)
+            return new ArrayList<Map.Entry<Key, Value>>();
+        boolean inclusive1 = policy1 == BPlusTree.RangePolicy.INCLUSIVE;
+        boolean inclusive2 = policy2 == BPlusTree.RangePolicy.INCLUSIVE;
+        TreeMap<Key, Object> merged = new TreeMap<Key, Object>(tree.comparator());
+        for (Map.Entry<Key, Value> entry : tree.searchRangeEntries(key1, policy1, key2, policy2))
+            merged.put(entry.getKey(), entry.getValue());
+        for (Iterator<SortedRun> it = runs.descendingIterator(); it.hasNext(); ) {
+            SortedRun run = it.next();
+            for (int i = run.lowerBound(key1, inclusive1); i < run.keys.size(); i++) {
+                Key key = run.keys.get(i);
+                int cmp = tree.compare(key, key2);
+                if (cmp > 0 || (cmp == 0 && !inclusive2))
+                    break;
+                merged.put(key, run.values.get(i));
+            }
+        }
+        merged.putAll(memtable.subMap(key1, inclusive1, key2, inclusive2));
+
+        List<Map.Entry<Key, Value>> result = new ArrayList<Map.Entry<Key, Value>>(merged.size());
+        for (Map.Entry<Key, Object> entry : merged.entrySet()) {
+            if (entry.getValue() != TOMBSTONE)
+                result.add(new AbstractMap.SimpleImmutableEntry<Key, Value>(entry.getKey(),
+                        (Value) entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Associates the specified value with the specified key.
+     *
+     * @param key
+     *            the key with which the specified value is to be associated
+     * @param value
+     *            the value to be associated with the specified key
+     */
+    public void insert(Key key, Value value) {
+        memtable.put(key, value);
+        if (memtable.size() >= memtableCapacity)
+            flush();
+    }
+
+    /**
+     * Removes the association for the specified key if present.
+     *
+     * @param key
+     *            the key whose association is to be removed
+     */
+    public void delete(Key key) {
+        memtable.put(key, TOMBSTONE);
+        if (memtable.size() >= memtableCapacity)
+            flush();
+    }
+
+    /**
+     * Turns the memtable into an immutable sorted run, and merges the runs
+     * into the tree if there are more than {@code maxRuns}.
+     */
+    public void flush() {
+        if (!memtable.isEmpty()) {
+            runs.addFirst(new SortedRun(memtable));
+            memtable = new TreeMap<Key, Object>(tree.comparator());
+        }
+        if (runs.size() > maxRuns)
+            merge();
+    }
+
+    /**
+     * Merges the memtable and all the runs into the tree, rebuilding it
+     * bottom-up from one sequential pass over its leaves and the runs.
+     */
+    public void merge() {
+        if (!memtable.isEmpty()) {
+            runs.addFirst(new SortedRun(memtable));
+            memtable = new TreeMap<Key, Object>(tree.comparator());
+        }
+        if (runs.isEmpty())
+            return;
+
+        SortedRun updates = runs.removeLast();
+        while (!runs.isEmpty())
+            updates = updates.overwrite(runs.removeLast());
+        tree.bulkLoad(new MergeIterator(tree.entryIterator(), updates));
+    }
+
+    /**
+     * An immutable sorted run of keys and values or tombstones.
+     */
+    private class SortedRun {
+        final List<Key> keys;
+        final List<Object> values;
+
+        SortedRun(SortedMap<Key, Object> memtable) {
+            keys = new ArrayList<Key>(memtable.keySet());
+            values = new ArrayList<Object>(memtable.values());
+        }
+
+        SortedRun(List<Key> keys, List<Object> values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        /**
+         * Returns the index of the first key after {@code key}, or at
+         * {@code key} if inclusive.
+         */
+        int lowerBound(Key key, boolean inclusive) {
+            int loc = Collections.binarySearch(keys, key, tree.comparator());
+            if (loc < 0)
+                return -loc - 1;
+            return inclusive ? loc : loc + 1;
+        }
+
+        /**
+         * Merges a newer run over this one.
+         */
+        SortedRun overwrite(SortedRun newer) {
+            List<Key> mergedKeys = new ArrayList<Key>(keys.size() + newer.keys.size());
+            List<Object> mergedValues = new ArrayList<Object>(keys.size() + newer.keys.size());
+            int i = 0, j = 0;
+            while (i < keys.size() || j < newer.keys.size()) {
+                int cmp = i == keys.size() ? 1 : j == newer.keys.size() ? -1
+                        : tree.compare(keys.get(i), newer.keys.get(j));
+                if (cmp < 0) {
+                    mergedKeys.add(keys.get(i));
+                    mergedValues.add(values.get(i++));
+                } else {
+                    if (cmp == 0)
+                        i++;
+                    mergedKeys.add(newer.keys.get(j));
+                    mergedValues.add(newer.values.get(j++));
+                }
+            }
+            return new SortedRun(mergedKeys, mergedValues);
+        }
+    }
+
+    /**
+     * Merges the entries of the tree with a run of updates, dropping the
+     * entries deleted by tombstones.
+     */
+    private class MergeIterator implements Iterator<Map.Entry<Key, Value>> {
+        private final Iterator<Map.Entry<Key, Value>> base;
+        private final SortedRun updates;
+        private Map.Entry<Key, Value> baseEntry;
+        private int index;
+        private Map.Entry<Key, Value> next;
+
+        MergeIterator(Iterator<Map.Entry<Key, Value>> base, SortedRun updates) {
+            this.base = base;
+            this.updates = updates;
+            this.baseEntry = base.hasNext() ? base.next() : null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean hasNext() {
+            while (next == null && (baseEntry != null || index < updates.keys.size())) {
+                int cmp = baseEntry == null ? 1 : index == updates.keys.size() ? -1
+                        : tree.compare(baseEntry.getKey(), updates.keys.get(index));
+                if (cmp < 0) {
+                    next = baseEntry;
+                } else {
+                    Object value = updates.values.get(index);
+                    if (value != TOMBSTONE)
+                        next = new AbstractMap.SimpleImmutableEntry<Key, Value>(
+                                updates.keys.get(index), (Value) value);
+                    index++;
+                }
+                if (cmp <= 0)
+                    baseEntry = base.hasNext() ? base.next() : null;
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<Key, Value> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Map.Entry<Key, Value> entry = next;
+            next = null;
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package source;
+
+import java.util.*;
+
+/**
+ * Randomized differential harness for {@link LsmBPlusTree}: every operation
+ * is applied both to the buffered tree and to a {@link TreeMap}, and their
+ * results must match. The memtable is small, so writes go through frequent
+ * flushes and merges, and deletes of keys already in the runs or in the tree
+ * leave tombstones that must hide them until the merge drops them. After each
+ * merge the underlying tree alone must hold the expected entries.
+ *
+ * <p>
+ * Usage: {@code LsmBPlusTreeFuzzer [seed [operations]]}. A failure reports
+ * the seed and the operation that failed, and exits with a non-zero status.
+ */
+public class LsmBPlusTreeFuzzer {
+
+    static final int DEFAULT_OPERATIONS = 200000;
+
+    static final int KEY_SPACE = 2048;
+
+    private final Random random;
+    private final Comparator<Integer> comparator;
+    private final LsmBPlusTree<Integer, String> lsm;
+    private final TreeMap<Integer, String> expected;
+    private final String configuration;
+    private String operation;
+    private int merges;
+
+    LsmBPlusTreeFuzzer(long seed) {
+        this.random = new Random(seed);
+        int branchingFactor = 3 + random.nextInt(30);
+        int memtableCapacity = 1 + random.nextInt(64);
+        int maxRuns = random.nextInt(5);
+        this.comparator = random.nextBoolean() ? null : Collections.<Integer>reverseOrder();
+        this.lsm = new LsmBPlusTree<Integer, String>(new BPlusTree<Integer, String>(branchingFactor, comparator),
+                memtableCapacity, maxRuns);
+        this.expected = new TreeMap<Integer, String>(comparator);
+        this.configuration = "branching factor " + branchingFactor + ", memtable " + memtableCapacity + ", "
+                + maxRuns + " runs, " + (comparator == null ? "natural" : "reverse") + " order";
+    }
+
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_OPERATIONS;
+
+        LsmBPlusTreeFuzzer fuzzer = new LsmBPlusTreeFuzzer(seed);
+        int step = 0;
+        try {
+            for (; step < operations; step++)
+                fuzzer.step(step);
+            fuzzer.operation = "final merge";
+            fuzzer.merge();
+        } catch (RuntimeException | AssertionError ex) {
+            System.err.println("Failed with seed " + seed + " (" + fuzzer.configuration + ") at step " + step
+                    + " (" + fuzzer.operation + ")");
+            ex.printStackTrace();
+            System.exit(1);
+        }
+        System.out.println(fuzzer.configuration + ": " + operations + " operations, " + fuzzer.expected.size()
+                + " entries, " + fuzzer.merges + " explicit merges");
+        System.out.println("Seed " + seed + " passed");
+    }
+
+    private void step(int step) {
+        int key = random.nextInt(KEY_SPACE);
+        int dice = random.nextInt(1000);
+        if (dice < 450) {
+            String value = "v" + step;
+            operation = "insert " + key;
+            lsm.insert(key, value);
+            expected.put(key, value);
+        } else if (dice < 700) {
+            operation = "delete " + key;
+            lsm.delete(key);
+            expected.remove(key);
+        } else if (dice < 710) {
+            operation = "flush";
+            lsm.flush();
+        } else if (dice < 713) {
+            operation = "merge";
+            merge();
+        } else if (dice < 900) {
+            operation = "search " + key;
+            check(expected.get(key), lsm.search(key));
+        } else {
+            int key2 = random.nextInt(KEY_SPACE);
+            BPlusTree.RangePolicy policy1 = randomPolicy(), policy2 = randomPolicy();
+            operation = "searchRangeEntries " + key + " " + policy1 + " " + key2 + " " + policy2;
+            List<Map.Entry<Integer, String>> entries = lsm.searchRangeEntries(key, policy1, key2, policy2);
+            SortedMap<Integer, String> range = subMap(key, policy1, key2, policy2);
+            check(new ArrayList<Map.Entry<Integer, String>>(range.entrySet()), entries);
+            check(new ArrayList<String>(range.values()), lsm.searchRange(key, policy1, key2, policy2));
+        }
+    }
+
+    /**
+     * Merges everything into the tree, which must then match on its own.
+     */
+    private void merge() {
+        lsm.merge();
+        merges++;
+        check(0, lsm.getRunCount());
+        BPlusTree<Integer, String> tree = lsm.getTree();
+        tree.checkInvariants();
+        List<Map.Entry<Integer, String>> entries = new ArrayList<Map.Entry<Integer, String>>();
+        for (Iterator<Map.Entry<Integer, String>> it = tree.entryIterator(); it.hasNext(); )
+            entries.add(it.next());
+        check(new ArrayList<Map.Entry<Integer, String>>(expected.entrySet()), entries);
+    }
+
+    private SortedMap<Integer, String> subMap(int key1, BPlusTree.RangePolicy policy1, int key2,
+                                              BPlusTree.RangePolicy policy2) {
+        int cmp = comparator == null ? Integer.compare(key1, key2) : comparator.compare(key1, key2);
+        if (cmp > 0 || (cmp == 0 && (policy1 == BPlusTree.RangePolicy.EXCLUSIVE
+                || policy2 == BPlusTree.RangePolicy.EXCLUSIVE)))
+            return new TreeMap<Integer, String>(comparator);
+        return expected.subMap(key1, policy1 == BPlusTree.RangePolicy.INCLUSIVE, key2,
+                policy2 == BPlusTree.RangePolicy.INCLUSIVE);
+    }
+
+    private BPlusTree.RangePolicy randomPolicy() {
+        return random.nextBoolean() ? BPlusTree.RangePolicy.INCLUSIVE : BPlusTree.RangePolicy.EXCLUSIVE;
+    }
+
+    private static void check(Object expected, Object actual) {
+        if (expected == null ? actual != null : !expected.equals(actual))
+            throw new AssertionError("Expected " + expected + " but was " + actual);
+    }
+}
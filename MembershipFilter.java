@@ -0,0 +1,230 @@
+package source;
+
+/**
+ * A Bloom filter over the keys of a {@link BPlusTree}, consulted by
+ * {@link BPlusTree#search} before it descends the tree, so that most searches
+ * for absent keys cost a few hash probes, as returned by
+ * {@link BPlusTree#getMembershipFilter()}.
+ *
+ * <p>
+ * A plain filter keeps one bit per slot, and cannot forget a removed key: it
+ * suits insert-mostly workloads, and its false positive rate grows with the
+ * deletes until the tree rebuilds it. A counting filter keeps an 8-bit counter
+ * per slot, eight times the memory, and decrements the counters of removed
+ * keys. A counter that reached 255 is never decremented again, so the filter
+ * never rejects a key of the tree.
+ *
+ * <p>
+ * The filter is given the hash codes of the keys, which must be consistent
+ * with the ordering of the tree: keys comparing equal must have equal hash
+ * codes, or the filter rejects keys of the tree.
+ *
+ * @see BPlusTree#setMembershipFilter(double, boolean, java.util.function.ToIntFunction)
+ */
+public class MembershipFilter {
+
+    /**
+     * The smallest number of keys a filter is sized for.
+     */
+    static final int MIN_CAPACITY = 1024;
+
+    private final int capacity;
+    private final double falsePositiveRate;
+    private final int slots;
+    private final int hashes;
+    private final long[] bits;
+    private final byte[] counters;
+
+    /**
+     * The number of slots set.
+     */
+    private int setSlots;
+
+    long rejections;
+    long falsePositives;
+
+    /**
+     * Constructs an empty filter.
+     *
+     * @param capacity
+     *            the number of keys over which the false positive rate is
+     *            exceeded
+     * @param falsePositiveRate
+     *            the fraction of absent keys let through at capacity
+     * @param counting
+     *            whether to keep counters, so that removed keys are
+     *            forgotten
+     */
+    MembershipFilter(int capacity, double falsePositiveRate, boolean counting) {
+        checkFalsePositiveRate(falsePositiveRate);
+        this.capacity = Math.max(capacity, MIN_CAPACITY);
+        this.falsePositiveRate = falsePositiveRate;
+        double ln2 = Math.log(2);
+        long optimal = (long) Math.ceil(-this.capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+        this.slots = (int) Math.min((optimal + 63) & ~63L, Integer.MAX_VALUE - 63);
+        this.hashes = Math.max(1, (int) Math.round((double) slots / this.capacity * ln2));
+        this.bits = counting ? null : new long[slots >>> 6];
+        this.counters = counting ? new byte[slots] : null;
+    }
+
+    static void checkFalsePositiveRate(double falsePositiveRate) {
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1))
+            throw new IllegalArgumentException("Illegal false positive rate: " + falsePositiveRate);
+    }
+
+    /**
+     * Returns an empty filter like this one sized for the specified number of
+     * keys, carrying over the counts of this one.
+     */
+    MembershipFilter resize(int capacity) {
+        MembershipFilter filter = new MembershipFilter(capacity, falsePositiveRate, isCounting());
+        filter.rejections = rejections;
+        filter.falsePositives = falsePositives;
+        return filter;
+    }
+
+    public boolean isCounting() {
+        return counters != null;
+    }
+
+    /**
+     * Returns the number of keys over which the filter lets through more than
+     * its target false positive rate.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    public int getHashes() {
+        return hashes;
+    }
+
+    /**
+     * Returns the size of the bits or counters of the filter, in bytes.
+     */
+    public long getMemoryBytes() {
+        return isCounting() ? counters.length : (long) bits.length * 8;
+    }
+
+    /**
+     * Returns the number of searches for absent keys answered by the filter
+     * without descending the tree.
+     */
+    public long getRejections() {
+        return rejections;
+    }
+
+    /**
+     * Returns the number of searches for absent keys the filter let through.
+     */
+    public long getFalsePositives() {
+        return falsePositives;
+    }
+
+    /**
+     * Returns the measured fraction of searches for absent keys the filter
+     * let through.
+     */
+    public double getFalsePositiveRate() {
+        long misses = rejections + falsePositives;
+        return misses == 0 ? 0 : (double) falsePositives / misses;
+    }
+
+    /**
+     * Returns the fraction of absent keys the filter lets through with its
+     * current slots set.
+     */
+    public double getExpectedFalsePositiveRate() {
+        return Math.pow((double) setSlots / slots, hashes);
+    }
+
+    public void resetStatistics() {
+        rejections = 0;
+        falsePositives = 0;
+    }
+
+    void add(int hash) {
+        int hash1 = mix(hash);
+        int hash2 = mix(hash1 ^ 0x9E3779B9) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int slot = slot(hash1, hash2, i);
+            if (counters != null) {
+                int count = counters[slot] & 0xFF;
+                if (count == 0)
+                    setSlots++;
+                if (count != 0xFF)
+                    counters[slot] = (byte) (count + 1);
+            } else {
+                long mask = 1L << slot;
+                if ((bits[slot >>> 6] & mask) == 0) {
+                    bits[slot >>> 6] |= mask;
+                    setSlots++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets a key of the filter, if it keeps counters.
+     */
+    void remove(int hash) {
+        if (counters == null)
+            return;
+        int hash1 = mix(hash);
+        int hash2 = mix(hash1 ^ 0x9E3779B9) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int slot = slot(hash1, hash2, i);
+            int count = counters[slot] & 0xFF;
+            if (count == 0 || count == 0xFF)
+                continue;
+            counters[slot] = (byte) (count - 1);
+            if (count == 1)
+                setSlots--;
+        }
+    }
+
+    /**
+     * Returns {@code false} if no key with the specified hash code was added,
+     * or they were all removed from a counting filter.
+     */
+    boolean mightContain(int hash) {
+        int hash1 = mix(hash);
+        int hash2 = mix(hash1 ^ 0x9E3779B9) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int slot = slot(hash1, hash2, i);
+            if (counters != null ? counters[slot] == 0 : (bits[slot >>> 6] & 1L << slot) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the i-th slot of a key, by double hashing.
+     */
+    private int slot(int hash1, int hash2, int i) {
+        return (int) (((hash1 + (long) i * hash2) & Long.MAX_VALUE) % slots);
+    }
+
+    /**
+     * Spreads the bits of a hash code, as the finalizer of MurmurHash3 does.
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    public String toString() {
+        return String.format("%s filter: %d slots, %d hashes, %d bytes, %d rejections, %d false positives"
+                        + " (%.4f measured, %.4f expected)", isCounting() ? "Counting" : "Bloom", slots, hashes,
+                getMemoryBytes(), rejections, falsePositives, getFalsePositiveRate(),
+                getExpectedFalsePositiveRate());
+    }
+}
@@ -0,0 +1,76 @@
+package source;
+
+/**
+ * A change made to a {@link BPlusTree}, as delivered by a {@link ChangeStream}.
+ */
+public class MutationEvent<Key, Value> {
+
+    public enum Type {
+        /**
+         * A key was associated with a value for the first time.
+         */
+        INSERT,
+        /**
+         * The value associated with a key was replaced.
+         */
+        UPDATE,
+        /**
+         * The association for a key was removed.
+         */
+        DELETE,
+        /**
+         * The whole contents of the tree were replaced, by a bulk load or a
+         * snapshot, without individual events; consumers must resynchronize
+         * from the tree. The key and values are {@code null}.
+         */
+        RELOAD
+    }
+
+    private final Type type;
+    private final long sequence;
+    private final Key key;
+    private final Value oldValue;
+    private final Value newValue;
+
+    MutationEvent(Type type, long sequence, Key key, Value oldValue, Value newValue) {
+        this.type = type;
+        this.sequence = sequence;
+        this.key = key;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the position of this event in the changes of the tree, starting
+     * at 1 and without gaps unless events were dropped.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Key getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the value before the change, or {@code null} for an insertion.
+     */
+    public Value getOldValue() {
+        return oldValue;
+    }
+
+    /**
+     * Returns the value after the change, or {@code null} for a deletion.
+     */
+    public Value getNewValue() {
+        return newValue;
+    }
+
+    public String toString() {
+        return "#" + sequence + " " + type + " " + key + ": " + oldValue + " -> " + newValue;
+    }
+}
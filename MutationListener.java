@@ -0,0 +1,20 @@
+package source;
+
+import java.util.List;
+
+/**
+ * Receives the changes of a {@link BPlusTree} in batches, on the thread
+ * dispatching a {@link ChangeStream}.
+ *
+ * @see ChangeStream#dispatch(java.util.concurrent.ExecutorService, MutationListener, int)
+ */
+public interface MutationListener<Key, Value> {
+
+    /**
+     * Handles a batch of changes, in sequence order.
+     *
+     * @param events
+     *            the changes, which must not be kept after the call returns
+     */
+    void onMutations(List<MutationEvent<Key, Value>> events);
+}
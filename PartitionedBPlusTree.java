@@ -0,0 +1,746 @@
+package source;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+
+/**
+ * An ordered map spreading its keys over several {@link BPlusTree}s by key
+ * range, so that writes to different ranges run in parallel.
+ *
+ * <p>
+ * Each partition holds the keys from its lower boundary, included, to the
+ * lower boundary of the next one, excluded, and is guarded by its own
+ * read-write lock. A point operation locks only the partition of its key; a
+ * range operation locks the partitions it spans in ascending order and
+ * concatenates their results, which are already ordered since the ranges do
+ * not overlap. When a partition grows past the skew threshold times the
+ * average partition size, it is split in two halves, and if there are then
+ * more than the requested number of partitions, the two adjacent partitions
+ * holding the fewest keys are merged. Each step locks only the partitions it
+ * replaces, so the other partitions stay available, and the halves must
+ * double in size before they are split again, even when all the keys are
+ * appended to the last partition. {@link #rebalance()} moves all the
+ * boundaries at once.
+ *
+ * <p>
+ * The partitions and boundaries form an immutable layout published through a
+ * volatile field, so operations share no lock but those of their partitions.
+ * A split, a merge or a rebalance write-locks the partitions it replaces,
+ * builds the new partitions, publishes the new layout and retires the
+ * replaced partitions; the ranges of the other partitions do not change. An
+ * operation that finds one of its partitions retired once it holds their
+ * locks read a stale layout, and starts over with the new one.
+ */
+public class PartitionedBPlusTree<Key, Value> {
+
+    /**
+     * The ratio of the largest partition to the average partition size over
+     * which the partitions are rebalanced, when none is specified.
+     */
+    static final double DEFAULT_SKEW_THRESHOLD = 1.5;
+
+    /**
+     * The number of keys under which the partitions are never rebalanced.
+     */
+    static final int MIN_REBALANCE_SIZE = 4096;
+
+    /**
+     * A key range of the map, with the tree holding it and the lock guarding
+     * the tree.
+     */
+    private final class Partition {
+        final BPlusTree<Key, Value> tree = new BPlusTree<Key, Value>(branchingFactor, comparator);
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        /**
+         * Whether a split, merge or rebalance moved the keys of the partition
+         * to a new layout, guarded by the lock.
+         */
+        boolean retired;
+    }
+
+    /**
+     * The partitions in key order, and the lower boundary of each partition
+     * but the first one.
+     */
+    private final class Layout {
+        final List<Partition> partitions;
+        final List<Key> boundaries;
+
+        Layout(List<Partition> partitions, List<Key> boundaries) {
+            this.partitions = partitions;
+            this.boundaries = boundaries;
+        }
+
+        /**
+         * Returns the index of the partition whose range contains the key.
+         */
+        int partitionIndex(Key key) {
+            int low = 0;
+            int high = boundaries.size() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (compare(boundaries.get(mid), key) <= 0)
+                    low = mid + 1;
+                else
+                    high = mid - 1;
+            }
+            return low;
+        }
+
+        /**
+         * Read-locks the partitions from {@code first} to {@code last} in
+         * ascending order.
+         *
+         * @return {@code false}, with no lock held, if the layout was
+         *         replaced
+         */
+        boolean readLock(int first, int last) {
+            for (int i = first; i <= last; i++)
+                partitions.get(i).lock.readLock().lock();
+            if (!isRetired(first, last))
+                return true;
+            readUnlock(first, last);
+            return false;
+        }
+
+        void readUnlock(int first, int last) {
+            for (int i = last; i >= first; i--)
+                partitions.get(i).lock.readLock().unlock();
+        }
+
+        /**
+         * Write-locks the partitions from {@code first} to {@code last} in
+         * ascending order.
+         *
+         * @return {@code false}, with no lock held, if the layout was
+         *         replaced
+         */
+        boolean writeLock(int first, int last) {
+            for (int i = first; i <= last; i++)
+                partitions.get(i).lock.writeLock().lock();
+            if (!isRetired(first, last))
+                return true;
+            writeUnlock(first, last);
+            return false;
+        }
+
+        void writeUnlock(int first, int last) {
+            for (int i = last; i >= first; i--)
+                partitions.get(i).lock.writeLock().unlock();
+        }
+
+        private boolean isRetired(int first, int last) {
+            for (int i = first; i <= last; i++) {
+                if (partitions.get(i).retired)
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Returns a layout where the partitions from {@code first} to
+         * {@code last} are replaced, the lower boundary of {@code first}
+         * being kept.
+         *
+         * @param boundaries
+         *            the lower boundaries of the replacing partitions but the
+         *            first one
+         */
+        Layout replace(int first, int last, List<Partition> replacing, List<Key> boundaries) {
+            List<Partition> newPartitions = new ArrayList<Partition>(partitions.subList(0, first));
+            newPartitions.addAll(replacing);
+            newPartitions.addAll(partitions.subList(last + 1, partitions.size()));
+            List<Key> newBoundaries = new ArrayList<Key>(this.boundaries.subList(0, first));
+            newBoundaries.addAll(boundaries);
+            newBoundaries.addAll(this.boundaries.subList(last, this.boundaries.size()));
+            return new Layout(newPartitions, newBoundaries);
+        }
+    }
+
+    /**
+     * An operation modifying the tree of a partition.
+     */
+    private interface PartitionUpdate<Key, Value> {
+        Value apply(BPlusTree<Key, Value> tree);
+    }
+
+    private final int partitionCount;
+    private final int branchingFactor;
+    private final Comparator<? super Key> comparator;
+    private double skewThreshold = DEFAULT_SKEW_THRESHOLD;
+
+    /**
+     * The current layout. The map starts with one partition, which is split
+     * until there are {@code partitionCount} partitions. Once an operation
+     * holds the lock of a partition that is not retired, the range of that
+     * partition cannot change until it releases it.
+     */
+    private volatile Layout layout;
+
+    /**
+     * Serializes the splits, merges and rebalances.
+     */
+    private final ReentrantLock rebalanceLock = new ReentrantLock();
+
+    /**
+     * The number of keys, summed over per-thread cells so that writers to
+     * different partitions do not contend on one counter.
+     */
+    private final LongAdder size = new LongAdder();
+    private volatile int rebalances;
+
+    /**
+     * Constructs an empty map with one partition per available processor.
+     */
+    public PartitionedBPlusTree() {
+        this(Runtime.getRuntime().availableProcessors(), 128, null);
+    }
+
+    /**
+     * Constructs an empty map.
+     *
+     * @param partitionCount
+     *            the number of partitions once the map is large enough to be
+     *            rebalanced
+     * @param branchingFactor
+     *            the capacity of the nodes of the partitions
+     * @param comparator
+     *            the comparator that will be used to order the keys, or
+     *            {@code null} to use the natural ordering of the keys
+     */
+    public PartitionedBPlusTree(int partitionCount, int branchingFactor, Comparator<? super Key> comparator) {
+        if (partitionCount <= 0)
+            throw new IllegalArgumentException("Illegal number of partitions: " + partitionCount);
+        if (branchingFactor <= 2)
+            throw new IllegalArgumentException("Illegal branching factor: " + branchingFactor);
+        this.partitionCount = partitionCount;
+        this.branchingFactor = branchingFactor;
+        this.comparator = comparator;
+        this.layout = new Layout(Collections.singletonList(new Partition()), Collections.<Key>emptyList());
+    }
+
+    /**
+     * Sets the ratio of a partition to the average partition size over which
+     * it is split.
+     */
+    public void setSkewThreshold(double skewThreshold) {
+        if (!(skewThreshold > 1))
+            throw new IllegalArgumentException("Illegal skew threshold: " + skewThreshold);
+        this.skewThreshold = skewThreshold;
+    }
+
+    public int size() {
+        return size.intValue();
+    }
+
+    /**
+     * Returns the number of partitions the keys are currently spread over.
+     */
+    public int getPartitionCount() {
+        return layout.partitions.size();
+    }
+
+    /**
+     * Returns the lower boundaries of the partitions but the first one.
+     */
+    public List<Key> getBoundaries() {
+        return new ArrayList<Key>(layout.boundaries);
+    }
+
+    /**
+     * Returns the number of keys of each partition.
+     */
+    public int[] getPartitionSizes() {
+        for (; ; ) {
+            Layout current = layout;
+            int last = current.partitions.size() - 1;
+            if (!current.readLock(0, last))
+                continue;
+            try {
+                int[] sizes = new int[last + 1];
+                for (int i = 0; i <= last; i++)
+                    sizes[i] = current.partitions.get(i).tree.size();
+                return sizes;
+            } finally {
+                current.readUnlock(0, last);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of times a partition was split or the partitions
+     * were rebalanced.
+     */
+    public int getRebalances() {
+        return rebalances;
+    }
+
+    /**
+     * Returns the value to which the specified key is associated, or
+     * {@code null} if there is no association for the key.
+     *
+     * @param key
+     *            the key whose associated value is to be returned
+     */
+    public Value search(Key key) {
+        for (; ; ) {
+            Layout current = layout;
+            int index = current.partitionIndex(key);
+            if (!current.readLock(index, index))
+                continue;
+            try {
+                return current.partitions.get(index).tree.search(key);
+            } finally {
+                current.readUnlock(index, index);
+            }
+        }
+    }
+
+    /**
+     * Returns the values associated with the keys specified by the range:
+     * {@code key1} and {@code key2}, across the partitions.
+     *
+     * @see BPlusTree#searchRange(Object, BPlusTree.RangePolicy, Object, BPlusTree.RangePolicy)
+     */
+    public List<Value> searchRange(Key key1, BPlusTree.RangePolicy policy1, Key key2,
+                                   BPlusTree.RangePolicy policy2) {
+        List<Value> result = new ArrayList<Value>();
+        for (Map.Entry<Key, Value> entry : searchRangeEntries(key1, policy1, key2, policy2))
+            result.add(entry.getValue());
+        return result;
+    }
+
+    /**
+     * Returns the key-value pairs specified by the range: {@code key1} and
+     * {@code key2}, across the partitions.
+     *
+     * @see BPlusTree#searchRangeEntries(Object, BPlusTree.RangePolicy, Object, BPlusTree.RangePolicy)
+     */
+    public List<Map.Entry<Key, Value>> searchRangeEntries(Key key1, BPlusTree.RangePolicy policy1, Key key2,
+                                                       BPlusTree.RangePolicy policy2) {
+        List<Map.Entry<Key, Value>> result = new ArrayList<Map.Entry<Key, Value>>();
+        if (compare(key1, key2) > 0)
+            return result;
+        for (; ; ) {
+            Layout current = layout;
+            int first = current.partitionIndex(key1);
+            int last = current.partitionIndex(key2);
+            if (!current.readLock(first, last))
+                continue;
+            try {
+                for (int i = first; i <= last; i++)
+                    result.addAll(current.partitions.get(i).tree.searchRangeEntries(key1, policy1, key2, policy2));
+            } finally {
+                current.readUnlock(first, last);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Returns the next 10 keys from {@code key1}, continuing into the
+     * following partitions if the partition of {@code key1} has fewer.
+     *
+     * @see BPlusTree#searchRange(Object, BPlusTree.RangePolicy)
+     */
+    public List<Key> searchRange(Key key1, BPlusTree.RangePolicy policy1) {
+        List<Key> result = new ArrayList<Key>(10);
+        for (; ; ) {
+            Layout current = layout;
+            int first = current.partitionIndex(key1);
+            if (!current.readLock(first, first))
+                continue;
+            int last = first;
+            boolean stale = false;
+            try {
+                result.addAll(current.partitions.get(first).tree.searchRange(key1, policy1));
+                while (result.size() < 10 && last + 1 < current.partitions.size()) {
+                    Partition partition = current.partitions.get(++last);
+                    partition.lock.readLock().lock();
+                    if (partition.retired) {
+                        stale = true;
+                        break;
+                    }
+                    for (Key key : partition.tree.searchRange(current.boundaries.get(last - 1),
+                            BPlusTree.RangePolicy.INCLUSIVE)) {
+                        if (result.size() == 10)
+                            break;
+                        result.add(key);
+                    }
+                }
+            } finally {
+                current.readUnlock(first, last);
+            }
+            if (!stale)
+                return result;
+            result.clear();
+        }
+    }
+
+    /**
+     * Associates the specified value with the specified key.
+     *
+     * @return the value previously associated with the key, or {@code null}
+     */
+    public Value insert(final Key key, final Value value) {
+        return update(key, new PartitionUpdate<Key, Value>() {
+            @Override
+            public Value apply(BPlusTree<Key, Value> tree) {
+                return tree.insert(key, value);
+            }
+        });
+    }
+
+    /**
+     * Removes the association for the specified key if present.
+     *
+     * @return the value previously associated with the key, or {@code null}
+     */
+    public Value remove(final Key key) {
+        return update(key, new PartitionUpdate<Key, Value>() {
+            @Override
+            public Value apply(BPlusTree<Key, Value> tree) {
+                return tree.remove(key);
+            }
+        });
+    }
+
+    public void delete(Key key) {
+        remove(key);
+    }
+
+    /**
+     * @see BPlusTree#replace(Object, Object)
+     */
+    public Value replace(final Key key, final Value value) {
+        return update(key, new PartitionUpdate<Key, Value>() {
+            @Override
+            public Value apply(BPlusTree<Key, Value> tree) {
+                return tree.replace(key, value);
+            }
+        });
+    }
+
+    /**
+     * @see BPlusTree#putIfAbsent(Object, Object)
+     */
+    public Value putIfAbsent(final Key key, final Value value) {
+        return update(key, new PartitionUpdate<Key, Value>() {
+            @Override
+            public Value apply(BPlusTree<Key, Value> tree) {
+                return tree.putIfAbsent(key, value);
+            }
+        });
+    }
+
+    /**
+     * Computes the value of the specified key under the lock of its
+     * partition.
+     *
+     * @see BPlusTree#compute(Object, BiFunction)
+     */
+    public Value compute(final Key key, final BiFunction<? super Key, ? super Value, ? extends Value> function) {
+        return update(key, new PartitionUpdate<Key, Value>() {
+            @Override
+            public Value apply(BPlusTree<Key, Value> tree) {
+                return tree.compute(key, function);
+            }
+        });
+    }
+
+    /**
+     * @see BPlusTree#merge(Object, Object, BiFunction)
+     */
+    public Value merge(final Key key, final Value value,
+                       final BiFunction<? super Value, ? super Value, ? extends Value> function) {
+        return update(key, new PartitionUpdate<Key, Value>() {
+            @Override
+            public Value apply(BPlusTree<Key, Value> tree) {
+                return tree.merge(key, value, function);
+            }
+        });
+    }
+
+    /**
+     * Removes all the associations for the keys specified by the range:
+     * {@code key1} and {@code key2}, locking the partitions it spans.
+     *
+     * @see BPlusTree#deleteRange(Object, BPlusTree.RangePolicy, Object, BPlusTree.RangePolicy)
+     */
+    public void deleteRange(Key key1, BPlusTree.RangePolicy policy1, Key key2, BPlusTree.RangePolicy policy2) {
+        if (compare(key1, key2) > 0)
+            return;
+        for (; ; ) {
+            Layout current = layout;
+            int first = current.partitionIndex(key1);
+            int last = current.partitionIndex(key2);
+            if (!current.writeLock(first, last))
+                continue;
+            try {
+                for (int i = first; i <= last; i++) {
+                    BPlusTree<Key, Value> tree = current.partitions.get(i).tree;
+                    int before = tree.size();
+                    tree.deleteRange(key1, policy1, key2, policy2);
+                    size.add(tree.size() - before);
+                }
+            } finally {
+                current.writeUnlock(first, last);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Runs an update on the partition of the key, then splits that partition
+     * if the update made it too large.
+     */
+    private Value update(Key key, PartitionUpdate<Key, Value> update) {
+        Value result;
+        int partitionSize;
+        for (; ; ) {
+            Layout current = layout;
+            int index = current.partitionIndex(key);
+            if (!current.writeLock(index, index))
+                continue;
+            try {
+                BPlusTree<Key, Value> tree = current.partitions.get(index).tree;
+                int before = tree.size();
+                result = update.apply(tree);
+                partitionSize = tree.size();
+                size.add(partitionSize - before);
+            } finally {
+                current.writeUnlock(index, index);
+            }
+            break;
+        }
+        if (isSkewed(partitionSize))
+            split(key);
+        return result;
+    }
+
+    private boolean isSkewed(int partitionSize) {
+        int total = size.intValue();
+        return partitionCount > 1 && total >= MIN_REBALANCE_SIZE
+                && partitionSize > skewThreshold * total / partitionCount;
+    }
+
+    /**
+     * Splits the partition of the key in two halves if it is still too
+     * large, since another writer may have split it meanwhile, then merges
+     * the two adjacent partitions holding the fewest keys if there are more
+     * than {@code partitionCount} partitions. Each step write-locks only the
+     * partitions it replaces.
+     */
+    private void split(Key key) {
+        rebalanceLock.lock();
+        try {
+            /* Only the holder of the rebalance lock retires partitions, so the layout is current */
+            Layout current = layout;
+            int index = current.partitionIndex(key);
+            Partition hot = current.partitions.get(index);
+            current.writeLock(index, index);
+            try {
+                if (!isSkewed(hot.tree.size()))
+                    return;
+                List<Key> boundaries = new ArrayList<Key>(1);
+                List<Partition> halves = load(Collections.singletonList(hot), 2, boundaries);
+                layout = current.replace(index, index, halves, boundaries);
+                hot.retired = true;
+                rebalances++;
+            } finally {
+                current.writeUnlock(index, index);
+            }
+            if (layout.partitions.size() > partitionCount)
+                mergeSmallestPair(index);
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
+
+    /**
+     * Merges the two adjacent partitions holding the fewest keys, but the
+     * halves of a split.
+     *
+     * @param split
+     *            the index of the first half
+     */
+    private void mergeSmallestPair(int split) {
+        Layout current = layout;
+        int[] sizes = new int[current.partitions.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            ReentrantReadWriteLock lock = current.partitions.get(i).lock;
+            lock.readLock().lock();
+            try {
+                sizes[i] = current.partitions.get(i).tree.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        int first = -1;
+        for (int i = 0; i + 1 < sizes.length; i++) {
+            if (i != split && (first < 0 || sizes[i] + sizes[i + 1] < sizes[first] + sizes[first + 1]))
+                first = i;
+        }
+        current.writeLock(first, first + 1);
+        try {
+            List<Partition> pair = current.partitions.subList(first, first + 2);
+            List<Partition> merged = load(pair, 1, new ArrayList<Key>(0));
+            layout = current.replace(first, first + 1, merged, Collections.<Key>emptyList());
+            for (Partition partition : pair)
+                partition.retired = true;
+        } finally {
+            current.writeUnlock(first, first + 1);
+        }
+    }
+
+    /**
+     * Moves the boundaries so that every partition holds the same number of
+     * keys. This write-locks every partition while all the keys are copied,
+     * so it pauses every operation; splits keep the partitions balanced
+     * without it.
+     */
+    public void rebalance() {
+        rebalanceLock.lock();
+        try {
+            Layout current = layout;
+            int last = current.partitions.size() - 1;
+            current.writeLock(0, last);
+            try {
+                int count = Math.max(1, Math.min(partitionCount, size.intValue()));
+                List<Key> boundaries = new ArrayList<Key>(count - 1);
+                List<Partition> rebuilt = load(current.partitions, count, boundaries);
+                layout = new Layout(rebuilt, boundaries);
+                for (Partition partition : current.partitions)
+                    partition.retired = true;
+                rebalances++;
+            } finally {
+                current.writeUnlock(0, last);
+            }
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
+
+    /**
+     * Bulk loads {@code count} new partitions of equal sizes from the
+     * ordered entries of adjacent partitions, which must be write-locked.
+     *
+     * @param boundaries
+     *            receives the lower boundaries of the new partitions but the
+     *            first one
+     */
+    private List<Partition> load(final List<Partition> old, int count, List<Key> boundaries) {
+        int total = 0;
+        for (Partition partition : old)
+            total += partition.tree.size();
+        final Iterator<Map.Entry<Key, Value>> entries = new Iterator<Map.Entry<Key, Value>>() {
+            private int index;
+            private Iterator<Map.Entry<Key, Value>> current = old.get(0).tree.entryIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && index + 1 < old.size())
+                    current = old.get(++index).tree.entryIterator();
+                return current.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Key, Value> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return current.next();
+            }
+        };
+
+        List<Partition> rebuilt = new ArrayList<Partition>(count);
+        for (int i = 0; i < count; i++) {
+            final int share = total / count + (i < total % count ? 1 : 0);
+            Partition partition = new Partition();
+            partition.tree.bulkLoad(new Iterator<Map.Entry<Key, Value>>() {
+                private int taken;
+
+                @Override
+                public boolean hasNext() {
+                    return taken < share && entries.hasNext();
+                }
+
+                @Override
+                public Map.Entry<Key, Value> next() {
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    taken++;
+                    return entries.next();
+                }
+            });
+            if (i > 0)
+                boundaries.add(partition.tree.getFirstLeafKey());
+            rebuilt.add(partition);
+        }
+        return rebuilt;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(Key key1, Key key2) {
+        return comparator == null ? ((Comparable<? super Key>) key1).compareTo(key2)
+                : comparator.compare(key1, key2);
+    }
+
+    /**
+     * Checks the invariants of every partition, and that each partition only
+     * holds keys of its range.
+     *
+     * @throws IllegalStateException
+     *             if an invariant does not hold
+     */
+    public void checkInvariants() {
+        for (; ; ) {
+            Layout current = layout;
+            int last = current.partitions.size() - 1;
+            if (!current.writeLock(0, last))
+                continue;
+            try {
+                int total = 0;
+                for (int i = 0; i <= last; i++) {
+                    BPlusTree<Key, Value> tree = current.partitions.get(i).tree;
+                    tree.checkInvariants();
+                    total += tree.size();
+                    for (Iterator<Map.Entry<Key, Value>> it = tree.entryIterator(); it.hasNext(); ) {
+                        Key key = it.next().getKey();
+                        if (current.partitionIndex(key) != i)
+                            throw new IllegalStateException("Key " + key + " outside of partition " + i);
+                    }
+                }
+                /* The size is updated under the partition locks, so it is stable here */
+                if (total != size.intValue())
+                    throw new IllegalStateException("Size " + size.intValue() + " but " + total + " keys");
+            } finally {
+                current.writeUnlock(0, last);
+            }
+            return;
+        }
+    }
+
+    public String toString() {
+        for (; ; ) {
+            Layout current = layout;
+            int last = current.partitions.size() - 1;
+            if (!current.readLock(0, last))
+                continue;
+            try {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i <= last; i++) {
+                    sb.append(i == 0 ? "(-inf" : "[" + current.boundaries.get(i - 1)).append(" .. ")
+                            .append(i < last ? current.boundaries.get(i) + ")" : "+inf)").append('\n')
+                            .append(current.partitions.get(i).tree).append('\n');
+                }
+                return sb.toString();
+            } finally {
+                current.readUnlock(0, last);
+            }
+        }
+    }
+}
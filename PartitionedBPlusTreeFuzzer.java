@@ -0,0 +1,198 @@
+package source;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+
+/**
+ * Randomized concurrent differential harness for {@link PartitionedBPlusTree}:
+ * several writer threads run inserts, removes, single-descent updates, single
+ * key range deletes and reads on disjoint sets of keys, each against its own
+ * {@link TreeMap}, while another thread keeps checking the invariants of the
+ * partitions and sometimes rebalances them. The keys of each thread are drawn
+ * from a range growing with the steps, so that most inserts go to the last
+ * partition and keep splitting it. Since no thread touches the keys of another one,
+ * every read restricted to the keys of its thread must match its map, however
+ * the operations interleave. At the end, the map must hold the union of the
+ * expected maps.
+ *
+ * <p>
+ * Usage: {@code PartitionedBPlusTreeFuzzer [seed [operations [threads]]]}. A
+ * failure reports the seed and the operation that failed, and exits with a
+ * non-zero status.
+ */
+public class PartitionedBPlusTreeFuzzer {
+
+    static final int DEFAULT_OPERATIONS = 200000;
+
+    static final int DEFAULT_THREADS = 4;
+
+    /**
+     * The number of keys of each thread.
+     */
+    static final int KEYS_PER_THREAD = 4096;
+
+    private final PartitionedBPlusTree<Integer, String> map;
+    private final int threads;
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    PartitionedBPlusTreeFuzzer(int threads) {
+        this.threads = threads;
+        this.map = new PartitionedBPlusTree<Integer, String>(threads, 8, null);
+        this.map.setSkewThreshold(1.2);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_OPERATIONS;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_THREADS;
+
+        PartitionedBPlusTreeFuzzer fuzzer = new PartitionedBPlusTreeFuzzer(threads);
+        fuzzer.run(seed, operations);
+        if (fuzzer.failure.get() != null) {
+            System.err.println("Failed with seed " + seed);
+            fuzzer.failure.get().printStackTrace();
+            System.exit(1);
+        }
+        System.out.println(operations + " operations on " + threads + " threads, " + fuzzer.map.size()
+                + " entries, " + fuzzer.map.getRebalances() + " rebalances");
+        System.out.println("Seed " + seed + " passed");
+    }
+
+    void run(long seed, final int operations) throws InterruptedException {
+        List<Thread> workers = new ArrayList<Thread>();
+        final List<TreeMap<Integer, String>> expected = new ArrayList<TreeMap<Integer, String>>();
+        for (int t = 0; t < threads; t++) {
+            final TreeMap<Integer, String> own = new TreeMap<Integer, String>();
+            expected.add(own);
+            final Worker worker = new Worker(t, new Random(seed + t), own);
+            workers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int step = 0; step < operations / threads && failure.get() == null; step++)
+                            worker.step(step);
+                    } catch (RuntimeException | AssertionError ex) {
+                        failure.compareAndSet(null, new AssertionError("Thread " + worker.thread + ": "
+                                + worker.operation, ex));
+                    }
+                }
+            }, "writer-" + t));
+        }
+        final Random random = new Random(seed - 1);
+        Thread rebalancer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!done.get() && failure.get() == null) {
+                        if (random.nextInt(16) == 0)
+                            map.rebalance();
+                        else
+                            map.checkInvariants();
+                        Thread.yield();
+                    }
+                } catch (RuntimeException | AssertionError ex) {
+                    failure.compareAndSet(null, new AssertionError("Rebalancer", ex));
+                }
+            }
+        }, "rebalancer");
+
+        rebalancer.start();
+        for (Thread worker : workers)
+            worker.start();
+        for (Thread worker : workers)
+            worker.join();
+        done.set(true);
+        rebalancer.join();
+        if (failure.get() != null)
+            return;
+
+        try {
+            map.checkInvariants();
+            TreeMap<Integer, String> union = new TreeMap<Integer, String>();
+            for (TreeMap<Integer, String> own : expected)
+                union.putAll(own);
+            check(union.size(), map.size());
+            check(new ArrayList<Map.Entry<Integer, String>>(union.entrySet()),
+                    map.searchRangeEntries(Integer.MIN_VALUE, BPlusTree.RangePolicy.INCLUSIVE, Integer.MAX_VALUE,
+                            BPlusTree.RangePolicy.INCLUSIVE));
+        } catch (RuntimeException | AssertionError ex) {
+            failure.compareAndSet(null, ex);
+        }
+    }
+
+    /**
+     * The operations of one thread, on the keys congruent to its number
+     * modulo the number of threads.
+     */
+    private final class Worker {
+        final int thread;
+        final Random random;
+        final TreeMap<Integer, String> expected;
+        String operation;
+
+        Worker(int thread, Random random, TreeMap<Integer, String> expected) {
+            this.thread = thread;
+            this.random = random;
+            this.expected = expected;
+        }
+
+        void step(int step) {
+            final int key = randomKey(step);
+            String value = thread + "v" + step;
+            BiFunction<String, String, String> merger = new BiFunction<String, String, String>() {
+                @Override
+                public String apply(String oldValue, String value) {
+                    return oldValue.length() < 16 ? oldValue + "m" : null;
+                }
+            };
+            int dice = random.nextInt(100);
+            if (dice < 35) {
+                operation = "insert " + key;
+                check(expected.put(key, value), map.insert(key, value));
+            } else if (dice < 50) {
+                operation = "remove " + key;
+                check(expected.remove(key), map.remove(key));
+            } else if (dice < 55) {
+                operation = "putIfAbsent " + key;
+                check(expected.putIfAbsent(key, value), map.putIfAbsent(key, value));
+            } else if (dice < 60) {
+                operation = "merge " + key;
+                check(expected.merge(key, value, merger), map.merge(key, value, merger));
+            } else if (dice < 63) {
+                operation = "deleteRange " + key;
+                map.deleteRange(key, BPlusTree.RangePolicy.INCLUSIVE, key, BPlusTree.RangePolicy.INCLUSIVE);
+                expected.remove(key);
+            } else if (dice < 85) {
+                operation = "search " + key;
+                check(expected.get(key), map.search(key));
+            } else {
+                int key2 = key + random.nextInt(64 * threads);
+                operation = "searchRangeEntries " + key + " " + key2;
+                List<Map.Entry<Integer, String>> own = new ArrayList<Map.Entry<Integer, String>>();
+                for (Map.Entry<Integer, String> entry : map.searchRangeEntries(key, BPlusTree.RangePolicy.INCLUSIVE,
+                        key2, BPlusTree.RangePolicy.INCLUSIVE)) {
+                    if (Math.floorMod(entry.getKey(), threads) == thread)
+                        own.add(entry);
+                }
+                check(new ArrayList<Map.Entry<Integer, String>>(expected.subMap(key, true, key2, true).entrySet()),
+                        own);
+            }
+        }
+
+        /**
+         * Returns a key among the first {@code step / 8 + 1}, up to
+         * {@link #KEYS_PER_THREAD}.
+         */
+        int randomKey(int step) {
+            return random.nextInt(Math.min(KEYS_PER_THREAD, step / 8 + 1)) * threads + thread;
+        }
+    }
+
+    private static void check(Object expected, Object actual) {
+        if (expected == null ? actual != null : !expected.equals(actual))
+            throw new AssertionError("Expected " + expected + " but was " + actual);
+    }
+}
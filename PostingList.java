@@ -0,0 +1,153 @@
+package source;
+
+import java.util.*;
+
+/**
+ * The list of values associated with one key of a {@link BPlusTreeMultimap}.
+ *
+ * <p>
+ * Small lists are kept inline in a fixed-size array. Once a list grows past
+ * {@link #INLINE_CAPACITY} values it is spilled to a separate overflow list,
+ * and the inline array is released. Once removals shrink it to half the
+ * inline capacity, it moves back inline; the gap keeps a list whose size
+ * hovers around the capacity from being copied back and forth.
+ */
+public class PostingList<Value> implements Iterable<Value> {
+
+    /**
+     * The number of values stored inline before spilling to the overflow list.
+     */
+    static final int INLINE_CAPACITY = 4;
+
+    /**
+     * The inline values, or {@code null} once the list has spilled.
+     */
+    private Object[] inline;
+
+    /**
+     * The overflow values, or {@code null} while the list is inline.
+     */
+    private List<Value> overflow;
+
+    /**
+     * The number of inline values.
+     */
+    private int size;
+
+    PostingList() {
+        inline = new Object[INLINE_CAPACITY];
+    }
+
+    /**
+     * Returns the number of values in this list.
+     */
+    public int size() {
+        return overflow != null ? overflow.size() : size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns {@code true} if the values are stored in the overflow list.
+     */
+    public boolean isSpilled() {
+        return overflow != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Value get(int index) {
+        if (overflow != null)
+            return overflow.get(index);
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return (Value) inline[index];
+    }
+
+    /**
+     * Appends the specified value to this list.
+     *
+     * @param value
+     *            the value to be appended
+     */
+    @SuppressWarnings("unchecked")
+    void add(Value value) {
+        if (overflow != null) {
+            overflow.add(value);
+        } else if (size < inline.length) {
+            inline[size++] = value;
+        } else {
+            overflow = new ArrayList<Value>(INLINE_CAPACITY * 2);
+            for (int i = 0; i < size; i++)
+                overflow.add((Value) inline[i]);
+            overflow.add(value);
+            inline = null;
+            size = 0;
+        }
+    }
+
+    /**
+     * Removes the first occurrence of the specified value from this list.
+     *
+     * @param value
+     *            the value to be removed
+     * @return {@code true} if the list contained the value
+     */
+    boolean remove(Value value) {
+        if (overflow != null) {
+            if (!overflow.remove(value))
+                return false;
+            if (overflow.size() <= INLINE_CAPACITY / 2) {
+                inline = overflow.toArray(new Object[INLINE_CAPACITY]);
+                size = overflow.size();
+                overflow = null;
+            }
+            return true;
+        }
+        for (int i = 0; i < size; i++) {
+            if (value == null ? inline[i] == null : value.equals(inline[i])) {
+                System.arraycopy(inline, i + 1, inline, i, size - i - 1);
+                inline[--size] = null;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Iterator<Value> iterator() {
+        if (overflow != null)
+            return Collections.unmodifiableList(overflow).iterator();
+        return new Iterator<Value>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Value next() {
+                if (index >= size)
+                    throw new NoSuchElementException();
+                return (Value) inline[index++];
+            }
+        };
+    }
+
+    /**
+     * Returns a copy of the values in this list.
+     */
+    public List<Value> toList() {
+        List<Value> result = new ArrayList<Value>(size());
+        for (Value value : this)
+            result.add(value);
+        return result;
+    }
+
+    public String toString() {
+        return toList().toString();
+    }
+}
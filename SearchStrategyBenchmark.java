@@ -0,0 +1,137 @@
+package source;
+
+import java.util.*;
+
+/**
+ * Benchmark of the {@link BPlusTree.SearchStrategy}s, from which the default
+ * strategy and {@link BPlusTree.SearchStrategy#LINEAR_SEARCH_THRESHOLD} are
+ * chosen.
+ *
+ * <p>
+ * It first times a sequential scan against a binary search within a single
+ * node of growing size, to find the size up to which the scan is faster. It
+ * then times random point searches of every strategy on trees of
+ * {@code Integer} and {@code String} keys across branching factors. Each
+ * measure is the best of several rounds, after a warm-up round.
+ *
+ * <p>
+ * Usage: {@code SearchStrategyBenchmark [keys [branchingFactor...]]}.
+ */
+public class SearchStrategyBenchmark {
+
+    static final int DEFAULT_KEYS = 500000;
+
+    static final int[] DEFAULT_BRANCHING_FACTORS = {4, 8, 16, 32, 64, 128, 256, 512};
+
+    static final int[] NODE_SIZES = {4, 8, 12, 16, 24, 32, 48, 64};
+
+    static final int ROUNDS = 5;
+
+    static final int PROBES = 1000000;
+
+    /**
+     * Defeats dead-code elimination of the searches.
+     */
+    static long sink;
+
+    public static void main(String[] args) {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_KEYS;
+        int[] branchingFactors = DEFAULT_BRANCHING_FACTORS;
+        if (args.length > 1) {
+            branchingFactors = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+                branchingFactors[i - 1] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println("Search within a node (ns/search)");
+        System.out.printf("%8s %10s %10s%n", "keys", "linear", "binary");
+        for (int size : NODE_SIZES) {
+            System.out.printf("%8d %10.1f %10.1f%n", size, timeNodeSearch(size, true),
+                    timeNodeSearch(size, false));
+        }
+
+        Random random = new Random(1);
+        Integer[] integers = new Integer[keys];
+        String[] strings = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            integers[i] = random.nextInt();
+            strings[i] = "P" + random.nextInt(Integer.MAX_VALUE);
+        }
+        for (int type = 0; type < 2; type++) {
+            System.out.println();
+            System.out.println("Point search, " + keys + (type == 0 ? " Integer" : " String") + " keys (ns/search)");
+            System.out.printf("%8s", "factor");
+            for (BPlusTree.SearchStrategy strategy : BPlusTree.SearchStrategy.values())
+                System.out.printf(" %13s", strategy);
+            System.out.println();
+            for (int branchingFactor : branchingFactors) {
+                System.out.printf("%8d", branchingFactor);
+                for (BPlusTree.SearchStrategy strategy : BPlusTree.SearchStrategy.values()) {
+                    double nanos = type == 0 ? timeTreeSearch(integers, branchingFactor, strategy)
+                            : timeTreeSearch(strings, branchingFactor, strategy);
+                    System.out.printf(" %13.1f", nanos);
+                }
+                System.out.println();
+            }
+        }
+    }
+
+    /**
+     * Returns the time of a search within one node of the specified size.
+     */
+    static double timeNodeSearch(int size, boolean linear) {
+        BPlusTree<Integer, Integer> tree = new BPlusTree<Integer, Integer>();
+        List<Integer> keys = new ArrayList<Integer>(size);
+        for (int i = 0; i < size; i++)
+            keys.add(2 * i);
+        Integer[] probes = new Integer[1024];
+        Random random = new Random(size);
+        for (int i = 0; i < probes.length; i++)
+            probes[i] = random.nextInt(2 * size);
+
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            long sum = 0;
+            for (int i = 0; i < PROBES; i++) {
+                Integer probe = probes[i & (probes.length - 1)];
+                sum += linear ? tree.linearSearch(keys, probe) : tree.binarySearch(keys, probe);
+            }
+            double nanos = (double) (System.nanoTime() - start) / PROBES;
+            sink += sum;
+            if (round > 0)
+                best = Math.min(best, nanos);
+        }
+        return best;
+    }
+
+    /**
+     * Returns the time of a random point search in a tree of the specified
+     * keys.
+     */
+    static <Key> double timeTreeSearch(Key[] keys, int branchingFactor, BPlusTree.SearchStrategy strategy) {
+        BPlusTree<Key, Key> tree = new BPlusTree<Key, Key>(branchingFactor);
+        tree.setSearchStrategy(strategy);
+        for (Key key : keys)
+            tree.insert(key, key);
+        Random random = new Random(branchingFactor);
+        int[] probes = new int[PROBES];
+        for (int i = 0; i < probes.length; i++)
+            probes[i] = random.nextInt(keys.length);
+
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            long found = 0;
+            for (int probe : probes) {
+                if (tree.search(keys[probe]) != null)
+                    found++;
+            }
+            double nanos = (double) (System.nanoTime() - start) / probes.length;
+            sink += found;
+            if (round > 0)
+                best = Math.min(best, nanos);
+        }
+        return best;
+    }
+}
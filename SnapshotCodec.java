@@ -0,0 +1,87 @@
+package source;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Encodes the keys or values of a {@link BPlusTree} in its binary snapshots.
+ *
+ * @see BPlusTree#writeSnapshot(java.io.OutputStream, SnapshotCodec, SnapshotCodec, boolean)
+ */
+public interface SnapshotCodec<T> {
+
+    /**
+     * Codec for {@link String}s, as a length-prefixed UTF-8 byte sequence. A
+     * negative length encodes {@code null}. The bytes are read in growing
+     * chunks, so that a corrupted length fails at the end of the input
+     * instead of allocating up to 2 GB.
+     */
+    SnapshotCodec<String> STRING = new SnapshotCodec<String>() {
+        private static final int CHUNK_SIZE = 64 * 1024;
+
+        private final Charset utf8 = Charset.forName("UTF-8");
+
+        @Override
+        public void write(DataOutput out, String value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(utf8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        public String read(DataInput in) throws IOException {
+            int length = in.readInt();
+            if (length < 0)
+                return null;
+            byte[] bytes = new byte[Math.min(length, CHUNK_SIZE)];
+            in.readFully(bytes);
+            while (bytes.length < length) {
+                int read = bytes.length;
+                bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * read));
+                in.readFully(bytes, read, bytes.length - read);
+            }
+            return new String(bytes, utf8);
+        }
+    };
+
+    /**
+     * Codec for non-null {@link Integer}s.
+     */
+    SnapshotCodec<Integer> INTEGER = new SnapshotCodec<Integer>() {
+        @Override
+        public void write(DataOutput out, Integer value) throws IOException {
+            out.writeInt(value);
+        }
+
+        @Override
+        public Integer read(DataInput in) throws IOException {
+            return in.readInt();
+        }
+    };
+
+    /**
+     * Codec for non-null {@link Long}s.
+     */
+    SnapshotCodec<Long> LONG = new SnapshotCodec<Long>() {
+        @Override
+        public void write(DataOutput out, Long value) throws IOException {
+            out.writeLong(value);
+        }
+
+        @Override
+        public Long read(DataInput in) throws IOException {
+            return in.readLong();
+        }
+    };
+
+    void write(DataOutput out, T value) throws IOException;
+
+    T read(DataInput in) throws IOException;
+}
@@ -0,0 +1,245 @@
+package source;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Memory and shape statistics of a {@link BPlusTree}, as returned by
+ * {@link BPlusTree#footprint()}.
+ *
+ * <p>
+ * The byte counts are estimates for a 64-bit JVM with compressed references.
+ * The lists backing the nodes report their capacity, so the slack counts the
+ * slots actually allocated, including those freed by trimming. In sampled
+ * mode, only one leaf in {@link #getSampleEvery()} is inspected and
+ * the leaf statistics are extrapolated.
+ */
+public class TreeFootprint {
+
+    static final int OBJECT_HEADER_BYTES = 12;
+    static final int REFERENCE_BYTES = 4;
+    static final int ARRAY_HEADER_BYTES = 16;
+    static final int NODE_LIST_BYTES = 24;
+
+    /**
+     * The shallow size of the key list of a node in a tree with a
+     * {@link KeyNormalizer}, which stores a {@code long} prefix per key.
+     */
+    static final int KEY_LIST_BYTES = 32;
+    static final int PREFIX_BYTES = 8;
+
+    /**
+     * The shallow size of an internal node: header and the references to the
+     * outer tree and to the keys and children lists.
+     */
+    static final int INTERNAL_NODE_BYTES = 24;
+
+    /**
+     * The shallow size of a leaf: header and the references to the outer
+     * tree, to the keys and values lists and to the next and previous leaves.
+     */
+    static final int LEAF_NODE_BYTES = 32;
+
+    /**
+     * The number of buckets of the leaf fill histogram.
+     */
+    public static final int FILL_BUCKETS = 10;
+
+    final List<Integer> nodesPerLevel = new ArrayList<Integer>();
+    final int[] leafFillHistogram = new int[FILL_BUCKETS];
+    int sampleEvery;
+    int sampledLeaves;
+    long entries;
+    long structureBytes;
+    long keyBytes;
+    long valueBytes;
+    long slackBytes;
+    double leafFillSum;
+    final boolean prefixedKeys;
+
+    TreeFootprint(int sampleEvery, boolean prefixedKeys) {
+        this.sampleEvery = sampleEvery;
+        this.prefixedKeys = prefixedKeys;
+    }
+
+    /**
+     * Returns the number of nodes on each level, from the root to the leaves.
+     */
+    public List<Integer> getNodesPerLevel() {
+        return Collections.unmodifiableList(nodesPerLevel);
+    }
+
+    public int getDepth() {
+        return nodesPerLevel.size();
+    }
+
+    public int getLeafCount() {
+        return nodesPerLevel.isEmpty() ? 0 : nodesPerLevel.get(nodesPerLevel.size() - 1);
+    }
+
+    /**
+     * Returns the number of inspected leaves whose fill ratio falls in each
+     * tenth of the leaf capacity; the last bucket includes full leaves.
+     */
+    public int[] getLeafFillHistogram() {
+        return leafFillHistogram.clone();
+    }
+
+    /**
+     * Returns the average number of entries of the leaves divided by their
+     * capacity.
+     */
+    public double getAverageLeafFill() {
+        return sampledLeaves == 0 ? 0 : leafFillSum / sampledLeaves;
+    }
+
+    /**
+     * Returns 1 if every leaf was inspected, or the sampling interval.
+     */
+    public int getSampleEvery() {
+        return sampleEvery;
+    }
+
+    /**
+     * Returns the number of entries, extrapolated in sampled mode.
+     */
+    public long getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns the estimated bytes of the nodes and their backing lists,
+     * including the unused list slots.
+     */
+    public long getStructureBytes() {
+        return structureBytes;
+    }
+
+    /**
+     * Returns the estimated bytes retained by the keys of the leaves.
+     */
+    public long getKeyBytes() {
+        return keyBytes;
+    }
+
+    /**
+     * Returns the estimated bytes retained by the values.
+     */
+    public long getValueBytes() {
+        return valueBytes;
+    }
+
+    /**
+     * Returns the estimated bytes of the unused slots of the backing lists.
+     */
+    public long getSlackBytes() {
+        return slackBytes;
+    }
+
+    /**
+     * Returns the estimated bytes retained by the whole tree.
+     */
+    public long getRetainedBytes() {
+        return structureBytes + keyBytes + valueBytes;
+    }
+
+    /**
+     * Returns the fraction of the retained bytes wasted on unused slots.
+     */
+    public double getSlackFraction() {
+        long retained = getRetainedBytes();
+        return retained == 0 ? 0 : (double) slackBytes / retained;
+    }
+
+    void addInternalNode(int keys, int keyCapacity, int children, int childCapacity) {
+        structureBytes += INTERNAL_NODE_BYTES + keyListBytes(keys, keyCapacity, 1)
+                + listBytes(children, childCapacity, 1);
+    }
+
+    /**
+     * Adds an inspected leaf, standing for {@code weight} leaves.
+     *
+     * @param keyCapacity
+     *            the number of slots allocated by the key list
+     * @param valueCapacity
+     *            the number of slots allocated by the value list
+     * @param capacity
+     *            the maximum number of entries of the leaf
+     */
+    void addLeaf(int keys, int keyCapacity, int valueCapacity, int capacity, long keyBytes, long valueBytes,
+                 int weight) {
+        double fill = capacity == 0 ? 0 : (double) keys / capacity;
+        leafFillSum += fill;
+        leafFillHistogram[Math.min((int) (fill * FILL_BUCKETS), FILL_BUCKETS - 1)]++;
+        sampledLeaves++;
+
+        entries += (long) keys * weight;
+        structureBytes += (LEAF_NODE_BYTES + keyListBytes(keys, keyCapacity, weight)
+                + listBytes(keys, valueCapacity, weight)) * weight;
+        this.keyBytes += keyBytes * weight;
+        this.valueBytes += valueBytes * weight;
+    }
+
+    /**
+     * Returns the estimated bytes of a list of a node holding the specified
+     * number of elements in the specified number of slots, and adds its
+     * unused slots to the slack.
+     */
+    private long listBytes(int size, int capacity, int weight) {
+        slackBytes += (long) (capacity - size) * REFERENCE_BYTES * weight;
+        return NODE_LIST_BYTES + align(ARRAY_HEADER_BYTES + (long) capacity * REFERENCE_BYTES);
+    }
+
+    /**
+     * Returns the estimated bytes of the key list of a node, with its array of
+     * prefixes if the keys are normalized.
+     */
+    private long keyListBytes(int size, int capacity, int weight) {
+        if (!prefixedKeys)
+            return listBytes(size, capacity, weight);
+        slackBytes += (long) (capacity - size) * (REFERENCE_BYTES + PREFIX_BYTES) * weight;
+        return KEY_LIST_BYTES + align(ARRAY_HEADER_BYTES + (long) capacity * REFERENCE_BYTES)
+                + align(ARRAY_HEADER_BYTES + (long) capacity * PREFIX_BYTES);
+    }
+
+    /**
+     * Estimates the bytes retained by a key or value.
+     */
+    static long estimateBytes(Object object) {
+        if (object == null)
+            return 0;
+        if (object instanceof String)
+            return align(OBJECT_HEADER_BYTES + 12) + align(ARRAY_HEADER_BYTES + ((String) object).length());
+        if (object instanceof Long || object instanceof Double)
+            return align(OBJECT_HEADER_BYTES + 8);
+        if (object instanceof Number || object instanceof Character || object instanceof Boolean)
+            return align(OBJECT_HEADER_BYTES + 4);
+        if (object instanceof byte[])
+            return align(ARRAY_HEADER_BYTES + ((byte[]) object).length);
+        return align(OBJECT_HEADER_BYTES);
+    }
+
+    static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Nodes per level: ").append(nodesPerLevel).append('\n');
+        sb.append("Entries: ").append(entries);
+        if (sampleEvery > 1)
+            sb.append(" (sampled 1/").append(sampleEvery).append(')');
+        sb.append('\n');
+        sb.append(String.format("Average leaf fill: %.1f%%%n", getAverageLeafFill() * 100));
+        sb.append("Leaf fill histogram:");
+        for (int i = 0; i < FILL_BUCKETS; i++)
+            sb.append(' ').append(i * 100 / FILL_BUCKETS).append("%:").append(leafFillHistogram[i]);
+        sb.append('\n');
+        sb.append("Structure bytes: ").append(structureBytes).append('\n');
+        sb.append("Key bytes: ").append(keyBytes).append('\n');
+        sb.append("Value bytes: ").append(valueBytes).append('\n');
+        sb.append(String.format("Slack bytes: %d (%.1f%%)%n", slackBytes, getSlackFraction() * 100));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,203 @@
+package source;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An append-only file holding the large values of a {@link ValueLogBPlusTree}
+ * out of its leaves, which keep a {@link Handle} to each of them.
+ *
+ * <p>
+ * Appends are buffered and written sequentially; a value is read back with one
+ * positional read. A replaced or removed value is only counted as garbage,
+ * until {@link #rewrite} copies the live values to a new file. The log is a
+ * spill area for a tree held in memory, not a persistent format: the file is
+ * truncated when opened and deleted when closed.
+ */
+public class ValueLog {
+
+    /**
+     * The size of the append buffer.
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The location of a value in the log.
+     */
+    static final class Handle {
+        final long offset;
+        final int length;
+
+        Handle(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String toString() {
+            return "@" + offset + "+" + length;
+        }
+    }
+
+    private final File file;
+    private FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * The number of bytes written to the file, excluding the buffer.
+     */
+    private long flushed;
+
+    private long liveBytes;
+    private long garbageBytes;
+
+    public ValueLog(File file) throws IOException {
+        this.file = file.getAbsoluteFile();
+        this.channel = open(this.file);
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Returns the number of bytes of the values still referenced.
+     */
+    public long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * Returns the number of bytes of the replaced and removed values.
+     */
+    public long getGarbageBytes() {
+        return garbageBytes;
+    }
+
+    /**
+     * Returns the fraction of the log taken by replaced and removed values.
+     */
+    public double getGarbageRatio() {
+        long total = liveBytes + garbageBytes;
+        return total == 0 ? 0 : (double) garbageBytes / total;
+    }
+
+    /**
+     * Appends an encoded value to the log.
+     *
+     * @return the handle to read the value back
+     */
+    Handle append(byte[] bytes) throws IOException {
+        Handle handle = new Handle(flushed + buffer.position(), bytes.length);
+        if (bytes.length > buffer.remaining()) {
+            flush();
+            if (bytes.length > buffer.capacity()) {
+                ByteBuffer source = ByteBuffer.wrap(bytes);
+                while (source.hasRemaining())
+                    flushed += channel.write(source, flushed);
+                liveBytes += bytes.length;
+                return handle;
+            }
+        }
+        buffer.put(bytes);
+        liveBytes += bytes.length;
+        return handle;
+    }
+
+    /**
+     * Reads an encoded value back from the log.
+     */
+    byte[] read(Handle handle) throws IOException {
+        byte[] bytes = new byte[handle.length];
+        if (handle.offset >= flushed) {
+            /* Still in the append buffer */
+            int position = (int) (handle.offset - flushed);
+            System.arraycopy(buffer.array(), position, bytes, 0, handle.length);
+            return bytes;
+        }
+        ByteBuffer target = ByteBuffer.wrap(bytes);
+        while (target.hasRemaining()) {
+            if (channel.read(target, handle.offset + target.position()) < 0)
+                throw new IOException("Truncated value log: " + file);
+        }
+        return bytes;
+    }
+
+    /**
+     * Counts the value of the handle as garbage, once it is no longer
+     * referenced.
+     */
+    void release(Handle handle) {
+        liveBytes -= handle.length;
+        garbageBytes += handle.length;
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            flushed += channel.write(buffer, flushed);
+        buffer.clear();
+    }
+
+    /**
+     * Copies the values of the specified live handles to a new log, in the
+     * order of the old file, and replaces the old file with it. The other
+     * handles are no longer valid afterwards.
+     *
+     * @param handles
+     *            every live handle of the log
+     * @return the new handles, in the order of {@code handles}
+     */
+    Handle[] rewrite(List<Handle> handles) throws IOException {
+        flush();
+        Integer[] order = new Integer[handles.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        final Handle[] old = handles.toArray(new Handle[handles.size()]);
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Long.compare(old[i1].offset, old[i2].offset);
+            }
+        });
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileChannel target = open(tempFile);
+        Handle[] moved = new Handle[old.length];
+        long position = 0;
+        try {
+            for (int index : order) {
+                ByteBuffer bytes = ByteBuffer.wrap(read(old[index]));
+                moved[index] = new Handle(position, old[index].length);
+                while (bytes.hasRemaining())
+                    position += target.write(bytes, position);
+            }
+        } finally {
+            target.close();
+        }
+        channel.close();
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        flushed = position;
+        liveBytes = position;
+        garbageBytes = 0;
+        return moved;
+    }
+
+    /**
+     * Closes and deletes the log file.
+     */
+    public void close() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file.toPath());
+    }
+}
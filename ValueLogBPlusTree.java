@@ -0,0 +1,339 @@
+package source;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * A {@link BPlusTree} separating large values from its leaves.
+ *
+ * <p>
+ * Values whose encoding is larger than the spill threshold are appended to a
+ * {@link ValueLog}, and the leaves keep a small handle to them, so that leaves
+ * stay compact and scans reading only keys never touch the log. The values
+ * returned by range searches are read from the log lazily, when they are
+ * accessed. Replaced and removed values are reclaimed by rewriting the log
+ * once they make up more than the garbage threshold of it.
+ */
+public class ValueLogBPlusTree<Key, Value> {
+
+    /**
+     * The encoded size over which a value is spilled when none is specified
+     * in constructor.
+     */
+    static final int DEFAULT_SPILL_THRESHOLD = 64;
+
+    /**
+     * The fraction of garbage in the log over which it is rewritten, and the
+     * number of garbage bytes under which it is never rewritten.
+     */
+    static final double DEFAULT_GARBAGE_THRESHOLD = 0.5;
+    static final long MIN_GARBAGE_BYTES = 1024 * 1024;
+
+    /**
+     * The tree mapping the keys to inline values or to
+     * {@link ValueLog.Handle}s.
+     */
+    private final BPlusTree<Key, Object> tree;
+
+    private final ValueLog log;
+    private final SnapshotCodec<Value> codec;
+    private final int spillThreshold;
+    private double garbageThreshold = DEFAULT_GARBAGE_THRESHOLD;
+
+    private final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    private final DataOutputStream encoder = new DataOutputStream(encoded);
+
+    public ValueLogBPlusTree(File logFile, SnapshotCodec<Value> codec) throws IOException {
+        this(new BPlusTree<Key, Object>(), logFile, codec, DEFAULT_SPILL_THRESHOLD);
+    }
+
+    /**
+     * Constructs an empty tree spilling its large values to the specified
+     * file.
+     *
+     * @param branchingFactor
+     *            the capacity of the nodes
+     * @param comparator
+     *            the comparator that will be used to order the keys, or
+     *            {@code null} to use the natural ordering of the keys
+     * @param logFile
+     *            the file of the value log, truncated if it exists
+     * @param codec
+     *            the codec encoding the values
+     * @param spillThreshold
+     *            the encoded size in bytes over which a value is spilled
+     */
+    public ValueLogBPlusTree(int branchingFactor, Comparator<? super Key> comparator, File logFile,
+                             SnapshotCodec<Value> codec, int spillThreshold) throws IOException {
+        this(new BPlusTree<Key, Object>(branchingFactor, comparator), logFile, codec, spillThreshold);
+    }
+
+    private ValueLogBPlusTree(BPlusTree<Key, Object> tree, File logFile, SnapshotCodec<Value> codec,
+                              int spillThreshold) throws IOException {
+        if (spillThreshold < 0)
+            throw new IllegalArgumentException("Illegal spill threshold: " + spillThreshold);
+        this.tree = tree;
+        this.log = new ValueLog(logFile);
+        this.codec = codec;
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * Sets the fraction of the log taken by replaced and removed values over
+     * which the log is rewritten.
+     */
+    public void setGarbageThreshold(double garbageThreshold) {
+        if (garbageThreshold <= 0 || garbageThreshold > 1)
+            throw new IllegalArgumentException("Illegal garbage threshold: " + garbageThreshold);
+        this.garbageThreshold = garbageThreshold;
+    }
+
+    public ValueLog getValueLog() {
+        return log;
+    }
+
+    public int size() {
+        return tree.size();
+    }
+
+    /**
+     * Returns the value to which the specified key is associated, reading it
+     * from the log if it was spilled, or {@code null} if there is no
+     * association for the key.
+     *
+     * @param key
+     *            the key whose associated value is to be returned
+     */
+    public Value search(Key key) {
+        return resolve(tree.search(key));
+    }
+
+    /**
+     * Returns the values associated with the keys specified by the range:
+     * {@code key1} and {@code key2}. The spilled values are read from the log
+     * each time they are accessed in the returned list, which must not be used
+     * after the tree is modified.
+     *
+     * @see BPlusTree#searchRange(Object, BPlusTree.RangePolicy, Object, BPlusTree.RangePolicy)
+     */
+    public List<Value> searchRange(Key key1, BPlusTree.RangePolicy policy1, Key key2,
+                                   BPlusTree.RangePolicy policy2) {
+        final List<Object> stored = new ArrayList<Object>(tree.searchRange(key1, policy1, key2, policy2));
+        return new AbstractList<Value>() {
+            @Override
+            public Value get(int index) {
+                return resolve(stored.get(index));
+            }
+
+            @Override
+            public int size() {
+                return stored.size();
+            }
+        };
+    }
+
+    /**
+     * Returns the key-value pairs specified by the range: {@code key1} and
+     * {@code key2}. The spilled values are read from the log each time they
+     * are accessed in the returned entries, which must not be used after the
+     * tree is modified.
+     *
+     * @see BPlusTree#searchRangeEntries(Object, BPlusTree.RangePolicy, Object, BPlusTree.RangePolicy)
+     */
+    public List<Map.Entry<Key, Value>> searchRangeEntries(Key key1, BPlusTree.RangePolicy policy1,
+                                                       Key key2, BPlusTree.RangePolicy policy2) {
+        final List<Map.Entry<Key, Object>> stored = tree.searchRangeEntries(key1, policy1, key2, policy2);
+        return new AbstractList<Map.Entry<Key, Value>>() {
+            @Override
+            public Map.Entry<Key, Value> get(int index) {
+                return new LazyEntry(stored.get(index));
+            }
+
+            @Override
+            public int size() {
+                return stored.size();
+            }
+        };
+    }
+
+    /**
+     * Returns the keys specified by the range: {@code key1} and {@code key2},
+     * without reading the log.
+     */
+    public List<Key> searchRangeKeys(Key key1, BPlusTree.RangePolicy policy1, Key key2,
+                                     BPlusTree.RangePolicy policy2) {
+        List<Key> result = new ArrayList<Key>();
+        for (Map.Entry<Key, Object> entry : tree.searchRangeEntries(key1, policy1, key2, policy2))
+            result.add(entry.getKey());
+        return result;
+    }
+
+    /**
+     * Returns the next 10 keys from {@code key1}, without reading the log.
+     *
+     * @see BPlusTree#searchRange(Object, BPlusTree.RangePolicy)
+     */
+    public List<Key> searchRange(Key key1, BPlusTree.RangePolicy policy1) {
+        return tree.searchRange(key1, policy1);
+    }
+
+    /**
+     * Associates the specified value with the specified key, spilling it to
+     * the log if its encoding is larger than the spill threshold.
+     *
+     * @param key
+     *            the key with which the specified value is to be associated
+     * @param value
+     *            the value to be associated with the specified key
+     */
+    public void insert(Key key, Value value) {
+        release(tree.insert(key, store(value)));
+    }
+
+    /**
+     * Removes the association for the specified key if present.
+     *
+     * @param key
+     *            the key whose association is to be removed
+     */
+    public void delete(Key key) {
+        release(tree.remove(key));
+    }
+
+    /**
+     * Removes all the associations for the keys specified by the range:
+     * {@code key1} and {@code key2}.
+     *
+     * @see BPlusTree#deleteRange(Object, BPlusTree.RangePolicy, Object, BPlusTree.RangePolicy)
+     */
+    public void deleteRange(Key key1, BPlusTree.RangePolicy policy1, Key key2, BPlusTree.RangePolicy policy2) {
+        List<Map.Entry<Key, Object>> removed = tree.searchRangeEntries(key1, policy1, key2, policy2);
+        tree.deleteRange(key1, policy1, key2, policy2);
+        /* Release every value before collecting, since a rewrite forgets the released ones */
+        for (Map.Entry<Key, Object> entry : removed) {
+            if (entry.getValue() instanceof ValueLog.Handle)
+                log.release((ValueLog.Handle) entry.getValue());
+        }
+        collectGarbageIfNeeded();
+    }
+
+    /**
+     * Copies the live spilled values to a new log and points the leaves to
+     * them, dropping the replaced and removed values.
+     */
+    public void collectGarbage() throws IOException {
+        List<Key> keys = new ArrayList<Key>();
+        List<ValueLog.Handle> handles = new ArrayList<ValueLog.Handle>();
+        for (Iterator<Map.Entry<Key, Object>> it = tree.entryIterator(); it.hasNext(); ) {
+            Map.Entry<Key, Object> entry = it.next();
+            if (entry.getValue() instanceof ValueLog.Handle) {
+                keys.add(entry.getKey());
+                handles.add((ValueLog.Handle) entry.getValue());
+            }
+        }
+        ValueLog.Handle[] moved = log.rewrite(handles);
+        for (int i = 0; i < moved.length; i++)
+            tree.replace(keys.get(i), moved[i]);
+    }
+
+    /**
+     * Closes and deletes the value log. The tree can no longer be used.
+     */
+    public void close() throws IOException {
+        log.close();
+    }
+
+    private Object store(Value value) {
+        try {
+            encoded.reset();
+            codec.write(encoder, value);
+            if (encoded.size() <= spillThreshold)
+                return value;
+            return log.append(encoded.toByteArray());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Value resolve(Object stored) {
+        if (!(stored instanceof ValueLog.Handle))
+            return (Value) stored;
+        try {
+            byte[] bytes = log.read((ValueLog.Handle) stored);
+            return codec.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private void release(Object stored) {
+        if (!(stored instanceof ValueLog.Handle))
+            return;
+        log.release((ValueLog.Handle) stored);
+        collectGarbageIfNeeded();
+    }
+
+    private void collectGarbageIfNeeded() {
+        if (log.getGarbageBytes() >= MIN_GARBAGE_BYTES && log.getGarbageRatio() > garbageThreshold) {
+            try {
+                collectGarbage();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    public String toString() {
+        return tree.toString();
+    }
+
+    /**
+     * An entry reading its value from the log when it is accessed.
+     */
+    private class LazyEntry implements Map.Entry<Key, Value> {
+        private final Map.Entry<Key, Object> stored;
+
+        LazyEntry(Map.Entry<Key, Object> stored) {
+            this.stored = stored;
+        }
+
+        @Override
+        public Key getKey() {
+            return stored.getKey();
+        }
+
+        @Override
+        public Value getValue() {
+            return resolve(stored.getValue());
+        }
+
+        @Override
+        public Value setValue(Value value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+            return Objects.equals(getKey(), entry.getKey()) && Objects.equals(getValue(), entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+        }
+
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
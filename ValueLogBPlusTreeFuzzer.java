@@ -0,0 +1,187 @@
+package source;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Randomized differential harness for {@link ValueLogBPlusTree}: every
+ * operation is applied both to the tree and to a {@link TreeMap}, and their
+ * results must match. Values range from a few bytes, kept inline, to more
+ * than the append buffer of the {@link ValueLog}, and keys are replaced and
+ * removed often, so that the log fills with garbage and is rewritten, both by
+ * explicit {@link ValueLogBPlusTree#collectGarbage} calls and automatically.
+ * The live and garbage byte counts of the log must match the expected entries.
+ *
+ * <p>
+ * After each collection every value is read back from the rewritten log, and
+ * the entries are reloaded into a new tree on a new log, which must match as
+ * well.
+ *
+ * <p>
+ * Usage: {@code ValueLogBPlusTreeFuzzer [seed [operations]]}. A failure
+ * reports the seed and the operation that failed, and exits with a non-zero
+ * status.
+ */
+public class ValueLogBPlusTreeFuzzer {
+
+    static final int DEFAULT_OPERATIONS = 50000;
+
+    static final int KEY_SPACE = 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Random random;
+    private final File directory;
+    private final int branchingFactor;
+    private final int spillThreshold;
+    private final ValueLogBPlusTree<Integer, String> tree;
+    private final TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+    private String operation;
+    private int collections;
+    private int automaticCollections;
+
+    ValueLogBPlusTreeFuzzer(long seed, File directory) throws IOException {
+        this.random = new Random(seed);
+        this.directory = directory;
+        this.branchingFactor = 3 + random.nextInt(30);
+        this.spillThreshold = random.nextInt(128);
+        this.tree = new ValueLogBPlusTree<Integer, String>(branchingFactor, null, new File(directory, "values"),
+                SnapshotCodec.STRING, spillThreshold);
+        this.tree.setGarbageThreshold(0.2 + random.nextDouble() * 0.6);
+    }
+
+    public static void main(String[] args) throws IOException {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_OPERATIONS;
+
+        File directory = Files.createTempDirectory("value-log-fuzzer").toFile();
+        ValueLogBPlusTreeFuzzer fuzzer = new ValueLogBPlusTreeFuzzer(seed, directory);
+        int step = 0;
+        try {
+            for (; step < operations; step++)
+                fuzzer.step(step);
+            fuzzer.operation = "final collection";
+            fuzzer.collectGarbage();
+        } catch (IOException | RuntimeException | AssertionError ex) {
+            System.err.println("Failed with seed " + seed + " (branching factor " + fuzzer.branchingFactor
+                    + ", spill threshold " + fuzzer.spillThreshold + ") at step " + step + " ("
+                    + fuzzer.operation + ")");
+            ex.printStackTrace();
+            System.exit(1);
+        } finally {
+            fuzzer.tree.close();
+            directory.delete();
+        }
+        System.out.println("Branching factor " + fuzzer.branchingFactor + ", spill threshold "
+                + fuzzer.spillThreshold + ": " + operations + " operations, " + fuzzer.expected.size()
+                + " entries, " + fuzzer.collections + " explicit and " + fuzzer.automaticCollections
+                + " automatic collections");
+        System.out.println("Seed " + seed + " passed");
+    }
+
+    private void step(int step) throws IOException {
+        int key = random.nextInt(KEY_SPACE);
+        long garbageBytes = tree.getValueLog().getGarbageBytes();
+        int dice = random.nextInt(1000);
+        if (dice < 450) {
+            String value = randomValue(step);
+            operation = "insert " + key + " (" + value.length() + " chars)";
+            tree.insert(key, value);
+            expected.put(key, value);
+        } else if (dice < 600) {
+            operation = "delete " + key;
+            tree.delete(key);
+            expected.remove(key);
+        } else if (dice < 610) {
+            int key2 = key + random.nextInt(32);
+            operation = "deleteRange " + key + " " + key2;
+            tree.deleteRange(key, BPlusTree.RangePolicy.INCLUSIVE, key2, BPlusTree.RangePolicy.INCLUSIVE);
+            expected.subMap(key, true, key2, true).clear();
+        } else if (dice < 612) {
+            operation = "collectGarbage";
+            collectGarbage();
+        } else if (dice < 850) {
+            operation = "search " + key;
+            check(expected.get(key), tree.search(key));
+        } else {
+            int key2 = key + random.nextInt(64);
+            operation = "searchRange " + key + " " + key2;
+            SortedMap<Integer, String> range = expected.subMap(key, true, key2, true);
+            check(new ArrayList<Map.Entry<Integer, String>>(range.entrySet()),
+                    new ArrayList<Map.Entry<Integer, String>>(tree.searchRangeEntries(key,
+                            BPlusTree.RangePolicy.INCLUSIVE, key2, BPlusTree.RangePolicy.INCLUSIVE)));
+            check(new ArrayList<String>(range.values()), new ArrayList<String>(tree.searchRange(key,
+                    BPlusTree.RangePolicy.INCLUSIVE, key2, BPlusTree.RangePolicy.INCLUSIVE)));
+            check(new ArrayList<Integer>(range.keySet()), tree.searchRangeKeys(key,
+                    BPlusTree.RangePolicy.INCLUSIVE, key2, BPlusTree.RangePolicy.INCLUSIVE));
+        }
+        check(expected.size(), tree.size());
+        check(liveBytes(), tree.getValueLog().getLiveBytes());
+        if (tree.getValueLog().getGarbageBytes() < garbageBytes && !operation.equals("collectGarbage"))
+            automaticCollections++;
+    }
+
+    /**
+     * Returns mostly small values, some just around the spill threshold, and
+     * a few larger than the append buffer of the log.
+     */
+    private String randomValue(int step) {
+        int dice = random.nextInt(100);
+        int length = dice < 60 ? random.nextInt(spillThreshold + 16)
+                : dice < 99 ? random.nextInt(4096) : ValueLog.BUFFER_SIZE + random.nextInt(ValueLog.BUFFER_SIZE);
+        StringBuilder value = new StringBuilder("v").append(step);
+        char fill = (char) ('a' + step % 26);
+        while (value.length() < length)
+            value.append(fill);
+        return value.toString();
+    }
+
+    /**
+     * Collects the garbage, then reads every value back from the rewritten
+     * log and reloads the entries into a new tree.
+     */
+    private void collectGarbage() throws IOException {
+        tree.collectGarbage();
+        collections++;
+        check(0L, tree.getValueLog().getGarbageBytes());
+        check(liveBytes(), tree.getValueLog().getLiveBytes());
+        List<Map.Entry<Integer, String>> entries = new ArrayList<Map.Entry<Integer, String>>(
+                tree.searchRangeEntries(Integer.MIN_VALUE, BPlusTree.RangePolicy.INCLUSIVE, Integer.MAX_VALUE,
+                        BPlusTree.RangePolicy.INCLUSIVE));
+        check(new ArrayList<Map.Entry<Integer, String>>(expected.entrySet()), entries);
+
+        ValueLogBPlusTree<Integer, String> reloaded = new ValueLogBPlusTree<Integer, String>(branchingFactor,
+                null, new File(directory, "reloaded"), SnapshotCodec.STRING, spillThreshold);
+        try {
+            for (Map.Entry<Integer, String> entry : entries)
+                reloaded.insert(entry.getKey(), entry.getValue());
+            check(liveBytes(), reloaded.getValueLog().getLiveBytes());
+            for (Map.Entry<Integer, String> entry : expected.entrySet())
+                check(entry.getValue(), reloaded.search(entry.getKey()));
+        } finally {
+            reloaded.close();
+        }
+    }
+
+    /**
+     * Returns the encoded size of the expected values over the spill
+     * threshold.
+     */
+    private long liveBytes() {
+        long bytes = 0;
+        for (String value : expected.values()) {
+            int length = 4 + value.getBytes(UTF8).length;
+            if (length > spillThreshold)
+                bytes += length;
+        }
+        return bytes;
+    }
+
+    private static void check(Object expected, Object actual) {
+        if (expected == null ? actual != null : !expected.equals(actual))
+            throw new AssertionError("Expected " + expected + " but was " + actual);
+    }
+}
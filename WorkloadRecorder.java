@@ -0,0 +1,182 @@
+package source;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records the operations run on a {@link BPlusTree} to a compact binary trace,
+ * for {@link WorkloadReplay} to run them again against another tree.
+ *
+ * <p>
+ * The trace is a header followed by one record per operation: an opcode, the
+ * time since the previous record in nanoseconds as a variable-length integer,
+ * then the time to live of an insertion that has one, and the keys, range
+ * policies and value of the operation encoded by the codecs. An I/O error
+ * stops the recording without failing the operation; it is thrown by
+ * {@link #close()}.
+ *
+ * <p>
+ * Conditional updates and range updates are recorded by their outcome, as the
+ * insertions, replacements, deletions or searches they amounted to, so that a
+ * replay ends with the same contents. The removals of expired associations
+ * are made by the tree rather than the workload, and are not recorded.
+ *
+ * @see BPlusTree#setWorkloadRecorder(WorkloadRecorder)
+ */
+public class WorkloadRecorder<Key, Value> {
+
+    static final int MAGIC = 0x42505457;
+    static final int VERSION = 2;
+
+    static final byte SEARCH = 1;
+    static final byte SEARCH_RANGE = 2;
+    static final byte NEXT_KEYS = 3;
+    static final byte INSERT = 4;
+    static final byte REPLACE = 5;
+    static final byte DELETE = 6;
+    static final byte DELETE_RANGE = 7;
+    static final byte INSERT_TTL = 8;
+
+    private final DataOutputStream out;
+    private final SnapshotCodec<? super Key> keyCodec;
+    private final SnapshotCodec<? super Value> valueCodec;
+    private long lastTime;
+    private long records;
+    private IOException error;
+
+    public WorkloadRecorder(OutputStream out, SnapshotCodec<? super Key> keyCodec,
+                            SnapshotCodec<? super Value> valueCodec) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        this.lastTime = System.nanoTime();
+    }
+
+    /**
+     * Returns the number of operations recorded.
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    synchronized void recordSearch(Key key) {
+        if (begin(SEARCH))
+            end(key, null, null, null, null, false);
+    }
+
+    synchronized void recordSearchRange(Key key1, BPlusTree.RangePolicy policy1, Key key2,
+                                        BPlusTree.RangePolicy policy2) {
+        if (begin(SEARCH_RANGE))
+            end(key1, policy1, key2, policy2, null, false);
+    }
+
+    synchronized void recordNextKeys(Key key1, BPlusTree.RangePolicy policy1) {
+        if (begin(NEXT_KEYS))
+            end(key1, policy1, null, null, null, false);
+    }
+
+    synchronized void recordInsert(Key key, Value value) {
+        if (begin(INSERT))
+            end(key, null, null, null, value, true);
+    }
+
+    synchronized void recordInsert(Key key, Value value, long ttlMillis) {
+        if (!begin(INSERT_TTL))
+            return;
+        try {
+            writeVarLong(ttlMillis);
+        } catch (IOException ex) {
+            error = ex;
+            return;
+        }
+        end(key, null, null, null, value, true);
+    }
+
+    synchronized void recordReplace(Key key, Value value) {
+        if (begin(REPLACE))
+            end(key, null, null, null, value, true);
+    }
+
+    synchronized void recordDelete(Key key) {
+        if (begin(DELETE))
+            end(key, null, null, null, null, false);
+    }
+
+    synchronized void recordDeleteRange(Key key1, BPlusTree.RangePolicy policy1, Key key2,
+                                        BPlusTree.RangePolicy policy2) {
+        if (begin(DELETE_RANGE))
+            end(key1, policy1, key2, policy2, null, false);
+    }
+
+    /**
+     * Writes the opcode and time of a record, unless recording stopped.
+     */
+    private boolean begin(byte opcode) {
+        if (error != null)
+            return false;
+        long now = System.nanoTime();
+        try {
+            out.writeByte(opcode);
+            writeVarLong(now - lastTime);
+        } catch (IOException ex) {
+            error = ex;
+            return false;
+        }
+        lastTime = now;
+        return true;
+    }
+
+    private void end(Key key1, BPlusTree.RangePolicy policy1, Key key2, BPlusTree.RangePolicy policy2,
+                     Value value, boolean hasValue) {
+        try {
+            keyCodec.write(out, key1);
+            if (policy1 != null)
+                out.writeByte(policy1.ordinal() | (policy2 != null ? policy2.ordinal() << 1 : 0));
+            if (policy2 != null)
+                keyCodec.write(out, key2);
+            if (hasValue)
+                valueCodec.write(out, value);
+            records++;
+        } catch (IOException ex) {
+            error = ex;
+        }
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Flushes the buffered records to the stream.
+     */
+    public synchronized void flush() throws IOException {
+        if (error != null)
+            throw error;
+        out.flush();
+    }
+
+    /**
+     * Flushes and closes the trace.
+     *
+     * @throws IOException
+     *             if a record could not be written
+     */
+    public synchronized void close() throws IOException {
+        try {
+            if (error == null)
+                out.flush();
+        } finally {
+            out.close();
+        }
+        if (error != null)
+            throw error;
+    }
+}
@@ -0,0 +1,336 @@
+package source;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Runs a trace written by a {@link WorkloadRecorder} against a fresh
+ * {@link BPlusTree}, and reports the throughput, the latency percentiles of
+ * each kind of operation and the changes of the shape of the tree.
+ *
+ * <p>
+ * At full speed, the operations run back to back and their latency is the
+ * time they take. At original speed, each operation waits for its recorded
+ * time, and its latency is counted from that time, so that a replay falling
+ * behind shows in the latencies instead of slowing the workload down. With
+ * several threads, the threads take the operations in trace order and run
+ * them under a read-write lock, reads sharing it and writes holding it
+ * alone. A point search removes the key it finds expired, so when the trace
+ * inserts keys with a time to live, searches hold the lock alone too.
+ *
+ * <p>
+ * Usage:
+ * {@code WorkloadReplay trace [threads [full|original [branchingFactor]]]},
+ * for traces of {@code String} keys and values such as the catalog.
+ */
+public class WorkloadReplay {
+
+    static final String[] OPERATION_NAMES = {"", "search", "searchRange", "nextKeys", "insert", "replace",
+            "delete", "deleteRange", "insertTtl"};
+
+    static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    /**
+     * An operation of a trace.
+     */
+    static final class Operation<Key, Value> {
+        byte type;
+        long time;
+        Key key1;
+        BPlusTree.RangePolicy policy1;
+        Key key2;
+        BPlusTree.RangePolicy policy2;
+        Value value;
+        long ttlMillis;
+
+        boolean isRead() {
+            return type == WorkloadRecorder.SEARCH || type == WorkloadRecorder.SEARCH_RANGE
+                    || type == WorkloadRecorder.NEXT_KEYS;
+        }
+
+        /**
+         * Returns {@code true} if the operation leaves the tree unchanged,
+         * given whether the trace inserts keys with a time to live.
+         */
+        boolean isShared(boolean expiring) {
+            return isRead() && !(expiring && type == WorkloadRecorder.SEARCH);
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: WorkloadReplay trace [threads [full|original [branchingFactor]]]");
+            System.exit(2);
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        boolean originalSpeed = args.length > 2 && args[2].equals("original");
+        BPlusTree<String, String> tree = args.length > 3
+                ? new BPlusTree<String, String>(Integer.parseInt(args[3])) : new BPlusTree<String, String>();
+
+        List<Operation<String, String>> operations;
+        InputStream in = new FileInputStream(args[0]);
+        try {
+            operations = readTrace(in, SnapshotCodec.STRING, SnapshotCodec.STRING);
+        } finally {
+            in.close();
+        }
+        System.out.print(replay(tree, operations, threads, originalSpeed));
+    }
+
+    /**
+     * Reads the operations of a trace, with their times relative to the first
+     * one. A truncated last record is ignored. Traces of the first version,
+     * which had no insertions with a time to live, are read too.
+     */
+    static <Key, Value> List<Operation<Key, Value>> readTrace(InputStream in, SnapshotCodec<? extends Key> keyCodec,
+                                                            SnapshotCodec<? extends Value> valueCodec)
+            throws IOException {
+        DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        if (dataIn.readInt() != WorkloadRecorder.MAGIC)
+            throw new IOException("Not a workload trace");
+        int version = dataIn.readUnsignedByte();
+        if (version < 1 || version > WorkloadRecorder.VERSION)
+            throw new IOException("Unsupported trace version: " + version);
+
+        List<Operation<Key, Value>> operations = new ArrayList<Operation<Key, Value>>();
+        long time = 0;
+        long first = 0;
+        BPlusTree.RangePolicy[] policies = BPlusTree.RangePolicy.values();
+        try {
+            for (int type; (type = dataIn.read()) >= 0; ) {
+                if (type < WorkloadRecorder.SEARCH || type > WorkloadRecorder.INSERT_TTL)
+                    throw new IOException("Corrupted trace record: " + type);
+                Operation<Key, Value> operation = new Operation<Key, Value>();
+                operation.type = (byte) type;
+                time += readVarLong(dataIn);
+                if (operations.isEmpty())
+                    first = time;
+                operation.time = time - first;
+                if (operation.type == WorkloadRecorder.INSERT_TTL)
+                    operation.ttlMillis = readVarLong(dataIn);
+                operation.key1 = keyCodec.read(dataIn);
+                switch (operation.type) {
+                    case WorkloadRecorder.SEARCH_RANGE:
+                    case WorkloadRecorder.DELETE_RANGE:
+                        int flags = dataIn.readUnsignedByte();
+                        operation.policy1 = policies[flags & 1];
+                        operation.policy2 = policies[flags >> 1 & 1];
+                        operation.key2 = keyCodec.read(dataIn);
+                        break;
+                    case WorkloadRecorder.NEXT_KEYS:
+                        operation.policy1 = policies[dataIn.readUnsignedByte() & 1];
+                        break;
+                    case WorkloadRecorder.INSERT:
+                    case WorkloadRecorder.REPLACE:
+                    case WorkloadRecorder.INSERT_TTL:
+                        operation.value = valueCodec.read(dataIn);
+                        break;
+                    default:
+                }
+                operations.add(operation);
+            }
+        } catch (EOFException ex) {
+            /* The recording stopped in the middle of a record */
+        }
+        return operations;
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+
+    /**
+     * Runs the operations against the tree and measures them.
+     *
+     * @param tree
+     *            the tree to run the operations against
+     * @param operations
+     *            the operations, in trace order
+     * @param threads
+     *            the number of threads running the operations
+     * @param originalSpeed
+     *            whether each operation waits for its recorded time
+     */
+    static <Key, Value> Report replay(final BPlusTree<Key, Value> tree,
+                                      final List<Operation<Key, Value>> operations, int threads,
+                                      final boolean originalSpeed) throws InterruptedException {
+        if (threads <= 0)
+            throw new IllegalArgumentException("Illegal number of threads: " + threads);
+        final Report report = new Report(operations.size());
+        report.threads = threads;
+        report.originalSpeed = originalSpeed;
+        report.splits = -tree.getSplits();
+        report.fusions = -tree.getFusions();
+        report.depthBefore = tree.getDepth();
+
+        boolean ttl = false;
+        for (Operation<Key, Value> operation : operations)
+            ttl |= operation.type == WorkloadRecorder.INSERT_TTL;
+        final boolean expiring = ttl;
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        final AtomicInteger next = new AtomicInteger();
+        final long start = System.nanoTime();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                for (int i; (i = next.getAndIncrement()) < operations.size(); ) {
+                    Operation<Key, Value> operation = operations.get(i);
+                    long scheduled = System.nanoTime();
+                    if (originalSpeed) {
+                        scheduled = start + operation.time;
+                        for (long wait; (wait = scheduled - System.nanoTime()) > 0; )
+                            LockSupport.parkNanos(wait);
+                    }
+                    boolean shared = operation.isShared(expiring);
+                    if (shared)
+                        lock.readLock().lock();
+                    else
+                        lock.writeLock().lock();
+                    try {
+                        execute(tree, operation);
+                    } finally {
+                        if (shared)
+                            lock.readLock().unlock();
+                        else
+                            lock.writeLock().unlock();
+                    }
+                    report.latencies[i] = System.nanoTime() - scheduled;
+                }
+            }
+        };
+
+        if (threads == 1) {
+            worker.run();
+        } else {
+            List<Thread> workers = new ArrayList<Thread>(threads);
+            for (int i = 0; i < threads; i++) {
+                Thread thread = new Thread(worker, "replay-" + i);
+                workers.add(thread);
+                thread.start();
+            }
+            for (Thread thread : workers)
+                thread.join();
+        }
+        report.elapsedNanos = System.nanoTime() - start;
+        report.splits += tree.getSplits();
+        report.fusions += tree.getFusions();
+        report.depthAfter = tree.getDepth();
+        for (int i = 0; i < operations.size(); i++)
+            report.types[i] = operations.get(i).type;
+        return report;
+    }
+
+    private static <Key, Value> void execute(BPlusTree<Key, Value> tree, Operation<Key, Value> operation) {
+        switch (operation.type) {
+            case WorkloadRecorder.SEARCH:
+                tree.search(operation.key1);
+                break;
+            case WorkloadRecorder.SEARCH_RANGE:
+                tree.searchRange(operation.key1, operation.policy1, operation.key2, operation.policy2);
+                break;
+            case WorkloadRecorder.NEXT_KEYS:
+                tree.searchRange(operation.key1, operation.policy1);
+                break;
+            case WorkloadRecorder.INSERT:
+                tree.insert(operation.key1, operation.value);
+                break;
+            case WorkloadRecorder.REPLACE:
+                tree.replace(operation.key1, operation.value);
+                break;
+            case WorkloadRecorder.DELETE:
+                tree.remove(operation.key1);
+                break;
+            case WorkloadRecorder.INSERT_TTL:
+                tree.insert(operation.key1, operation.value, operation.ttlMillis);
+                break;
+            default:
+                tree.deleteRange(operation.key1, operation.policy1, operation.key2, operation.policy2);
+        }
+    }
+
+    /**
+     * The measures of a replay.
+     */
+    static class Report {
+        final long[] latencies;
+        final byte[] types;
+        int threads;
+        boolean originalSpeed;
+        long elapsedNanos;
+        int splits;
+        int fusions;
+        int depthBefore;
+        int depthAfter;
+
+        Report(int operations) {
+            latencies = new long[operations];
+            types = new byte[operations];
+        }
+
+        double getThroughput() {
+            return elapsedNanos == 0 ? 0 : latencies.length * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * Returns the latencies of the operations of the specified type, or
+         * of all operations if it is 0, sorted.
+         */
+        long[] sortedLatencies(int type) {
+            long[] selected = new long[latencies.length];
+            int count = 0;
+            for (int i = 0; i < latencies.length; i++) {
+                if (type == 0 || types[i] == type)
+                    selected[count++] = latencies[i];
+            }
+            selected = Arrays.copyOf(selected, count);
+            Arrays.sort(selected);
+            return selected;
+        }
+
+        static long percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0)
+                return 0;
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Operations: %d in %.3f s on %d thread(s) at %s speed%n", latencies.length,
+                    elapsedNanos / 1e9, threads, originalSpeed ? "original" : "full"));
+            sb.append(String.format("Throughput: %.0f ops/s%n", getThroughput()));
+            sb.append(String.format("Latency (us)   %9s", "count"));
+            for (double percentile : PERCENTILES)
+                sb.append(String.format(" %9s", "p" + (percentile == (long) percentile
+                        ? String.valueOf((long) percentile) : String.valueOf(percentile))));
+            sb.append(String.format(" %9s%n", "max"));
+            for (int type = 0; type < OPERATION_NAMES.length; type++) {
+                long[] sorted = sortedLatencies(type);
+                if (sorted.length == 0)
+                    continue;
+                sb.append(String.format("  %-12s %9d", type == 0 ? "all" : OPERATION_NAMES[type], sorted.length));
+                for (double percentile : PERCENTILES)
+                    sb.append(String.format(" %9.1f", percentile(sorted, percentile) / 1e3));
+                sb.append(String.format(" %9.1f%n", sorted[sorted.length - 1] / 1e3));
+            }
+            sb.append("Splits: ").append(splits).append(", fusions: ").append(fusions)
+                    .append(", depth: ").append(depthBefore).append(" -> ").append(depthAfter).append('\n');
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package source;
+
+/**
+ * Counts of the operations run on a {@link BPlusTree} with adaptive node
+ * sizing, and the node sizes they call for, as returned by
+ * {@link BPlusTree#getWorkloadStatistics()}.
+ *
+ * <p>
+ * Scans walk the leaves, so the larger the share of entries read by scans
+ * rather than by point reads and writes, the larger the recommended leaves:
+ * from {@link #MIN_LEAF_BYTES} for point and write workloads, where shifting
+ * and searching a small leaf is cheap, up to {@link #MAX_LEAF_BYTES} for scan
+ * workloads, where each leaf is a sequential run of the scan. Internal nodes
+ * are only searched, so the recommended ones are the smallest that do not
+ * make the tree deeper than page-sized ones would.
+ */
+public class WorkloadStatistics {
+
+    /**
+     * The number of operations under which the statistics are not used to
+     * recommend node sizes.
+     */
+    public static final long MIN_OPERATIONS = 1024;
+
+    public static final int MIN_LEAF_BYTES = 8 * BPlusTree.CACHE_LINE_BYTES;
+    public static final int MAX_LEAF_BYTES = 2 * BPlusTree.PAGE_BYTES;
+    public static final int MIN_INTERNAL_BYTES = 4 * BPlusTree.CACHE_LINE_BYTES;
+    public static final int MAX_INTERNAL_BYTES = BPlusTree.PAGE_BYTES;
+
+    long pointReads;
+    long rangeReads;
+    long scannedEntries;
+    long inserts;
+    long deletes;
+
+    public long getPointReads() {
+        return pointReads;
+    }
+
+    /**
+     * Returns the number of range and next-keys searches.
+     */
+    public long getRangeReads() {
+        return rangeReads;
+    }
+
+    /**
+     * Returns the number of entries returned by range and next-keys searches.
+     */
+    public long getScannedEntries() {
+        return scannedEntries;
+    }
+
+    public long getInserts() {
+        return inserts;
+    }
+
+    /**
+     * Returns the number of deletes, counting a range delete once.
+     */
+    public long getDeletes() {
+        return deletes;
+    }
+
+    public long getOperations() {
+        return pointReads + rangeReads + inserts + deletes;
+    }
+
+    /**
+     * Returns the fraction of the entries accessed that were read by scans.
+     */
+    public double getScanShare() {
+        long accessed = scannedEntries + pointReads + inserts + deletes;
+        return accessed == 0 ? 0 : (double) scannedEntries / accessed;
+    }
+
+    public void reset() {
+        pointReads = 0;
+        rangeReads = 0;
+        scannedEntries = 0;
+        inserts = 0;
+        deletes = 0;
+    }
+
+    /**
+     * Returns the recommended leaf branching factor, scaling the leaf size
+     * geometrically with the scan share.
+     */
+    public int recommendLeafBranchingFactor() {
+        double bytes = MIN_LEAF_BYTES * Math.pow((double) MAX_LEAF_BYTES / MIN_LEAF_BYTES, getScanShare());
+        int lines = Math.max(1, (int) bytes / BPlusTree.CACHE_LINE_BYTES);
+        return BPlusTree.branchingFactorForBytes(lines * BPlusTree.CACHE_LINE_BYTES);
+    }
+
+    /**
+     * Returns the recommended internal branching factor for a tree with the
+     * specified number of leaves: the smallest power-of-two number of bytes
+     * per node giving as few levels as {@link #MAX_INTERNAL_BYTES}.
+     *
+     * @param leaves
+     *            the number of leaves of the tree
+     */
+    public int recommendInternalBranchingFactor(int leaves) {
+        int levels = levels(leaves, BPlusTree.branchingFactorForBytes(MAX_INTERNAL_BYTES));
+        int bytes = MIN_INTERNAL_BYTES;
+        while (bytes < MAX_INTERNAL_BYTES && levels(leaves, BPlusTree.branchingFactorForBytes(bytes)) > levels)
+            bytes *= 2;
+        return BPlusTree.branchingFactorForBytes(bytes);
+    }
+
+    /**
+     * Returns the number of internal levels built over the specified number
+     * of leaves with the specified fan-out.
+     */
+    private static int levels(int leaves, int branchingFactor) {
+        int levels = 0;
+        for (int nodes = leaves; nodes > 1; nodes = (nodes + branchingFactor - 1) / branchingFactor)
+            levels++;
+        return levels;
+    }
+
+    public String toString() {
+        return String.format("Point reads: %d, range reads: %d (%d entries), inserts: %d, deletes: %d,"
+                        + " scan share: %.1f%%", pointReads, rangeReads, scannedEntries, inserts, deletes,
+                getScanShare() * 100);
+    }
+}